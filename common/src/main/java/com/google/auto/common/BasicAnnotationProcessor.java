@@ -16,7 +16,6 @@
 package com.google.auto.common;
 
 import static com.google.auto.common.MoreElements.isAnnotationPresent;
-import static com.google.auto.common.SuperficialValidation.validateElement;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Iterables.transform;
@@ -37,6 +36,7 @@ import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import java.lang.annotation.Annotation;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -47,6 +47,7 @@ import javax.annotation.processing.Messager;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.PackageElement;
@@ -140,6 +141,18 @@ public abstract class BasicAnnotationProcessor extends AbstractProcessor {
     }
   }
 
+  /**
+   * Returns true if this processor should find the elements annotated with the annotations of its
+   * {@linkplain ProcessingStep steps} by visiting the root elements of each round once, rather than
+   * by calling {@link RoundEnvironment#getElementsAnnotatedWith(TypeElement)} once for each
+   * annotation. In javac, each of those calls visits every root element, so a processor with many
+   * annotations may prefer to override this method to return true. The elements found are the same
+   * either way. The default implementation returns false.
+   */
+  protected boolean indexAnnotatedElementsInOnePass() {
+    return false;
+  }
+
   private ImmutableSet<? extends Class<? extends Annotation>> getSupportedAnnotationClasses() {
     checkState(steps != null);
     ImmutableSet.Builder<Class<? extends Annotation>> builder = ImmutableSet.builder();
@@ -269,17 +282,21 @@ public abstract class BasicAnnotationProcessor extends AbstractProcessor {
 
     Set<ElementName> validElementNames = new LinkedHashSet<ElementName>();
 
+    ImmutableSetMultimap<Class<? extends Annotation>, Element> roundElementsByAnnotation =
+        indexAnnotatedElementsInOnePass()
+            ? indexAnnotatedElements(roundEnv)
+            : getElementsAnnotatedWith(roundEnv);
+
+    // Nested types are validated along with their enclosing types, so remembering which elements
+    // have been validated means that each element is visited at most once in this round.
+    SuperficialValidation.Cache validation = new SuperficialValidation.Cache();
+
     // Look at the elements we've found and the new elements from this round and validate them.
     for (Class<? extends Annotation> annotationClass : getSupportedAnnotationClasses()) {
-      // This should just call roundEnv.getElementsAnnotatedWith(Class) directly, but there is a bug
-      // in some versions of eclipse that cause that method to crash.
-      TypeElement annotationType = elements.getTypeElement(annotationClass.getCanonicalName());
-      Set<? extends Element> elementsAnnotatedWith =
-          (annotationType == null)
-              ? ImmutableSet.<Element>of()
-              : roundEnv.getElementsAnnotatedWith(annotationType);
       for (Element annotatedElement :
-          Sets.union(elementsAnnotatedWith, deferredElementsByAnnotation.get(annotationClass))) {
+          Sets.union(
+              roundElementsByAnnotation.get(annotationClass),
+              deferredElementsByAnnotation.get(annotationClass))) {
         if (annotatedElement.getKind().equals(PACKAGE)) {
           PackageElement annotatedPackageElement = (PackageElement) annotatedElement;
           ElementName annotatedPackageName =
@@ -287,7 +304,7 @@ public abstract class BasicAnnotationProcessor extends AbstractProcessor {
           boolean validPackage =
               validElementNames.contains(annotatedPackageName)
                   || (!deferredElementNames.contains(annotatedPackageName)
-                      && validateElement(annotatedPackageElement));
+                      && validation.validateElement(annotatedPackageElement));
           if (validPackage) {
             validElements.put(annotationClass, annotatedPackageElement);
             validElementNames.add(annotatedPackageName);
@@ -301,7 +318,7 @@ public abstract class BasicAnnotationProcessor extends AbstractProcessor {
           boolean validEnclosingType =
               validElementNames.contains(enclosingTypeName)
                   || (!deferredElementNames.contains(enclosingTypeName)
-                      && validateElement(enclosingType));
+                      && validation.validateElement(enclosingType));
           if (validEnclosingType) {
             validElements.put(annotationClass, annotatedElement);
             validElementNames.add(enclosingTypeName);
@@ -315,6 +332,86 @@ public abstract class BasicAnnotationProcessor extends AbstractProcessor {
     return validElements.build();
   }
 
+  /** Returns the elements of this round that have each of the supported annotations. */
+  private ImmutableSetMultimap<Class<? extends Annotation>, Element> getElementsAnnotatedWith(
+      RoundEnvironment roundEnv) {
+    ImmutableSetMultimap.Builder<Class<? extends Annotation>, Element> elementsByAnnotation =
+        ImmutableSetMultimap.builder();
+    for (Class<? extends Annotation> annotationClass : getSupportedAnnotationClasses()) {
+      // This should just call roundEnv.getElementsAnnotatedWith(Class) directly, but there is a bug
+      // in some versions of eclipse that cause that method to crash.
+      TypeElement annotationType = elements.getTypeElement(annotationClass.getCanonicalName());
+      if (annotationType != null) {
+        elementsByAnnotation.putAll(
+            annotationClass, roundEnv.getElementsAnnotatedWith(annotationType));
+      }
+    }
+    return elementsByAnnotation.build();
+  }
+
+  /**
+   * Returns the same elements as {@link #getElementsAnnotatedWith(RoundEnvironment)}, but finds
+   * them by visiting each root element of the round and the elements it contains only once.
+   */
+  private ImmutableSetMultimap<Class<? extends Annotation>, Element> indexAnnotatedElements(
+      RoundEnvironment roundEnv) {
+    Map<Element, Class<? extends Annotation>> annotationClassesByType =
+        new HashMap<Element, Class<? extends Annotation>>();
+    for (Class<? extends Annotation> annotationClass : getSupportedAnnotationClasses()) {
+      TypeElement annotationType = elements.getTypeElement(annotationClass.getCanonicalName());
+      if (annotationType != null) {
+        annotationClassesByType.put(annotationType, annotationClass);
+      }
+    }
+    ImmutableSetMultimap.Builder<Class<? extends Annotation>, Element> elementsByAnnotation =
+        ImmutableSetMultimap.builder();
+    if (!annotationClassesByType.isEmpty()) {
+      for (Element rootElement : roundEnv.getRootElements()) {
+        indexAnnotatedElements(rootElement, annotationClassesByType, elementsByAnnotation);
+      }
+    }
+    return elementsByAnnotation.build();
+  }
+
+  /**
+   * Adds {@code element} and the elements it contains to {@code elementsByAnnotation}, under each
+   * of the annotations in {@code annotationClassesByType} that they have. Like
+   * {@link RoundEnvironment#getElementsAnnotatedWith(TypeElement)}, this includes inherited
+   * annotations, type parameters, and the parameters of methods and constructors, but not the
+   * contents of packages.
+   */
+  private void indexAnnotatedElements(
+      Element element,
+      Map<Element, Class<? extends Annotation>> annotationClassesByType,
+      ImmutableSetMultimap.Builder<Class<? extends Annotation>, Element> elementsByAnnotation) {
+    for (AnnotationMirror annotation : elements.getAllAnnotationMirrors(element)) {
+      Class<? extends Annotation> annotationClass =
+          annotationClassesByType.get(annotation.getAnnotationType().asElement());
+      if (annotationClass != null) {
+        elementsByAnnotation.put(annotationClass, element);
+      }
+    }
+    if (element.getKind().equals(PACKAGE)) {
+      return;
+    }
+    if (element instanceof TypeElement) {
+      for (Element typeParameter : ((TypeElement) element).getTypeParameters()) {
+        indexAnnotatedElements(typeParameter, annotationClassesByType, elementsByAnnotation);
+      }
+    } else if (element instanceof ExecutableElement) {
+      ExecutableElement executable = (ExecutableElement) element;
+      for (Element typeParameter : executable.getTypeParameters()) {
+        indexAnnotatedElements(typeParameter, annotationClassesByType, elementsByAnnotation);
+      }
+      for (Element parameter : executable.getParameters()) {
+        indexAnnotatedElements(parameter, annotationClassesByType, elementsByAnnotation);
+      }
+    }
+    for (Element enclosedElement : element.getEnclosedElements()) {
+      indexAnnotatedElements(enclosedElement, annotationClassesByType, elementsByAnnotation);
+    }
+  }
+
   /** Processes the valid elements, including those previously deferred by each step. */
   private void process(ImmutableSetMultimap<Class<? extends Annotation>, Element> validElements) {
     for (ProcessingStep step : steps) {
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.common;
+
+import static com.google.auto.common.MoreElements.getPackage;
+import static com.google.auto.common.MoreElements.methodVisibleFromPackage;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Table;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Computes the same results as
+ * {@link MoreElements#getLocalAndInheritedMethods(TypeElement, Types, Elements)}, but remembers
+ * them, so that a processor that looks at the same types several times, or at many types with
+ * common ancestors, does not repeat the work. The methods that a type might inherit are built from
+ * the already-computed methods of its supertypes, rather than by visiting every ancestor again.
+ *
+ * <p>Whether one method overrides another depends on the type in which they are compared, so a
+ * method that is overridden in a supertype may not be considered overridden in a subtype. For
+ * that reason, what is shared between a type and its subtypes is the list of methods before
+ * overridden ones are removed, and the check for overriding is repeated for each type.
+ *
+ * <p>An instance must only be used during a single processing round, since the {@link TypeElement}
+ * and {@link ExecutableElement} instances that it caches are not guaranteed to be valid in later
+ * rounds. A processor would typically create a new instance at the start of each call to
+ * {@link javax.annotation.processing.Processor#process process}. Instances are not thread-safe.
+ */
+@Beta
+public final class LocalAndInheritedMethodsCache {
+  private final Overrides overrides;
+  private final Map<TypeElement, ImmutableSet<ExecutableElement>> localAndInheritedMethods =
+      new HashMap<TypeElement, ImmutableSet<ExecutableElement>>();
+
+  // Which methods of an ancestor are inherited depends on the package of the type that we started
+  // from, since package-private methods are only inherited within their package. So the methods of
+  // an ancestor are cached separately for each package that they were looked at from.
+  private final Table<PackageElement, TypeElement, ImmutableSet<ExecutableElement>>
+      visibleMethods = HashBasedTable.create();
+
+  /**
+   * Creates a cache that determines overriding in the same way as
+   * {@link MoreElements#getLocalAndInheritedMethods(TypeElement, Types, Elements)}.
+   */
+  public LocalAndInheritedMethodsCache(Types typeUtils) {
+    this.overrides = new Overrides.ExplicitOverrides(typeUtils);
+  }
+
+  /**
+   * Returns the set of all non-private methods from {@code type}, including methods that it
+   * inherits from its ancestors, exactly as
+   * {@link MoreElements#getLocalAndInheritedMethods(TypeElement, Types, Elements)} would.
+   */
+  public ImmutableSet<ExecutableElement> getLocalAndInheritedMethods(TypeElement type) {
+    ImmutableSet<ExecutableElement> methods = localAndInheritedMethods.get(type);
+    if (methods == null) {
+      SetMultimap<String, ExecutableElement> methodMap = LinkedHashMultimap.create();
+      for (ExecutableElement method : visibleMethods(getPackage(type), type)) {
+        methodMap.put(method.getSimpleName().toString(), method);
+      }
+      methods = MoreElements.removeOverridden(methodMap, type, overrides);
+      localAndInheritedMethods.put(type, methods);
+    }
+    return methods;
+  }
+
+  // Returns the instance methods from `type` and its ancestors that are visible to code in the
+  // package `pkg`, including methods that are overridden by other methods in the result. The order
+  // is the same as the one MoreElements uses, so methods in ancestor types always precede those in
+  // descendant types. Since that order visits the supertypes of `type` one after the other, the
+  // result for `type` is just the results for its supertypes followed by its own methods, without
+  // duplicates.
+  private ImmutableSet<ExecutableElement> visibleMethods(PackageElement pkg, TypeElement type) {
+    ImmutableSet<ExecutableElement> cached = visibleMethods.get(pkg, type);
+    if (cached != null) {
+      return cached;
+    }
+    Set<ExecutableElement> methods = new LinkedHashSet<ExecutableElement>();
+    for (TypeMirror superInterface : type.getInterfaces()) {
+      methods.addAll(visibleMethods(pkg, MoreTypes.asTypeElement(superInterface)));
+    }
+    if (type.getSuperclass().getKind() != TypeKind.NONE) {
+      methods.addAll(visibleMethods(pkg, MoreTypes.asTypeElement(type.getSuperclass())));
+    }
+    for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+      if (!method.getModifiers().contains(Modifier.STATIC)
+          && methodVisibleFromPackage(method, pkg)) {
+        methods.add(method);
+      }
+    }
+    ImmutableSet<ExecutableElement> result = ImmutableSet.copyOf(methods);
+    visibleMethods.put(pkg, type, result);
+    return result;
+  }
+}
@@ -19,11 +19,15 @@ package com.google.auto.common;
 import static javax.lang.model.element.ElementKind.PACKAGE;
 
 import com.google.common.annotations.Beta;
+import com.google.common.base.Equivalence;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import java.lang.annotation.Annotation;
 import java.util.Collection;
@@ -318,21 +322,32 @@ public final class MoreElements {
       TypeElement type, Overrides overrides) {
     SetMultimap<String, ExecutableElement> methodMap = LinkedHashMultimap.create();
     getLocalAndInheritedMethods(getPackage(type), type, methodMap);
+    return removeOverridden(methodMap, type, overrides);
+  }
+
+  // Returns the methods in `methodMap` that are not overridden, in `type`, by another method in
+  // `methodMap`. Within each group of methods with the same name, methods in ancestor types must
+  // precede those in descendant types.
+  static ImmutableSet<ExecutableElement> removeOverridden(
+      SetMultimap<String, ExecutableElement> methodMap, TypeElement type, Overrides overrides) {
     // Find methods that are overridden. We do this using `Elements.overrides`, which means
     // that it is inherently a quadratic operation, since we have to compare every method against
     // every other method. We reduce the performance impact by (a) grouping methods by name, since
-    // a method cannot override another method with a different name, and (b) making sure that
+    // a method cannot override another method with a different name, (b) further grouping methods
+    // with the same name by their erased signature, when that is known, since a method cannot
+    // override another method with a different erased signature either, and (c) making sure that
     // methods in ancestor types precede those in descendant types, which means we only have to
     // check a method against the ones that follow it in that order.
     Set<ExecutableElement> overridden = new LinkedHashSet<ExecutableElement>();
     for (Collection<ExecutableElement> methods : methodMap.asMap().values()) {
-      List<ExecutableElement> methodList = ImmutableList.copyOf(methods);
-      for (int i = 0; i < methodList.size(); i++) {
-        ExecutableElement methodI = methodList.get(i);
-        for (int j = i + 1; j < methodList.size(); j++) {
-          ExecutableElement methodJ = methodList.get(j);
-          if (overrides.overrides(methodJ, methodI, type)) {
-            overridden.add(methodI);
+      for (List<ExecutableElement> methodList : overrideCandidates(methods, type, overrides)) {
+        for (int i = 0; i < methodList.size(); i++) {
+          ExecutableElement methodI = methodList.get(i);
+          for (int j = i + 1; j < methodList.size(); j++) {
+            ExecutableElement methodJ = methodList.get(j);
+            if (overrides.overrides(methodJ, methodI, type)) {
+              overridden.add(methodI);
+            }
           }
         }
       }
@@ -342,6 +357,27 @@ public final class MoreElements {
     return ImmutableSet.copyOf(methods);
   }
 
+  // Splits `methods`, which all have the same name, into lists such that a method can only
+  // override methods in the same list. Each list preserves the order of `methods`. If the erased
+  // signature of any of the methods is unknown, the result is a single list of all of them.
+  private static Collection<List<ExecutableElement>> overrideCandidates(
+      Collection<ExecutableElement> methods, TypeElement type, Overrides overrides) {
+    List<ExecutableElement> methodList = ImmutableList.copyOf(methods);
+    if (methodList.size() < 2) {
+      return ImmutableList.of(methodList);
+    }
+    ListMultimap<List<Equivalence.Wrapper<TypeMirror>>, ExecutableElement> bySignature =
+        ArrayListMultimap.create();
+    for (ExecutableElement method : methodList) {
+      List<Equivalence.Wrapper<TypeMirror>> signature = overrides.erasedSignature(method, type);
+      if (signature == null) {
+        return ImmutableList.of(methodList);
+      }
+      bySignature.put(signature, method);
+    }
+    return Multimaps.asMap(bySignature).values();
+  }
+
   // Add to `methods` the instance methods from `type` that are visible to code in the
   // package `pkg`. This means all the instance methods from `type` itself and all instance methods
   // it inherits from its ancestors, except private methods and package-private methods in other
@@ -15,6 +15,7 @@
  */
 package com.google.auto.common;
 
+import com.google.common.base.Equivalence;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
@@ -52,6 +53,17 @@ abstract class Overrides {
   abstract boolean overrides(
       ExecutableElement overrider, ExecutableElement overridden, TypeElement in);
 
+  /**
+   * Returns the erased parameter types of {@code method} as a member of {@code in}, or null if
+   * they are not known. If two methods with the same name have non-null erased signatures that are
+   * different, then neither overrides the other in {@code in}, so callers can avoid calling
+   * {@link #overrides} for them. This implementation always returns null.
+   */
+  List<Equivalence.Wrapper<TypeMirror>> erasedSignature(
+      ExecutableElement method, TypeElement in) {
+    return null;
+  }
+
   static class NativeOverrides extends Overrides {
     private final Elements elementUtils;
 
@@ -172,6 +184,32 @@ abstract class Overrides {
       }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If one method overrides another then {@link #isSubsignature} is true, which means that
+     * the parameter types of the two methods as members of {@code in} are the same, or that those
+     * of the overrider are the erasure of those of the overridden method. Either way, their
+     * erasures are the same. We return null in the same cases where {@code isSubsignature} falls
+     * back on comparing {@link #erasedParameterTypes}.
+     */
+    @Override
+    List<Equivalence.Wrapper<TypeMirror>> erasedSignature(
+        ExecutableElement method, TypeElement in) {
+      DeclaredType inType = MoreTypes.asDeclared(in.asType());
+      ExecutableType executable;
+      try {
+        executable = MoreTypes.asExecutable(typeUtils.asMemberOf(inType, method));
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+      ImmutableList.Builder<Equivalence.Wrapper<TypeMirror>> signature = ImmutableList.builder();
+      for (TypeMirror parameterType : executable.getParameterTypes()) {
+        signature.add(MoreTypes.equivalence().wrap(typeUtils.erasure(parameterType)));
+      }
+      return signature.build();
+    }
+
     private boolean isSubsignature(
         ExecutableElement overrider, ExecutableElement overridden, TypeElement in) {
       DeclaredType inType = MoreTypes.asDeclared(in.asType());
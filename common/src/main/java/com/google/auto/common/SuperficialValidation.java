@@ -15,6 +15,11 @@
  */
 package com.google.auto.common;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.lang.model.element.AnnotationMirror;
@@ -47,61 +52,117 @@ import javax.lang.model.util.SimpleTypeVisitor6;
  */
 public final class SuperficialValidation {
   public static boolean validateElements(Iterable<? extends Element> elements) {
-    for (Element element : elements) {
-      if (!validateElement(element)) {
-        return false;
+    return new Cache().validateElements(elements);
+  }
+
+  public static boolean validateElement(Element element) {
+    return new Cache().validateElement(element);
+  }
+
+  /**
+   * Validates elements like {@link SuperficialValidation#validateElement}, but remembers the
+   * result for each element, so that an element is validated at most once however many times it
+   * is asked about. When an element is valid, so are all of the elements that were visited in
+   * validating it, such as its enclosed elements, and those are remembered too. So, for example,
+   * validating a nested class after its enclosing class has been validated costs nothing.
+   *
+   * <p>Elements are visited with an explicit stack rather than by recursion, so deeply nested
+   * classes do not lead to a deep call stack.
+   *
+   * <p>Whether an element is valid can change between processing rounds, when missing types are
+   * generated, so an instance should only be used during a single round.
+   */
+  static final class Cache {
+    private final Map<Element, Boolean> results = new HashMap<Element, Boolean>();
+
+    boolean validateElements(Iterable<? extends Element> elements) {
+      for (Element element : elements) {
+        if (!validateElement(element)) {
+          return false;
+        }
       }
+      return true;
+    }
+
+    boolean validateElement(Element element) {
+      Boolean cached = results.get(element);
+      if (cached != null) {
+        return cached;
+      }
+      Deque<Element> pending = new ArrayDeque<Element>();
+      List<Element> visited = new ArrayList<Element>();
+      pending.add(element);
+      while (!pending.isEmpty()) {
+        Element e = pending.removeLast();
+        Boolean known = results.get(e);
+        if (known == null) {
+          visited.add(e);
+          known = e.accept(ELEMENT_VALIDATING_VISITOR, pending);
+        }
+        if (!known) {
+          // We don't know which of the other visited elements are invalid too, so we only
+          // remember the failing element and the one we were asked about.
+          results.put(e, false);
+          results.put(element, false);
+          return false;
+        }
+      }
+      for (Element e : visited) {
+        results.put(e, true);
+      }
+      return true;
     }
-    return true;
   }
 
-  private static final ElementVisitor<Boolean, Void> ELEMENT_VALIDATING_VISITOR =
-      new AbstractElementVisitor6<Boolean, Void>() {
-        @Override public Boolean visitPackage(PackageElement e, Void p) {
+  /**
+   * Checks the parts of an element that are not themselves elements, and adds to the given
+   * collection the elements that must also be valid for this one to be, such as its enclosed
+   * elements and parameters.
+   */
+  private static final ElementVisitor<Boolean, Collection<Element>> ELEMENT_VALIDATING_VISITOR =
+      new AbstractElementVisitor6<Boolean, Collection<Element>>() {
+        @Override public Boolean visitPackage(PackageElement e, Collection<Element> pending) {
           // don't validate enclosed elements because it will return types in the package
           return validateAnnotations(e.getAnnotationMirrors());
         }
 
-        @Override public Boolean visitType(TypeElement e, Void p) {
-          return isValidBaseElement(e)
-              && validateElements(e.getTypeParameters())
+        @Override public Boolean visitType(TypeElement e, Collection<Element> pending) {
+          pending.addAll(e.getTypeParameters());
+          return isValidBaseElement(e, pending)
               && validateTypes(e.getInterfaces())
               && validateType(e.getSuperclass());
         }
 
-        @Override public Boolean visitVariable(VariableElement e, Void p) {
-          return isValidBaseElement(e);
+        @Override public Boolean visitVariable(VariableElement e, Collection<Element> pending) {
+          return isValidBaseElement(e, pending);
         }
 
-        @Override public Boolean visitExecutable(ExecutableElement e, Void p) {
+        @Override public Boolean visitExecutable(ExecutableElement e, Collection<Element> pending) {
+          pending.addAll(e.getTypeParameters());
+          pending.addAll(e.getParameters());
           AnnotationValue defaultValue = e.getDefaultValue();
-          return isValidBaseElement(e)
+          return isValidBaseElement(e, pending)
               && (defaultValue == null || validateAnnotationValue(defaultValue, e.getReturnType()))
               && validateType(e.getReturnType())
-              && validateTypes(e.getThrownTypes())
-              && validateElements(e.getTypeParameters())
-              && validateElements(e.getParameters());
+              && validateTypes(e.getThrownTypes());
         }
 
-        @Override public Boolean visitTypeParameter(TypeParameterElement e, Void p) {
-          return isValidBaseElement(e)
+        @Override public Boolean visitTypeParameter(
+            TypeParameterElement e, Collection<Element> pending) {
+          return isValidBaseElement(e, pending)
               && validateTypes(e.getBounds());
         }
 
-        @Override public Boolean visitUnknown(Element e, Void p) {
+        @Override public Boolean visitUnknown(Element e, Collection<Element> pending) {
           // just assume that unknown elements are OK
           return true;
         }
       };
 
-  public static boolean validateElement(Element element) {
-    return element.accept(ELEMENT_VALIDATING_VISITOR, null);
-  }
-
-  private static boolean isValidBaseElement(Element e) {
+  private static boolean isValidBaseElement(Element e, Collection<Element> pending) {
+    pending.addAll(e.getEnclosedElements());
     return validateType(e.asType())
-        && validateAnnotations(e.getAnnotationMirrors())
-        && validateElements(e.getEnclosedElements());
+        && validateAnnotations(e.getAnnotationMirrors());
   }
 
   private static boolean validateTypes(Iterable<? extends TypeMirror> types) {
@@ -32,6 +32,7 @@ import java.lang.annotation.Annotation;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import javax.annotation.processing.Filer;
 import javax.lang.model.SourceVersion;
@@ -248,6 +249,84 @@ public class BasicAnnotationProcessorTest {
     assertThat(requiresGeneratedCodeProcessor.rejectedRounds).isEqualTo(0);
   }
 
+  /**
+   * Records the elements that its step is given for {@link GeneratesCode}, finding them in one pass
+   * over the root elements if {@code indexInOnePass} is true.
+   */
+  public class RecordingProcessor extends BasicAnnotationProcessor {
+    private final boolean indexInOnePass;
+    private final Set<String> recorded = new LinkedHashSet<String>();
+
+    RecordingProcessor(boolean indexInOnePass) {
+      this.indexInOnePass = indexInOnePass;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return SourceVersion.latestSupported();
+    }
+
+    @Override
+    protected boolean indexAnnotatedElementsInOnePass() {
+      return indexInOnePass;
+    }
+
+    @Override
+    protected Iterable<? extends ProcessingStep> initSteps() {
+      return ImmutableSet.of(
+          new ProcessingStep() {
+            @Override
+            public Set<Element> process(
+                SetMultimap<Class<? extends Annotation>, Element> elementsByAnnotation) {
+              for (Element element : elementsByAnnotation.get(GeneratesCode.class)) {
+                recorded.add(element.getKind() + " " + element.getSimpleName());
+              }
+              return ImmutableSet.of();
+            }
+
+            @Override
+            public Set<? extends Class<? extends Annotation>> annotations() {
+              return ImmutableSet.of(GeneratesCode.class);
+            }
+          });
+    }
+  }
+
+  @Test
+  public void indexAnnotatedElementsInOnePass() {
+    String annotation = "@" + GeneratesCode.class.getCanonicalName();
+    JavaFileObject classAFileObject = JavaFileObjects.forSourceLines("test.ClassA",
+        "package test;",
+        "",
+        annotation,
+        "public class ClassA {",
+        "  " + annotation + " int myField;",
+        "  " + annotation + " ClassA(" + annotation + " int constructorParam) {}",
+        "  public void myMethod(" + annotation + " int methodParam) {}",
+        "",
+        "  " + annotation,
+        "  static class Nested {",
+        "    " + annotation + " void nestedMethod() {}",
+        "  }",
+        "}");
+    RecordingProcessor onePass = new RecordingProcessor(true);
+    RecordingProcessor perAnnotation = new RecordingProcessor(false);
+    assertAbout(javaSource())
+        .that(classAFileObject)
+        .processedWith(onePass, perAnnotation)
+        .compilesWithoutError();
+    assertThat(perAnnotation.recorded)
+        .containsExactly(
+            "CLASS ClassA",
+            "FIELD myField",
+            "CONSTRUCTOR <init>",
+            "PARAMETER constructorParam",
+            "PARAMETER methodParam",
+            "CLASS Nested",
+            "METHOD nestedMethod");
+    assertThat(onePass.recorded).containsExactlyElementsIn(perAnnotation.recorded);
+  }
+
   @Test
   public void properlyDefersProcessing_rejectsElement() {
     JavaFileObject classAFileObject = JavaFileObjects.forSourceLines("test.ClassA",
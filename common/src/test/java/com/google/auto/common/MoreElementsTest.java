@@ -271,6 +271,39 @@ public class MoreElementsTest {
         getMethod(Child.class, "buh", intMirror, intMirror));
   }
 
+  private abstract static class GenericParent<T> {
+    abstract void of(T t);
+    abstract void of(String s, T t);
+    abstract void of(int i);
+  }
+
+  private abstract static class StringChild extends GenericParent<String> {
+    @Override
+    void of(String s) {}
+
+    @Override
+    void of(String s, String t) {}
+  }
+
+  // The methods of GenericParent only have the same erased signatures as the ones that override
+  // them when they are viewed as members of StringChild.
+  @Test
+  public void getLocalAndInheritedMethods_GenericOverloads() {
+    Elements elements = compilation.getElements();
+    Types types = compilation.getTypes();
+    TypeMirror intMirror = types.getPrimitiveType(TypeKind.INT);
+    TypeMirror stringMirror = elements.getTypeElement(String.class.getCanonicalName()).asType();
+    TypeElement childType = elements.getTypeElement(StringChild.class.getCanonicalName());
+    Set<ExecutableElement> childTypeMethods =
+        MoreElements.getLocalAndInheritedMethods(childType, types, elements);
+    Set<ExecutableElement> nonObjectMethods =
+        Sets.difference(childTypeMethods, visibleMethodsFromObject());
+    assertThat(nonObjectMethods).containsExactly(
+        getMethod(GenericParent.class, "of", intMirror),
+        getMethod(StringChild.class, "of", stringMirror),
+        getMethod(StringChild.class, "of", stringMirror, stringMirror));
+  }
+
   static class Injectable {}
 
   public static class MenuManager {
@@ -306,6 +339,26 @@ public class MoreElementsTest {
     assertThat(method.getParameters()).isEmpty();
   }
 
+  @Test
+  public void getLocalAndInheritedMethods_Cached() {
+    Elements elements = compilation.getElements();
+    Types types = compilation.getTypes();
+    LocalAndInheritedMethodsCache cache = new LocalAndInheritedMethodsCache(types);
+    // AbstractList inherits spliterator() both from List and, through AbstractCollection, from
+    // Collection, so its methods can't simply be merged from those of its supertypes.
+    for (Class<?> c :
+        Arrays.asList(
+            AbstractList.class, Child.class, ParentClass.class, Main.ParentComponent.class)) {
+      TypeElement type = elements.getTypeElement(c.getCanonicalName());
+      ImmutableSet<ExecutableElement> cachedMethods = cache.getLocalAndInheritedMethods(type);
+      assertThat(cachedMethods)
+          .containsExactlyElementsIn(
+              MoreElements.getLocalAndInheritedMethods(type, types, elements))
+          .inOrder();
+      assertThat(cache.getLocalAndInheritedMethods(type)).isSameAs(cachedMethods);
+    }
+  }
+
   private Set<ExecutableElement> visibleMethodsFromObject() {
     Types types = compilation.getTypes();
     TypeMirror intMirror = types.getPrimitiveType(TypeKind.INT);
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.common;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.sun.source.util.JavacTask;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.JavaCompiler;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how long {@link MoreElements#getLocalAndInheritedMethods} takes for the most derived
+ * class of a deep synthetic hierarchy. Each class in the hierarchy declares ten methods with just
+ * three names: half of them override methods of its superclass, and half of them are new
+ * overloads. With 50 levels, that is 500 methods, and at least 100 methods share each name. This
+ * is not a test, and it is not run as part of the build. Run it with {@link #main} once the test
+ * classes have been compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OverridesBenchmark {
+  @Param({"10", "50"})
+  public int levels;
+
+  private Types typeUtils;
+  private Elements elementUtils;
+  private TypeElement leaf;
+
+  @Setup
+  public void setUp() throws IOException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    JavacTask task =
+        (JavacTask)
+            compiler.getTask(
+                null,
+                null,
+                null,
+                ImmutableList.of("-proc:none"),
+                null,
+                ImmutableList.of(new Source("bench.Hierarchy", hierarchySource(levels))));
+    task.analyze();
+    typeUtils = task.getTypes();
+    elementUtils = task.getElements();
+    leaf = elementUtils.getTypeElement("bench.Hierarchy.Level" + (levels - 1));
+  }
+
+  @Benchmark
+  public ImmutableSet<ExecutableElement> explicitOverrides() {
+    return MoreElements.getLocalAndInheritedMethods(leaf, typeUtils, elementUtils);
+  }
+
+  @Benchmark
+  @SuppressWarnings("deprecation")
+  public ImmutableSet<ExecutableElement> nativeOverrides() {
+    return MoreElements.getLocalAndInheritedMethods(leaf, elementUtils);
+  }
+
+  // Level0<T> declares of(T), which Level1 extends Level0<String> overrides with of(String), so
+  // some overrides can only be found by looking at the methods as members of the leaf class.
+  static String hierarchySource(int levels) {
+    StringBuilder source = new StringBuilder("package bench;\n\npublic class Hierarchy {\n");
+    source.append("  public abstract static class Level0<T> {\n");
+    source.append("    public Object of(T t) { return t; }\n");
+    appendMethods(source, "Level0");
+    source.append("  }\n");
+    for (int i = 1; i < levels; i++) {
+      String name = "Level" + i;
+      String parent = (i == 1) ? "Level0<String>" : "Level" + (i - 1);
+      source.append("  public abstract static class ").append(name);
+      source.append(" extends ").append(parent).append(" {\n");
+      appendMethods(source, name);
+      source.append("  }\n");
+    }
+    return source.append("}\n").toString();
+  }
+
+  private static void appendMethods(StringBuilder source, String type) {
+    String[] overriding = {
+      "of(String x)", "of(int x)", "copyOf(Object x)", "copyOf(Iterable<?> x)", "builder()",
+    };
+    String[] overloads = {
+      "of(" + type + " x)",
+      "of(" + type + " x, int y)",
+      "copyOf(" + type + " x)",
+      "copyOf(" + type + "[] x)",
+      "builder(" + type + " x)",
+    };
+    for (String method : ImmutableList.<String>builder().add(overriding).add(overloads).build()) {
+      source.append("    public Object ").append(method).append(" { return null; }\n");
+    }
+  }
+
+  private static class Source extends SimpleJavaFileObject {
+    private final String text;
+
+    Source(String className, String text) {
+      super(URI.create("string:///" + className.replace('.', '/') + ".java"), Kind.SOURCE);
+      this.text = text;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return text;
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(OverridesBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
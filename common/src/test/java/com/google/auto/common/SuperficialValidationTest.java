@@ -274,6 +274,42 @@ public class SuperficialValidationTest {
   }
   */
 
+  @Test
+  public void cachedValidation() {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "test.Outer",
+        "package test;",
+        "",
+        "final class Outer {",
+        "  static class Valid {",
+        "    int x;",
+        "  }",
+        "",
+        "  static class Invalid {",
+        "    MissingType x;",
+        "  }",
+        "}");
+    assertAbout(javaSource())
+        .that(javaFileObject)
+        .processedWith(new AssertingProcessor() {
+          @Override void runAssertions() {
+            SuperficialValidation.Cache cache = new SuperficialValidation.Cache();
+            TypeElement outerElement =
+                processingEnv.getElementUtils().getTypeElement("test.Outer");
+            TypeElement validElement =
+                processingEnv.getElementUtils().getTypeElement("test.Outer.Valid");
+            TypeElement invalidElement =
+                processingEnv.getElementUtils().getTypeElement("test.Outer.Invalid");
+            assertThat(cache.validateElement(validElement)).isTrue();
+            assertThat(cache.validateElement(outerElement)).isFalse();
+            assertThat(cache.validateElement(invalidElement)).isFalse();
+            assertThat(cache.validateElement(validElement)).isTrue();
+            assertThat(cache.validateElement(outerElement)).isFalse();
+          }
+        })
+        .failsToCompile();
+  }
+
   private abstract static class AssertingProcessor extends AbstractProcessor {
     @Override
     public Set<String> getSupportedAnnotationTypes() {
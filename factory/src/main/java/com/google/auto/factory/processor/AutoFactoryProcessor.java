@@ -56,6 +56,10 @@ import javax.tools.Diagnostic.Kind;
 /**
  * The annotation processor that generates factories for {@link AutoFactory} annotations.
  *
+ * <p>Each generated factory names every class that contributed to it as an originating element.
+ * Since classes can share a factory, this processor is declared to Gradle as an aggregating
+ * incremental processor rather than an isolating one.
+ *
  * @author Gregory Kick
  */
 @AutoService(Processor.class)
@@ -30,6 +30,7 @@ import java.util.HashSet;
 import java.util.Map.Entry;
 import java.util.Set;
 import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.TypeMirror;
 
 /**
@@ -56,6 +57,19 @@ abstract class FactoryDescriptor {
   abstract boolean allowSubclasses();
   abstract ImmutableMap<Key, ProviderField> providers();
 
+  /**
+   * The classes whose {@link com.google.auto.factory.AutoFactory @AutoFactory} declarations
+   * contributed methods to this factory. Several classes can share one factory through its
+   * {@code className}, so there may be more than one.
+   */
+  final ImmutableSet<TypeElement> originatingTypes() {
+    ImmutableSet.Builder<TypeElement> originatingTypes = ImmutableSet.builder();
+    for (FactoryMethodDescriptor methodDescriptor : methodDescriptors()) {
+      originatingTypes.add(methodDescriptor.declaration().targetType());
+    }
+    return originatingTypes.build();
+  }
+
   private static class UniqueNameSet {
     private final Set<String> uniqueNames = new HashSet<String>();
 
@@ -45,6 +45,7 @@ import javax.annotation.processing.Filer;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.PrimitiveType;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.SimpleTypeVisitor7;
@@ -75,6 +76,9 @@ final class FactoryWriter {
     if (descriptor.publicType()) {
       factory.addModifiers(PUBLIC);
     }
+    for (TypeElement originatingType : descriptor.originatingTypes()) {
+      factory.addOriginatingElement(originatingType);
+    }
 
     factory.superclass(TypeName.get(descriptor.extendingType()));
     for (TypeMirror implementingType : descriptor.implementingTypes()) {
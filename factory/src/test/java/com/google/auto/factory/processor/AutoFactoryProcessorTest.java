@@ -16,12 +16,28 @@
 package com.google.auto.factory.processor;
 
 import static com.google.common.truth.Truth.assertAbout;
+import static com.google.common.truth.Truth.assert_;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
 import static com.google.testing.compile.JavaSourcesSubject.assertThat;
 import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.io.Resources;
 import com.google.testing.compile.JavaFileObjects;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
 import javax.tools.JavaFileObject;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -395,4 +411,104 @@ public class AutoFactoryProcessorTest {
         .and()
         .generatesSources(JavaFileObjects.forResource("expected/SimpleClassVarargsFactory.java"));
   }
+
+  @Test public void originatingElementsOfSharedFactory() {
+    SetMultimap<String, String> originatingElements = HashMultimap.create();
+    assertThat(
+            JavaFileObjects.forSourceLines("tests.SharedFactoryClassA",
+                "package tests;",
+                "",
+                "import com.google.auto.factory.AutoFactory;",
+                "",
+                "@AutoFactory(className = \"SharedFactory\")",
+                "final class SharedFactoryClassA {",
+                "  SharedFactoryClassA(String string) {}",
+                "}"),
+            JavaFileObjects.forSourceLines("tests.SharedFactoryClassB",
+                "package tests;",
+                "",
+                "import com.google.auto.factory.AutoFactory;",
+                "",
+                "@AutoFactory(className = \"SharedFactory\")",
+                "final class SharedFactoryClassB {",
+                "  SharedFactoryClassB(int number) {}",
+                "}"))
+        .processedWith(
+            recordingOriginatingElements(new AutoFactoryProcessor(), originatingElements))
+        .compilesWithoutError();
+    assert_().that(originatingElements).isEqualTo(ImmutableSetMultimap.of(
+        "tests.SharedFactory", "tests.SharedFactoryClassA",
+        "tests.SharedFactory", "tests.SharedFactoryClassB"));
+  }
+
+  @Test public void gradleDescriptor() throws IOException {
+    String descriptor = Resources.toString(
+        Resources.getResource("META-INF/gradle/incremental.annotation.processors"),
+        Charsets.UTF_8);
+    assert_().that(descriptor.trim())
+        .isEqualTo(AutoFactoryProcessor.class.getName() + ",aggregating");
+  }
+
+  /**
+   * Returns a processor that runs {@code processor} with a {@link Filer} that records the names of
+   * the originating elements of each source file that it creates, keyed by the file's name.
+   */
+  private static Processor recordingOriginatingElements(
+      Processor processor, final SetMultimap<String, String> originatingElements) {
+    return forwarding(Processor.class, processor, new InvocationHandler() {
+      @Override
+      public Object invoke(Object delegate, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("init")) {
+          args = new Object[] {
+            recordingEnvironment((ProcessingEnvironment) args[0], originatingElements)
+          };
+        }
+        return method.invoke(delegate, args);
+      }
+    });
+  }
+
+  private static ProcessingEnvironment recordingEnvironment(
+      ProcessingEnvironment processingEnv, final SetMultimap<String, String> originatingElements) {
+    final Filer recordingFiler = forwarding(Filer.class, processingEnv.getFiler(),
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object filer, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("createSourceFile")) {
+              for (Element element : (Element[]) args[1]) {
+                originatingElements.put(args[0].toString(),
+                    ((TypeElement) element).getQualifiedName().toString());
+              }
+            }
+            return method.invoke(filer, args);
+          }
+        });
+    return forwarding(ProcessingEnvironment.class, processingEnv, new InvocationHandler() {
+      @Override
+      public Object invoke(Object env, Method method, Object[] args) throws Throwable {
+        return method.getName().equals("getFiler") ? recordingFiler : method.invoke(env, args);
+      }
+    });
+  }
+
+  /**
+   * Returns a proxy that calls {@code handler} with {@code delegate} in place of the proxy, and
+   * rethrows the exceptions of the methods that it invokes.
+   */
+  private static <T> T forwarding(
+      Class<T> type, final T delegate, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(
+        AutoFactoryProcessorTest.class.getClassLoader(),
+        new Class<?>[] {type},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            try {
+              return handler.invoke(delegate, method, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        }));
+  }
 }
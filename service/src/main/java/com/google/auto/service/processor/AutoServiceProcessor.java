@@ -26,7 +26,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
@@ -42,6 +43,7 @@ import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
+import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic.Kind;
 import javax.tools.FileObject;
@@ -51,6 +53,13 @@ import javax.tools.StandardLocation;
  * Processes {@link AutoService} annotations and generates the service provider
  * configuration files described in {@link java.util.ServiceLoader}.
  * <p>
+ * Each configuration file is written from scratch, listing exactly the
+ * {@link AutoService} classes seen in this compilation, and every one of those
+ * classes is an originating element of the file. Entries from an earlier
+ * version of the file are not carried over, so a provider that is deleted or
+ * no longer annotated disappears from it. This is what Gradle expects of an
+ * aggregating annotation processor, which is how this processor is declared.
+ * <p>
  * Processor Options:<ul>
  *   <li>debug - turns on debug statements</li>
  * </ul>
@@ -68,6 +77,13 @@ public class AutoServiceProcessor extends AbstractProcessor {
    */
   private Multimap<String, String> providers = HashMultimap.create();
 
+  /**
+   * Maps the class names of service provider interfaces to the qualified names
+   * of the {@link AutoService} classes that implement them, so that those
+   * classes can be given as the originating elements of the configuration file.
+   */
+  private Multimap<String, String> providerElements = HashMultimap.create();
+
   @Override
   public ImmutableSet<String> getSupportedAnnotationTypes() {
     return ImmutableSet.of(AutoService.class.getName());
@@ -147,47 +163,34 @@ public class AutoServiceProcessor extends AbstractProcessor {
       log("provider implementer binary name: " + providerImplementerName);
 
       providers.put(providerTypeName, providerImplementerName);
+      providerElements.put(
+          providerTypeName, providerImplementer.getQualifiedName().toString());
     }
   }
 
   private void generateConfigFiles() {
     Filer filer = processingEnv.getFiler();
+    Elements elements = processingEnv.getElementUtils();
 
     for (String providerInterface : providers.keySet()) {
       String resourceFile = "META-INF/services/" + providerInterface;
       log("Working on resource file: " + resourceFile);
       try {
-        SortedSet<String> allServices = Sets.newTreeSet();
-        try {
-          // would like to be able to print the full path
-          // before we attempt to get the resource in case the behavior
-          // of filer.getResource does change to match the spec, but there's
-          // no good way to resolve CLASS_OUTPUT without first getting a resource.
-          FileObject existingFile = filer.getResource(StandardLocation.CLASS_OUTPUT, "",
-              resourceFile);
-          log("Looking for existing resource file at " + existingFile.toUri());
-          Set<String> oldServices = ServicesFiles.readServiceFile(existingFile.openInputStream());
-          log("Existing service entries: " + oldServices);
-          allServices.addAll(oldServices);
-        } catch (IOException e) {
-          // According to the javadoc, Filer.getResource throws an exception
-          // if the file doesn't already exist.  In practice this doesn't
-          // appear to be the case.  Filer.getResource will happily return a
-          // FileObject that refers to a non-existent file but will throw
-          // IOException if you try to open an input stream for it.
-          log("Resource file did not already exist.");
-        }
-
-        Set<String> newServices = new HashSet<String>(providers.get(providerInterface));
-        if (allServices.containsAll(newServices)) {
-          log("No new service entries being added.");
-          return;
+        SortedSet<String> allServices = Sets.newTreeSet(providers.get(providerInterface));
+        log("Service file contents: " + allServices);
+
+        // The elements that we saw in earlier rounds are not guaranteed to be
+        // valid in this last round, so look them up again by name.
+        List<Element> originatingElements = new ArrayList<Element>();
+        for (String providerElement : Sets.newTreeSet(providerElements.get(providerInterface))) {
+          TypeElement providerImplementer = elements.getTypeElement(providerElement);
+          if (providerImplementer != null) {
+            originatingElements.add(providerImplementer);
+          }
         }
 
-        allServices.addAll(newServices);
-        log("New service file contents: " + allServices);
         FileObject fileObject = filer.createResource(StandardLocation.CLASS_OUTPUT, "",
-            resourceFile);
+            resourceFile, originatingElements.toArray(new Element[0]));
         OutputStream out = fileObject.openOutputStream();
         ServicesFiles.writeServiceFile(allServices, out);
         out.close();
@@ -19,9 +19,33 @@ import static com.google.common.truth.Truth.assert_;
 import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
 
 import com.google.auto.service.processor.AutoServiceProcessor;
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
 import com.google.testing.compile.JavaFileObjects;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Arrays;
+import java.util.List;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -30,20 +54,137 @@ import org.junit.runners.JUnit4;
  */
 @RunWith(JUnit4.class)
 public class AutoServiceProcessorTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final List<JavaFileObject> SOURCES = Arrays.asList(
+      JavaFileObjects.forResource("test/SomeService.java"),
+      JavaFileObjects.forResource("test/SomeServiceProvider1.java"),
+      JavaFileObjects.forResource("test/SomeServiceProvider2.java"),
+      JavaFileObjects.forResource("test/Enclosing.java"),
+      JavaFileObjects.forResource("test/AnotherService.java"),
+      JavaFileObjects.forResource("test/AnotherServiceProvider.java"));
+
   @Test
   public void autoService() {
     assert_().about(javaSources())
-        .that(Arrays.asList(
-            JavaFileObjects.forResource("test/SomeService.java"),
-            JavaFileObjects.forResource("test/SomeServiceProvider1.java"),
-            JavaFileObjects.forResource("test/SomeServiceProvider2.java"),
-            JavaFileObjects.forResource("test/Enclosing.java"),
-            JavaFileObjects.forResource("test/AnotherService.java"),
-            JavaFileObjects.forResource("test/AnotherServiceProvider.java")))
+        .that(SOURCES)
         .processedWith(new AutoServiceProcessor())
         .compilesWithoutError()
         .and().generatesFiles(
             JavaFileObjects.forResource("META-INF/services/test.SomeService"),
             JavaFileObjects.forResource("META-INF/services/test.AnotherService"));
   }
+
+  /**
+   * The service files are written from scratch, so an entry that an earlier
+   * compilation left in the output, for a class that is no longer annotated,
+   * does not survive.
+   */
+  @Test
+  public void staleEntriesAreDropped() throws IOException {
+    File classOutput = temporaryFolder.newFolder("classes");
+    File serviceFile = new File(classOutput, "META-INF/services/test.SomeService");
+    Files.createParentDirs(serviceFile);
+    Files.write("test.RemovedProvider\ntest.SomeServiceProvider1\n", serviceFile, Charsets.UTF_8);
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    StandardJavaFileManager fileManager =
+        compiler.getStandardFileManager(null, null, Charsets.UTF_8);
+    fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(classOutput));
+    JavaCompiler.CompilationTask task =
+        compiler.getTask(null, fileManager, null, null, null, SOURCES);
+    task.setProcessors(Arrays.asList(new AutoServiceProcessor()));
+    assert_().that(task.call()).isTrue();
+    fileManager.close();
+
+    assert_().that(Files.readLines(serviceFile, Charsets.UTF_8))
+        .isEqualTo(Arrays.asList(
+            "test.Enclosing$NestedSomeServiceProvider",
+            "test.SomeServiceProvider1",
+            "test.SomeServiceProvider2"));
+  }
+
+  /**
+   * Each service file is created with every class that contributes an entry to
+   * it as an originating element, so that a build tool knows which sources it
+   * depends on.
+   */
+  @Test
+  public void originatingElements() {
+    final SetMultimap<String, String> originatingElements = HashMultimap.create();
+    AutoServiceProcessor processor = new AutoServiceProcessor() {
+      @Override
+      public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(recordingOriginatingElements(processingEnv, originatingElements));
+      }
+    };
+    assert_().about(javaSources())
+        .that(SOURCES)
+        .processedWith(processor)
+        .compilesWithoutError();
+    assert_().that(originatingElements).isEqualTo(ImmutableSetMultimap.of(
+        "META-INF/services/test.SomeService", "test.Enclosing.NestedSomeServiceProvider",
+        "META-INF/services/test.SomeService", "test.SomeServiceProvider1",
+        "META-INF/services/test.SomeService", "test.SomeServiceProvider2",
+        "META-INF/services/test.AnotherService", "test.AnotherServiceProvider"));
+  }
+
+  /**
+   * Returns a {@link ProcessingEnvironment} like the given one, except that its
+   * {@link Filer} records the names of the originating elements of each
+   * resource that is created, keyed by the resource's name.
+   */
+  private static ProcessingEnvironment recordingOriginatingElements(
+      final ProcessingEnvironment processingEnv,
+      final SetMultimap<String, String> originatingElements) {
+    final Filer recordingFiler = forwarding(Filer.class, processingEnv.getFiler(),
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object filer, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("createResource")) {
+              for (Element element : (Element[]) args[3]) {
+                originatingElements.put(args[2].toString(),
+                    ((TypeElement) element).getQualifiedName().toString());
+              }
+            }
+            return method.invoke(filer, args);
+          }
+        });
+    return forwarding(ProcessingEnvironment.class, processingEnv, new InvocationHandler() {
+      @Override
+      public Object invoke(Object env, Method method, Object[] args) throws Throwable {
+        return method.getName().equals("getFiler") ? recordingFiler : method.invoke(env, args);
+      }
+    });
+  }
+
+  /**
+   * Returns a proxy that calls {@code handler} with {@code delegate} in place
+   * of the proxy, and rethrows the exceptions of the methods that it invokes.
+   */
+  private static <T> T forwarding(
+      Class<T> type, final T delegate, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(
+        AutoServiceProcessorTest.class.getClassLoader(),
+        new Class<?>[] {type},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            try {
+              return handler.invoke(delegate, method, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        }));
+  }
+
+  @Test
+  public void gradleDescriptor() throws IOException {
+    String descriptor = Resources.toString(
+        Resources.getResource("META-INF/gradle/incremental.annotation.processors"),
+        Charsets.UTF_8);
+    assert_().that(descriptor.trim())
+        .isEqualTo(AutoServiceProcessor.class.getName() + ",aggregating");
+  }
 }
\ No newline at end of file
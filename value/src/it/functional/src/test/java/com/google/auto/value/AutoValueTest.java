@@ -135,6 +135,102 @@ public class AutoValueTest {
         instance.toString());
   }
 
+  static class HashCounter {
+    int hashCodeCalls;
+
+    @Override
+    public int hashCode() {
+      hashCodeCalls++;
+      return 17;
+    }
+  }
+
+  @AutoValue
+  @AutoValue.CacheHashCode
+  abstract static class CachedHashCode {
+    // With the get prefix, this property is called hashCode, which must not clash with the field
+    // where the hash code is cached.
+    abstract int getHashCode();
+    abstract HashCounter getCounter();
+
+    static CachedHashCode create(int hashCode, HashCounter counter) {
+      return new AutoValue_AutoValueTest_CachedHashCode(hashCode, counter);
+    }
+  }
+
+  @Test
+  public void testCacheHashCode() {
+    HashCounter counter = new HashCounter();
+    CachedHashCode instance = CachedHashCode.create(23, counter);
+    int hashCode = instance.hashCode();
+    assertEquals(hashCode, instance.hashCode());
+    assertEquals(1, counter.hashCodeCalls);
+    assertEquals(23, instance.getHashCode());
+
+    CachedHashCode different = CachedHashCode.create(24, counter);
+    different.hashCode();
+    // Both hash codes are cached and they differ, so equals doesn't need to compare properties.
+    assertFalse(instance.equals(different));
+    new EqualsTester()
+        .addEqualityGroup(instance, CachedHashCode.create(23, counter))
+        .addEqualityGroup(different)
+        .testEquals();
+  }
+
+  @AutoValue
+  @AutoValue.Intern
+  abstract static class Interned {
+    abstract String name();
+    abstract ImmutableList<Integer> numbers();
+
+    static Interned create(String name, ImmutableList<Integer> numbers) {
+      return AutoValue_AutoValueTest_Interned.intern(
+          new AutoValue_AutoValueTest_Interned(name, numbers));
+    }
+  }
+
+  @Test
+  public void testIntern() {
+    long hits = AutoValue_AutoValueTest_Interned.internHits();
+    long misses = AutoValue_AutoValueTest_Interned.internMisses();
+    Interned first = Interned.create("testIntern", ImmutableList.of(1, 2));
+    Interned second = Interned.create("testIntern", ImmutableList.of(1, 2));
+    Interned other = Interned.create("testIntern", ImmutableList.of(3));
+    Interned notInterned = new AutoValue_AutoValueTest_Interned("testIntern", ImmutableList.of(3));
+    assertSame(first, second);
+    assertEquals(hits + 1, AutoValue_AutoValueTest_Interned.internHits());
+    assertEquals(misses + 2, AutoValue_AutoValueTest_Interned.internMisses());
+    new EqualsTester()
+        .addEqualityGroup(first, second)
+        .addEqualityGroup(other, notInterned)
+        .testEquals();
+  }
+
+  @AutoValue
+  @AutoValue.Intern
+  abstract static class InternedWithBuilder {
+    abstract String name();
+
+    static Builder builder() {
+      return new AutoValue_AutoValueTest_InternedWithBuilder.Builder();
+    }
+
+    @AutoValue.Builder
+    abstract static class Builder {
+      abstract Builder name(String name);
+      abstract InternedWithBuilder build();
+    }
+  }
+
+  @Test
+  public void testInternWithBuilder() {
+    InternedWithBuilder.Builder builder = InternedWithBuilder.builder().name("testIntern");
+    InternedWithBuilder first = builder.build();
+    assertSame(first, builder.build());
+    assertSame(first, InternedWithBuilder.builder().name("testIntern").build());
+    assertFalse(first.equals(builder.name("other").build()));
+  }
+
   @AutoValue
   abstract static class NotAllGetters {
     abstract int getFoo();
@@ -1526,6 +1622,56 @@ public class AutoValueTest {
     assertThat(x.missing()).isEqualTo("foo");
   }
 
+  @AutoValue
+  public abstract static class PrimitivesWithBuilder {
+    public abstract int anInt();
+    public abstract long aLong();
+    public abstract boolean aBoolean();
+    public abstract String aString();
+
+    public static Builder builder() {
+      return new AutoValue_AutoValueTest_PrimitivesWithBuilder.Builder();
+    }
+
+    public abstract Builder toBuilder();
+
+    @AutoValue.Builder
+    public abstract static class Builder {
+      public abstract Builder anInt(int x);
+      public abstract Builder aLong(long x);
+      public abstract Builder aBoolean(boolean x);
+      public abstract Builder aString(String x);
+      public abstract long aLong();
+      public abstract PrimitivesWithBuilder build();
+    }
+  }
+
+  @Test
+  public void testPrimitivesWithBuilder() {
+    PrimitivesWithBuilder.Builder builder = PrimitivesWithBuilder.builder();
+    try {
+      builder.aLong();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Property \"aLong\" has not been set");
+    }
+    // Setting a primitive property to its default value still counts as setting it.
+    builder.anInt(0).aBoolean(false);
+    try {
+      builder.build();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Missing required properties: aLong aString");
+    }
+    PrimitivesWithBuilder x = builder.aLong(23L).aString("foo").build();
+    assertEquals(0, x.anInt());
+    assertEquals(23L, x.aLong());
+    assertFalse(x.aBoolean());
+    PrimitivesWithBuilder y = x.toBuilder().aBoolean(true).build();
+    assertEquals(23L, y.aLong());
+    assertTrue(y.aBoolean());
+  }
+
   @AutoValue
   public abstract static class GenericsWithBuilder<T extends Number & Comparable<T>, U extends T> {
     public abstract List<T> list();
@@ -89,4 +89,62 @@ public @interface AutoValue {
   public @interface CopyAnnotations {
     Class<? extends Annotation>[] exclude() default {};
   }
+
+  /**
+   * Specifies that the {@link Object#hashCode hashCode()} that AutoValue generates for the
+   * annotated class should be computed only once, and then remembered in a field of the instance.
+   * This can be worthwhile for a class whose instances are used as hash keys and whose properties
+   * are expensive to hash, such as large collections. The generated {@link Object#equals equals}
+   * method also compares the remembered hash codes of the two instances, when both have been
+   * computed, so that it can return false without comparing the properties. Since the properties
+   * of an AutoValue class should not change, the remembered hash code remains valid.
+   *
+   * <p>The field is not synchronized and not {@code volatile}. A thread that does not see the
+   * value that another thread remembered just computes the hash code again, which gives the same
+   * result. A hash code that happens to be 0 is never remembered.
+   *
+   * <p>This annotation has no effect if the class defines its own {@code hashCode()}.
+   */
+  @Retention(RetentionPolicy.SOURCE)
+  @Target(ElementType.TYPE)
+  public @interface CacheHashCode {}
+
+  /**
+   * Specifies that equal instances of the annotated class should be shared. The generated class
+   * has a static method {@code intern}, which returns the canonical instance that is equal to its
+   * argument, and the {@code build()} method of an {@linkplain Builder AutoValue builder} returns
+   * canonical instances. A factory method that calls the generated constructor can do the same:
+   *
+   * <pre>
+   *   {@code @AutoValue}
+   *   {@code @AutoValue.Intern}
+   *   abstract class Schema {
+   *     abstract String name();
+   *     abstract ImmutableList<String> columns();
+   *
+   *     static Schema create(String name, ImmutableList<String> columns) {
+   *       return AutoValue_Schema.intern(new AutoValue_Schema(name, columns));
+   *     }
+   *   }</pre>
+   *
+   * <p>The canonical instances are held in a weak interner from Guava's {@code Interners}, so one
+   * that is no longer referenced from anywhere else can be garbage-collected, and Guava must be on
+   * the classpath. Since two canonical instances are never equal, the generated {@link
+   * Object#equals equals} method returns false, without comparing properties, when both of the
+   * instances it compares are canonical.
+   *
+   * <p>That is only correct if the properties of a canonical instance never change, so every
+   * property should be of a deeply immutable type. If, say, a {@code List} property of a canonical
+   * instance is modified so that it becomes equal to another canonical instance, {@code equals}
+   * will still say that the two are different. For the same reason, a class with an array
+   * property can't be annotated {@code @AutoValue.Intern}.
+   *
+   * <p>The generated class also has static methods {@code internHits()} and {@code
+   * internMisses()}, which return how many times {@code intern} found an equal canonical instance
+   * and how many times its argument became the canonical instance. A class can make them available
+   * to monitoring code outside its package.
+   */
+  @Retention(RetentionPolicy.SOURCE)
+  @Target(ElementType.TYPE)
+  public @interface Intern {}
 }
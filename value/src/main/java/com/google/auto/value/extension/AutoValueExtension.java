@@ -184,6 +184,14 @@ public abstract class AutoValueExtension {
    * <className>} and {@code <classToExtend>} are the values of this method's parameters of the same
    * name.
    *
+   * <p>The returned code is written with the {@code @AutoValue} class as its only originating
+   * element. AutoValue cannot check what else an extension does, so it only tells Gradle that it is
+   * an isolating annotation processor when all of its extensions are ones it knows, and otherwise
+   * that it is aggregating. An extension that writes other files itself, using the {@link javax.annotation.processing.Filer
+   * Filer} from {@link Context#processingEnvironment()}, should likewise give {@link
+   * Context#autoValueClass()} as the one originating element of each of them, and should not let
+   * their contents depend on other {@code @AutoValue} classes.
+   *
    * @param context The {@link Context} of the code generation for this class.
    * @param className The simple name of the resulting class. The returned code will be written to a
    *     file named accordingly.
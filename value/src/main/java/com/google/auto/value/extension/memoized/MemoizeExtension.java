@@ -31,9 +31,11 @@ import static javax.lang.model.type.TypeKind.VOID;
 import static javax.lang.model.util.ElementFilter.methodsIn;
 import static javax.tools.Diagnostic.Kind.ERROR;
 
+import com.google.auto.common.AnnotationMirrors;
 import com.google.auto.common.MoreElements;
 import com.google.auto.service.AutoService;
 import com.google.auto.value.extension.AutoValueExtension;
+import com.google.auto.value.extension.memoized.Memoized.Concurrency;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
@@ -51,6 +53,8 @@ import com.squareup.javapoet.TypeVariableName;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import javax.annotation.Generated;
 import javax.annotation.processing.Messager;
 import javax.lang.model.element.AnnotationMirror;
@@ -58,7 +62,9 @@ import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
 import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
 import javax.tools.Diagnostic.Kind;
 
 /** An extension that implements the {@link Memoized} contract. */
@@ -72,6 +78,9 @@ public final class MemoizeExtension extends AutoValueExtension {
           .addMember("value", "$S", MemoizeExtension.class.getCanonicalName())
           .build();
 
+  private static final AnnotationSpec SUPPRESS_RAWTYPES =
+      AnnotationSpec.builder(SuppressWarnings.class).addMember("value", "$S", "rawtypes").build();
+
   private static final ClassName LAZY_INIT =
       ClassName.get("com.google.errorprone.annotations.concurrent", "LazyInit");
 
@@ -102,16 +111,26 @@ public final class MemoizeExtension extends AutoValueExtension {
     private final String classToExtend;
     private final boolean isFinal;
     private final Elements elements;
+    private final Types types;
     private final Messager messager;
     private final Optional<AnnotationSpec> lazyInitAnnotation;
     private boolean hasErrors;
 
+    /**
+     * The number of bits assigned so far by {@link MethodOverrider.CheckMemoizedBit}. The bits are
+     * packed into {@code volatile int} fields called {@code memoized$0}, {@code memoized$1}, and
+     * so on, 32 bits to a field, so that a class with several such methods doesn't need a field
+     * for each of them.
+     */
+    private int memoizedBits;
+
     Generator(Context context, String className, String classToExtend, boolean isFinal) {
       this.context = context;
       this.className = className;
       this.classToExtend = classToExtend;
       this.isFinal = isFinal;
       this.elements = context.processingEnvironment().getElementUtils();
+      this.types = context.processingEnvironment().getTypeUtils();
       this.messager = context.processingEnvironment().getMessager();
       this.lazyInitAnnotation = getLazyInitAnnotation(elements);
     }
@@ -130,6 +149,7 @@ public final class MemoizeExtension extends AutoValueExtension {
         generated.addFields(methodOverrider.fields());
         generated.addMethod(methodOverrider.method());
       }
+      generated.addFields(memoizedBitFields());
       if (hasErrors) {
         // TODO(b/28869279) Return null if invalid.
         return "";
@@ -137,6 +157,43 @@ public final class MemoizeExtension extends AutoValueExtension {
       return JavaFile.builder(context.packageName(), generated.build()).build().toString();
     }
 
+    /**
+     * Returns the {@code int} fields that hold the bits assigned by {@link
+     * MethodOverrider.CheckMemoizedBit}, each followed by the {@link AtomicIntegerFieldUpdater}
+     * that is used to set its bits. The bits are set with an atomic compare-and-set, because
+     * methods with different {@link Concurrency} strategies may set bits in the same field at the
+     * same time, and not all of them hold a lock when they do.
+     */
+    private ImmutableList<FieldSpec> memoizedBitFields() {
+      ImmutableList.Builder<FieldSpec> fields = ImmutableList.builder();
+      TypeName generatedClass = ClassName.get(context.packageName(), className);
+      for (int i = 0; i * Integer.SIZE < memoizedBits; i++) {
+        String name = memoizedBitFieldName(i);
+        FieldSpec.Builder field = FieldSpec.builder(TypeName.INT, name, PRIVATE, VOLATILE);
+        if (lazyInitAnnotation.isPresent()) {
+          field.addAnnotation(lazyInitAnnotation.get());
+        }
+        FieldSpec.Builder updater =
+            FieldSpec.builder(
+                    ParameterizedTypeName.get(
+                        ClassName.get(AtomicIntegerFieldUpdater.class), generatedClass),
+                    name + "$Updater",
+                    PRIVATE,
+                    STATIC,
+                    FINAL)
+                .initializer(
+                    "$T.newUpdater($T.class, $S)",
+                    AtomicIntegerFieldUpdater.class,
+                    generatedClass,
+                    name);
+        if (!typeVariableNames().isEmpty()) {
+          updater.addAnnotation(SUPPRESS_RAWTYPES);
+        }
+        fields.add(field.build(), updater.build());
+      }
+      return fields.build();
+    }
+
     private TypeName superType() {
       ClassName superType = ClassName.get(context.packageName(), classToExtend);
       ImmutableList<TypeVariableName> typeVariableNames = typeVariableNames();
@@ -198,16 +255,26 @@ public final class MemoizeExtension extends AutoValueExtension {
 
         InitializationStrategy checkStrategy = strategy();
         fields.addAll(checkStrategy.additionalFields());
-        override
-            .beginControlFlow("if ($L)", checkStrategy.checkMemoized())
-            .beginControlFlow("synchronized (this)")
-            .beginControlFlow("if ($L)", checkStrategy.checkMemoized())
-            .addStatement("$N = super.$L()", cacheField, method.getSimpleName())
-            .addCode(checkStrategy.setMemoized())
-            .endControlFlow()
-            .endControlFlow()
-            .endControlFlow()
-            .addStatement("return $N", cacheField);
+        Concurrency concurrency = concurrency(checkStrategy);
+        override.beginControlFlow("if ($L)", checkStrategy.checkMemoized());
+        if (concurrency.equals(Concurrency.SYNCHRONIZED)) {
+          override
+              .beginControlFlow("synchronized (this)")
+              .beginControlFlow("if ($L)", checkStrategy.checkMemoized());
+        }
+        if (concurrency.equals(Concurrency.COMPARE_AND_SET)) {
+          FieldSpec updater = buildUpdaterField();
+          fields.add(updater);
+          override.addStatement(
+              "$N.compareAndSet(this, null, super.$L())", updater, method.getSimpleName());
+        } else {
+          override.addStatement("$N = super.$L()", cacheField, method.getSimpleName());
+        }
+        override.addCode(checkStrategy.setMemoized());
+        if (concurrency.equals(Concurrency.SYNCHRONIZED)) {
+          override.endControlFlow().endControlFlow();
+        }
+        override.endControlFlow().addStatement("return $N", cacheField);
       }
 
       /** The fields that should be added to the subclass. */
@@ -284,9 +351,63 @@ public final class MemoizeExtension extends AutoValueExtension {
         return builder.build();
       }
 
+      /**
+       * Builds the {@code static final} {@link AtomicReferenceFieldUpdater} for the cache field,
+       * which the {@link Concurrency#COMPARE_AND_SET} strategy uses to store the first result and
+       * only that one. The updater's type arguments must be the erasures of the generated class
+       * and of the field type, which are raw types if those are generic.
+       */
+      private FieldSpec buildUpdaterField() {
+        TypeName generatedClass = ClassName.get(context.packageName(), className);
+        TypeName erasedType = TypeName.get(types.erasure(method.getReturnType()));
+        FieldSpec.Builder builder =
+            FieldSpec.builder(
+                    ParameterizedTypeName.get(
+                        ClassName.get(AtomicReferenceFieldUpdater.class),
+                        generatedClass,
+                        erasedType),
+                    method.getSimpleName() + "$Updater",
+                    PRIVATE,
+                    STATIC,
+                    FINAL)
+                .initializer(
+                    "$T.newUpdater($T.class, $T.class, $S)",
+                    AtomicReferenceFieldUpdater.class,
+                    generatedClass,
+                    erasedType,
+                    cacheField.name);
+        if (!typeVariableNames().isEmpty() || !erasedType.equals(cacheField.type)) {
+          builder.addAnnotation(SUPPRESS_RAWTYPES);
+        }
+        return builder.build();
+      }
+
+      /**
+       * Returns the {@link Concurrency} that the overriding method uses, which is the {@link
+       * Memoized#concurrency} of the {@code @Memoized} method except as documented for {@link
+       * Concurrency#COMPARE_AND_SET}. A compare-and-set from null can only store the first result
+       * if null means that the method has not been called. Otherwise, a thread could store its
+       * result after another thread had stored and returned a different one, so the method would
+       * not always return the same instance.
+       */
+      private Concurrency concurrency(InitializationStrategy checkStrategy) {
+        AnnotationMirror memoized = MoreElements.getAnnotationMirror(method, Memoized.class).get();
+        VariableElement value =
+            (VariableElement)
+                AnnotationMirrors.getAnnotationValue(memoized, "concurrency").getValue();
+        Concurrency concurrency = Concurrency.valueOf(value.getSimpleName().toString());
+        if (concurrency.equals(Concurrency.COMPARE_AND_SET)
+            && !(checkStrategy instanceof NullMeansUninitialized)) {
+          return method.getReturnType().getKind().isPrimitive()
+              ? Concurrency.RACY
+              : Concurrency.SYNCHRONIZED;
+        }
+        return concurrency;
+      }
+
       InitializationStrategy strategy() {
         if (method.getReturnType().getKind().isPrimitive()) {
-          return new CheckBooleanField();
+          return new CheckMemoizedBit();
         }
         for (AnnotationMirror annotationMirror : method.getAnnotationMirrors()) {
           if (annotationMirror
@@ -294,7 +415,7 @@ public final class MemoizeExtension extends AutoValueExtension {
               .asElement()
               .getSimpleName()
               .contentEquals("Nullable")) {
-            return new CheckBooleanField();
+            return new CheckMemoizedBit();
           }
         }
         return new NullMeansUninitialized();
@@ -332,29 +453,47 @@ public final class MemoizeExtension extends AutoValueExtension {
         }
       }
 
-      private final class CheckBooleanField extends InitializationStrategy {
+      /**
+       * Records whether the method has been called in a bit of one of the fields returned by
+       * {@link Generator#memoizedBitFields}, for a method whose cache field can't use null to mean
+       * that it hasn't been called.
+       */
+      private final class CheckMemoizedBit extends InitializationStrategy {
+        private final String field = memoizedBitFieldName(memoizedBits / Integer.SIZE);
+        private final String mask = "0x" + Integer.toHexString(1 << (memoizedBits % Integer.SIZE));
 
-        private final FieldSpec field =
-            buildCacheField(TypeName.BOOLEAN, method.getSimpleName() + "$Memoized");
+        CheckMemoizedBit() {
+          memoizedBits++;
+        }
 
         @Override
         Iterable<FieldSpec> additionalFields() {
-          return ImmutableList.of(field);
+          return ImmutableList.of();
         }
 
         @Override
         CodeBlock checkMemoized() {
-          return CodeBlock.of("!$N", field);
+          return CodeBlock.of("($L & $L) == 0", field, mask);
         }
 
         @Override
         CodeBlock setMemoized() {
-          return CodeBlock.builder().addStatement("$N = true", field).build();
+          return CodeBlock.builder()
+              .addStatement("int bits")
+              .beginControlFlow("do")
+              .addStatement("bits = $L", field)
+              .endControlFlow(
+                  "while (!$L$$Updater.compareAndSet(this, bits, bits | $L))", field, mask)
+              .build();
         }
       }
     }
   }
 
+  private static String memoizedBitFieldName(int index) {
+    return "memoized$" + index;
+  }
+
   /** Returns the errorprone {@code @LazyInit} annotation if it is found on the classpath. */
   private static Optional<AnnotationSpec> getLazyInitAnnotation(Elements elements) {
     if (elements.getTypeElement(LAZY_INIT.toString()) == null) {
@@ -42,9 +42,12 @@ import java.lang.annotation.Target;
  * {@code Nullable}, then {@code null} values will also be memoized. Otherwise, if the method
  * returns {@code null}, the overriding method will throw a {@link NullPointerException}.
  *
- * <p>The overriding method uses
+ * <p>By default, the overriding method uses
  * <a href="http://errorprone.info/bugpattern/DoubleCheckedLocking">double-checked locking</a> to
- * ensure that the annotated method is called at most once.
+ * ensure that the annotated method is called at most once. That means that the first call locks
+ * the monitor of the {@code @AutoValue} instance, and that threads that call the method on a new
+ * instance at the same time wait for one another. A method can instead use one of the lock-free
+ * strategies in {@link Concurrency}, by setting {@link #concurrency}.
  *
  * <h3>Example</h3>
  *
@@ -81,4 +84,37 @@ import java.lang.annotation.Target;
 @Documented
 @Retention(SOURCE)
 @Target(METHOD)
-public @interface Memoized {}
+public @interface Memoized {
+  /** How the overriding method behaves when several threads call it at the same time. */
+  Concurrency concurrency() default Concurrency.SYNCHRONIZED;
+
+  /** The strategies that the overriding method can use to memoize the returned value. */
+  enum Concurrency {
+    /**
+     * Double-checked locking: the annotated method is called at most once, and the first call is
+     * made with the monitor of the {@code @AutoValue} instance held.
+     */
+    SYNCHRONIZED,
+
+    /**
+     * No lock: if several threads make the first call at the same time, each of them may call the
+     * annotated method and store its result, so those calls, and later ones, may return different
+     * but equal results. The results are published through {@code volatile} fields. This is only
+     * suitable when the annotated method is cheap enough to call more than once and its results
+     * are interchangeable.
+     */
+    RACY,
+
+    /**
+     * No lock: if several threads make the first call at the same time, each of them may call the
+     * annotated method, but only the first result to be stored is kept, with an atomic
+     * compare-and-set, and every call returns that same instance.
+     *
+     * <p>The compare-and-set relies on null meaning that no result has been stored yet, so it is
+     * only used for methods that can't return null. A method that returns a primitive value,
+     * which has no identity, is memoized as with {@link #RACY}. A {@code @Nullable} method is
+     * memoized as with {@link #SYNCHRONIZED}, so that it too returns the same result every time.
+     */
+    COMPARE_AND_SET,
+  }
+}
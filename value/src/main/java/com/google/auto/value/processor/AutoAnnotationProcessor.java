@@ -78,6 +78,17 @@ public class AutoAnnotationProcessor extends AbstractProcessor {
     return SourceVersion.latestSupported();
   }
 
+  @Override
+  public Set<String> getSupportedOptions() {
+    return ImmutableSet.of(TemplateProfiler.PROFILE_TEMPLATES_OPTION);
+  }
+
+  @Override
+  public synchronized void init(ProcessingEnvironment processingEnv) {
+    super.init(processingEnv);
+    templateProfiler = TemplateProfiler.fromOptions(processingEnv.getOptions());
+  }
+
   /**
    * Issue a compilation error. This method does not throw an exception, since we want to
    * continue processing and perhaps report other errors.
@@ -97,10 +108,14 @@ public class AutoAnnotationProcessor extends AbstractProcessor {
   }
 
   private Types typeUtils;
+  private TemplateProfiler templateProfiler;
 
   @Override
   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
     typeUtils = processingEnv.getTypeUtils();
+    if (roundEnv.processingOver()) {
+      templateProfiler.report(processingEnv.getMessager());
+    }
     boolean claimed =
         (annotations.size() == 1
             && annotations
@@ -184,8 +199,7 @@ public class AutoAnnotationProcessor extends AbstractProcessor {
       vars.invariableHashSum += h;
     }
     vars.invariableHashes = invariableHashes.keySet();
-    String text = vars.toText();
-    text = Reformatter.fixup(text);
+    String text = templateProfiler.toText(vars);
     String fullName = fullyQualifiedName(pkg, generatedClassName);
     writeSourceFile(fullName, text, methodClass);
   }
@@ -486,13 +500,17 @@ public class AutoAnnotationProcessor extends AbstractProcessor {
     return pkg.isEmpty() ? cls : pkg + "." + cls;
   }
 
+  /**
+   * Writes the source file for the given class. The text is {@linkplain Reformatter reformatted}
+   * as it is written.
+   */
   private void writeSourceFile(String className, String text, TypeElement originatingType) {
     try {
       JavaFileObject sourceFile =
           processingEnv.getFiler().createSourceFile(className, originatingType);
       Writer writer = sourceFile.openWriter();
       try {
-        writer.write(text);
+        Reformatter.fixup(text, writer);
       } finally {
         writer.close();
       }
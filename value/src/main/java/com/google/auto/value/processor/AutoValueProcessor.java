@@ -17,17 +17,18 @@ package com.google.auto.value.processor;
 
 import static com.google.auto.common.AnnotationMirrors.getAnnotationValue;
 import static com.google.auto.common.MoreElements.getAnnotationMirror;
-import static com.google.auto.common.MoreElements.getLocalAndInheritedMethods;
 import static com.google.auto.common.MoreElements.isAnnotationPresent;
 import static com.google.common.collect.Sets.union;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 
+import com.google.auto.common.LocalAndInheritedMethodsCache;
 import com.google.auto.common.MoreElements;
 import com.google.auto.common.MoreTypes;
 import com.google.auto.service.AutoService;
 import com.google.auto.value.AutoValue;
 import com.google.auto.value.extension.AutoValueExtension;
+import com.google.auto.value.extension.memoized.MemoizeExtension;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
@@ -55,6 +56,7 @@ import java.util.Map;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
@@ -118,6 +120,39 @@ public class AutoValueProcessor extends AbstractProcessor {
     return SourceVersion.latestSupported();
   }
 
+  @Override
+  public Set<String> getSupportedOptions() {
+    return ImmutableSet.of(
+        TemplateProfiler.PROFILE_TEMPLATES_OPTION,
+        RenderQueue.RENDER_THREADS_OPTION,
+        RenderCache.RENDER_CACHE_OPTION,
+        extensionsAreIsolating() ? GRADLE_ISOLATING_OPTION : GRADLE_AGGREGATING_OPTION);
+  }
+
+  // AutoValueProcessor is declared "dynamic" in META-INF/gradle/incremental.annotation.processors,
+  // so Gradle looks for one of these options to find out what kind of processor it is. The
+  // processor itself is isolating, but an extension can write files of its own, with any
+  // originating elements, so only the extensions that we know don't do that keep it isolating.
+  private static final String GRADLE_ISOLATING_OPTION =
+      "org.gradle.annotation.processing.isolating";
+  private static final String GRADLE_AGGREGATING_OPTION =
+      "org.gradle.annotation.processing.aggregating";
+  private static final ImmutableSet<String> ISOLATING_EXTENSIONS =
+      ImmutableSet.of(MemoizeExtension.class.getName());
+
+  private boolean extensionsAreIsolating() {
+    if (extensions == null) {
+      // init has not been called, so we don't know yet what the extensions are.
+      return false;
+    }
+    for (AutoValueExtension extension : extensions) {
+      if (!ISOLATING_EXTENSIONS.contains(extension.getClass().getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Used to test whether a fully-qualified name is AutoValue.class.getCanonicalName() or one of its
    * nested annotations.
@@ -125,6 +160,11 @@ public class AutoValueProcessor extends AbstractProcessor {
   private static final Pattern AUTO_VALUE_CLASSNAME_PATTERN =
       Pattern.compile(Pattern.quote(AutoValue.class.getCanonicalName()) + "(\\..*)?");
 
+  // The strange concatenations here are to foil shading, which would otherwise rewrite these names
+  // to the shaded copy of Guava inside the processor jar.
+  private static final String GUAVA_INTERNER = "com.".concat("google.common.collect.Interner");
+  private static final String GUAVA_INTERNERS = "com.".concat("google.common.collect.Interners");
+
   private ErrorReporter errorReporter;
 
   /**
@@ -141,11 +181,32 @@ public class AutoValueProcessor extends AbstractProcessor {
 
   private Types typeUtils;
 
+  private TemplateProfiler templateProfiler;
+  private RenderCache renderCache;
+  private RenderQueue renderQueue;
+
+  /**
+   * The analysis of types that {@link TypeSimplifier} has already done in the current round, so
+   * that it can be reused for every {@code @AutoValue} class in the round.
+   */
+  private TypeSimplifier.Cache typeSimplifierCache;
+
+  /**
+   * The methods of the types that have been examined in the current round, including the
+   * {@code @AutoValue} classes, their builders, and the builders of their properties.
+   */
+  private LocalAndInheritedMethodsCache methodsCache;
+
   @Override
   public synchronized void init(ProcessingEnvironment processingEnv) {
     super.init(processingEnv);
     errorReporter = new ErrorReporter(processingEnv);
     typeUtils = processingEnv.getTypeUtils();
+    templateProfiler = TemplateProfiler.fromOptions(processingEnv.getOptions());
+    renderCache = RenderCache.fromOptions(processingEnv, errorReporter);
+    renderQueue =
+        RenderQueue.fromOptions(
+            processingEnv.getOptions(), templateProfiler, renderCache, errorReporter);
 
     if (extensions == null) {
       try {
@@ -182,6 +243,9 @@ public class AutoValueProcessor extends AbstractProcessor {
         errorReporter.reportError("Did not generate @AutoValue class for " + type.getQualifiedName()
             + " because it references undefined types", type);
       }
+      renderQueue.close();
+      templateProfiler.report(processingEnv.getMessager());
+      renderCache.report(processingEnv.getMessager());
       return false;
     }
     Collection<? extends Element> annotatedElements =
@@ -191,6 +255,8 @@ public class AutoValueProcessor extends AbstractProcessor {
         .addAll(ElementFilter.typesIn(annotatedElements))
         .build();
     deferredTypeNames.clear();
+    typeSimplifierCache = new TypeSimplifier.Cache(typeUtils);
+    methodsCache = new LocalAndInheritedMethodsCache(typeUtils);
     for (TypeElement type : types) {
       try {
         processType(type);
@@ -211,6 +277,9 @@ public class AutoValueProcessor extends AbstractProcessor {
         errorReporter.reportError("@AutoValue processor threw an exception: " + trace, type);
       }
     }
+    typeSimplifierCache = null;
+    methodsCache = null;
+    renderQueue.flush();
     return false;  // never claim annotation, because who knows what other processors want?
   }
 
@@ -235,12 +304,19 @@ public class AutoValueProcessor extends AbstractProcessor {
    * each property. The public methods of this class define JavaBeans-style properties
    * that are accessible from templates. For example {@link #getType()} means we can
    * write {@code $p.type} for a Velocity variable {@code $p} that is a {@code Property}.
+   *
+   * <p>Everything that the template needs is computed when the {@code Property} is constructed,
+   * so that the template can be evaluated on a thread other than the one that called the
+   * processor, where the compiler's model of the source code must not be used.
    */
   public static class Property {
     private final String name;
     private final String identifier;
     private final ExecutableElement method;
+    private final String getter;
     private final String type;
+    private final TypeKind kind;
+    private final String access;
     private final ImmutableList<String> annotations;
     private final Optionalish optional;
 
@@ -254,7 +330,10 @@ public class AutoValueProcessor extends AbstractProcessor {
       this.name = name;
       this.identifier = identifier;
       this.method = method;
+      this.getter = method.getSimpleName().toString();
       this.type = type;
+      this.kind = method.getReturnType().getKind();
+      this.access = access(method);
       this.annotations = buildAnnotations(typeSimplifier, excludedAnnotations);
       TypeMirror propertyType = method.getReturnType();
       this.optional =
@@ -300,7 +379,7 @@ public class AutoValueProcessor extends AbstractProcessor {
      * class. For property {@code foo}, this will be {@code foo} or {@code getFoo} or {@code isFoo}.
      */
     public String getGetter() {
-      return method.getSimpleName().toString();
+      return getter;
     }
 
     TypeElement getOwner() {
@@ -316,7 +395,7 @@ public class AutoValueProcessor extends AbstractProcessor {
     }
 
     public TypeKind getKind() {
-      return method.getReturnType().getKind();
+      return kind;
     }
 
     public List<String> getAnnotations() {
@@ -350,7 +429,7 @@ public class AutoValueProcessor extends AbstractProcessor {
     }
 
     public String getAccess() {
-      return access(method);
+      return access;
     }
 
     @Override
@@ -468,11 +547,10 @@ public class AutoValueProcessor extends AbstractProcessor {
     // If there are abstract methods that don't fit any of the categories above, that is an error
     // which we signal explicitly to avoid confusion.
 
-    ImmutableSet<ExecutableElement> methods = getLocalAndInheritedMethods(
-        type, processingEnv.getTypeUtils(), processingEnv.getElementUtils());
+    ImmutableSet<ExecutableElement> methods = methodsCache.getLocalAndInheritedMethods(type);
     ImmutableSet<ExecutableElement> abstractMethods = abstractMethodsIn(methods);
 
-    BuilderSpec builderSpec = new BuilderSpec(type, processingEnv, errorReporter);
+    BuilderSpec builderSpec = new BuilderSpec(type, processingEnv, methodsCache, errorReporter);
     Optional<BuilderSpec.Builder> builder = builderSpec.getBuilder();
     ImmutableSet<ExecutableElement> toBuilderMethods;
     if (builder.isPresent()) {
@@ -510,8 +588,34 @@ public class AutoValueProcessor extends AbstractProcessor {
     vars.origClass = TypeSimplifier.classNameOf(type);
     vars.simpleClassName = TypeSimplifier.simpleNameOf(vars.origClass);
     vars.finalSubclass = TypeSimplifier.simpleNameOf(finalSubclass);
-    vars.types = processingEnv.getTypeUtils();
     determineObjectMethodsToGenerate(methods, vars);
+    if (isAnnotationPresent(type, AutoValue.CacheHashCode.class)) {
+      if (vars.hashCode) {
+        vars.cacheHashCode = true;
+      } else {
+        errorReporter.reportWarning(
+            "@AutoValue.CacheHashCode has no effect because " + type + " defines hashCode()",
+            type);
+      }
+    }
+    if (isAnnotationPresent(type, AutoValue.Intern.class)) {
+      vars.intern = true;
+      if (processingEnv.getElementUtils().getTypeElement(GUAVA_INTERNERS) == null) {
+        errorReporter.reportError(
+            "@AutoValue.Intern requires " + GUAVA_INTERNERS + ", which is not on the classpath",
+            type);
+        vars.intern = false;
+      }
+      for (ExecutableElement propertyMethod : propertyMethods) {
+        if (propertyMethod.getReturnType().getKind() == TypeKind.ARRAY) {
+          errorReporter.reportError(
+              "@AutoValue.Intern cannot be used with an array property, because the contents of"
+                  + " the array could change after the instance is interned",
+              propertyMethod);
+          vars.intern = false;
+        }
+      }
+    }
     TypeSimplifier typeSimplifier =
         defineVarsForType(type, vars, toBuilderMethods, propertyMethods, builder);
 
@@ -539,10 +643,14 @@ public class AutoValueProcessor extends AbstractProcessor {
     vars.subclass = TypeSimplifier.simpleNameOf(subclass);
     vars.isFinal = (subclassDepth == 0);
 
-    String text = vars.toText();
-    text = Reformatter.fixup(text);
-    writeSourceFile(subclass, text, type);
-    GwtSerialization gwtSerialization = new GwtSerialization(gwtCompatibility, processingEnv, type);
+    renderQueue.render(
+        vars,
+        true,
+        type,
+        subclass,
+        (text, reformat) -> writeSourceFile(subclass, text, reformat, type));
+    GwtSerialization gwtSerialization =
+        new GwtSerialization(gwtCompatibility, processingEnv, renderQueue, type);
     gwtSerialization.maybeWriteGwtSerializer(vars);
   }
 
@@ -663,8 +771,7 @@ public class AutoValueProcessor extends AbstractProcessor {
       boolean isFinal = (writtenSoFar == 0);
       String source = extension.generateClass(context, classSimpleName, parentSimpleName, isFinal);
       if (source != null) {
-        source = Reformatter.fixup(source);
-        writeSourceFile(classFqName, source, type);
+        writeSourceFile(classFqName, source, true, type);
         writtenSoFar++;
       }
     }
@@ -796,6 +903,20 @@ public class AutoValueProcessor extends AbstractProcessor {
       // Arrange to import it unless that would introduce ambiguity.
       types.add(javaUtilArrays);
     }
+    TypeMirror guavaInterner = null;
+    TypeMirror guavaInterners = null;
+    TypeMirror atomicLong = null;
+    if (vars.intern) {
+      // The template supplies the type argument of Interner, so we want its raw type here.
+      guavaInterner =
+          processingEnv.getTypeUtils().erasure(
+              processingEnv.getElementUtils().getTypeElement(GUAVA_INTERNER).asType());
+      guavaInterners = processingEnv.getElementUtils().getTypeElement(GUAVA_INTERNERS).asType();
+      atomicLong = getTypeMirror(AtomicLong.class);
+      types.add(guavaInterner);
+      types.add(guavaInterners);
+      types.add(atomicLong);
+    }
     // We can't use ImmutableList.toImmutableList() for obscure Google-internal reasons.
     vars.toBuilderMethods =
         ImmutableList.copyOf(toBuilderMethods.stream().map(SimpleMethod::new).collect(toList()));
@@ -803,12 +924,18 @@ public class AutoValueProcessor extends AbstractProcessor {
         allMethodExcludedAnnotations(propertyMethods);
     types.addAll(allMethodAnnotationTypes(propertyMethods, excludedAnnotationsMap));
     String pkg = TypeSimplifier.packageNameOf(type);
-    TypeSimplifier typeSimplifier = new TypeSimplifier(typeUtils, pkg, types, declaredType);
+    TypeSimplifier typeSimplifier =
+        new TypeSimplifier(typeSimplifierCache, pkg, types, declaredType);
     vars.imports = typeSimplifier.typesToImport();
     vars.generated = generatedTypeElement == null
         ? ""
         : typeSimplifier.simplify(generatedTypeElement.asType());
     vars.arrays = typeSimplifier.simplify(javaUtilArrays);
+    if (vars.intern) {
+      vars.interner = typeSimplifier.simplify(guavaInterner);
+      vars.interners = typeSimplifier.simplify(guavaInterners);
+      vars.atomicLong = typeSimplifier.simplify(atomicLong);
+    }
     ImmutableBiMap<ExecutableElement, String> methodToPropertyName =
         propertyNameToMethodMap(propertyMethods).inverse();
     Map<ExecutableElement, String> methodToIdentifier = Maps.newLinkedHashMap(methodToPropertyName);
@@ -1131,12 +1258,21 @@ public class AutoValueProcessor extends AbstractProcessor {
     }
   }
 
-  private void writeSourceFile(String className, String text, TypeElement originatingType) {
+  /**
+   * Writes the source file for the given class. If {@code reformat} is true, the text is
+   * {@linkplain Reformatter reformatted} as it is written.
+   */
+  private void writeSourceFile(
+      String className, String text, boolean reformat, TypeElement originatingType) {
     try {
       JavaFileObject sourceFile =
           processingEnv.getFiler().createSourceFile(className, originatingType);
       try (Writer writer = sourceFile.openWriter()) {
-        writer.write(text);
+        if (reformat) {
+          Reformatter.fixup(text, writer);
+        } else {
+          writer.write(text);
+        }
       }
     } catch (IOException e) {
       // This should really be an error, but we make it a warning in the hope of resisting Eclipse
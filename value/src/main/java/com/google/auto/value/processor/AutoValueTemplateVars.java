@@ -23,8 +23,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
-import javax.annotation.processing.ProcessingEnvironment;
-import javax.lang.model.util.Types;
 
 /**
  * The variables to substitute into the autovalue.vm template.
@@ -43,12 +41,30 @@ class AutoValueTemplateVars extends TemplateVars {
   Boolean equals;
   /** Whether to generate a hashCode() method. */
   Boolean hashCode;
+  /**
+   * Whether the generated hashCode() method should remember its result in a field, because of
+   * {@code @AutoValue.CacheHashCode}. This is only true if {@link #hashCode} is.
+   */
+  Boolean cacheHashCode = false;
+
+  /**
+   * Whether the generated class should have a static {@code intern} method that returns canonical
+   * instances, which {@code build()} also uses, because of {@code @AutoValue.Intern}.
+   */
+  Boolean intern = false;
+
+  /** The spelling of Guava's Interner class, if {@link #intern} is true. */
+  String interner = "";
+
+  /** The spelling of Guava's Interners class, if {@link #intern} is true. */
+  String interners = "";
+
+  /** The spelling of java.util.concurrent.atomic.AtomicLong, if {@link #intern} is true. */
+  String atomicLong = "";
+
   /** Whether to generate a toString() method. */
   Boolean toString;
 
-  /** The type utilities returned by {@link ProcessingEnvironment#getTypeUtils()}. */
-  Types types;
-
   /** The fully-qualified names of the classes to be imported in the generated class. */
   ImmutableSortedSet<String> imports;
 
@@ -175,6 +191,16 @@ class AutoValueTemplateVars extends TemplateVars {
    */
   ImmutableSet<AutoValueProcessor.Property> builderRequiredProperties = ImmutableSet.of();
 
+  /**
+   * A map from the names of primitive properties to the bits that record whether they have been
+   * set in the builder. The builder stores a primitive property in a field of the primitive type,
+   * so it can't use null to mean that the property has not been set.
+   */
+  ImmutableMap<String, BuilderSpec.SetBit> builderSetBits = ImmutableMap.of();
+
+  /** The {@code int} fields that hold the bits in {@link #builderSetBits}. */
+  ImmutableList<BuilderSpec.SetBitField> builderSetBitFields = ImmutableList.of();
+
   /**
    * A map from property names to information about the associated property getter. A property
    * called foo (defined by a method foo() or getFoo()) can have a property getter method with
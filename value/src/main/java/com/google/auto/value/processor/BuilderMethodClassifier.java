@@ -15,6 +15,7 @@
  */
 package com.google.auto.value.processor;
 
+import com.google.auto.common.LocalAndInheritedMethodsCache;
 import com.google.auto.common.MoreElements;
 import com.google.auto.common.MoreTypes;
 import com.google.auto.value.processor.PropertyBuilderClassifier.PropertyBuilder;
@@ -55,6 +56,7 @@ class BuilderMethodClassifier {
   private final ErrorReporter errorReporter;
   private final Types typeUtils;
   private final Elements elementUtils;
+  private final LocalAndInheritedMethodsCache methodsCache;
   private final TypeElement autoValueClass;
   private final TypeElement builderType;
   private final ImmutableBiMap<ExecutableElement, String> getterToPropertyName;
@@ -77,6 +79,7 @@ class BuilderMethodClassifier {
   private BuilderMethodClassifier(
       ErrorReporter errorReporter,
       ProcessingEnvironment processingEnv,
+      LocalAndInheritedMethodsCache methodsCache,
       TypeElement autoValueClass,
       TypeElement builderType,
       ImmutableBiMap<ExecutableElement, String> getterToPropertyName,
@@ -84,6 +87,7 @@ class BuilderMethodClassifier {
     this.errorReporter = errorReporter;
     this.typeUtils = processingEnv.getTypeUtils();
     this.elementUtils = processingEnv.getElementUtils();
+    this.methodsCache = methodsCache;
     this.autoValueClass = autoValueClass;
     this.builderType = builderType;
     this.getterToPropertyName = getterToPropertyName;
@@ -103,6 +107,7 @@ class BuilderMethodClassifier {
    * @param methods the methods in {@code builderType} and its ancestors.
    * @param errorReporter where to report errors.
    * @param processingEnv the ProcessingEnvironment for annotation processing.
+   * @param methodsCache the methods of types that have already been examined in this round.
    * @param autoValueClass the {@code AutoValue} class containing the builder.
    * @param builderType the builder class or interface within {@code autoValueClass}.
    * @param getterToPropertyName a map from getter methods to the properties they get.
@@ -117,6 +122,7 @@ class BuilderMethodClassifier {
       Iterable<ExecutableElement> methods,
       ErrorReporter errorReporter,
       ProcessingEnvironment processingEnv,
+      LocalAndInheritedMethodsCache methodsCache,
       TypeElement autoValueClass,
       TypeElement builderType,
       ImmutableBiMap<ExecutableElement, String> getterToPropertyName,
@@ -125,6 +131,7 @@ class BuilderMethodClassifier {
     BuilderMethodClassifier classifier = new BuilderMethodClassifier(
         errorReporter,
         processingEnv,
+        methodsCache,
         autoValueClass,
         builderType,
         getterToPropertyName,
@@ -275,8 +282,8 @@ class BuilderMethodClassifier {
       String property = methodName.substring(0, methodName.length() - "Builder".length());
       if (getterToPropertyName.containsValue(property)) {
         PropertyBuilderClassifier propertyBuilderClassifier = new PropertyBuilderClassifier(
-            errorReporter, typeUtils, elementUtils, this, getterToPropertyName, typeSimplifier,
-            eclipseHack);
+            errorReporter, typeUtils, elementUtils, methodsCache, this, getterToPropertyName,
+            typeSimplifier, eclipseHack);
         Optional<PropertyBuilder> propertyBuilder =
             propertyBuilderClassifier.makePropertyBuilder(method, property);
         if (propertyBuilder.isPresent()) {
@@ -15,9 +15,9 @@
  */
 package com.google.auto.value.processor;
 
-import static com.google.auto.common.MoreElements.getLocalAndInheritedMethods;
 import static java.util.stream.Collectors.toList;
 
+import com.google.auto.common.LocalAndInheritedMethodsCache;
 import com.google.auto.common.MoreElements;
 import com.google.auto.common.MoreTypes;
 import com.google.auto.value.AutoValue;
@@ -55,14 +55,17 @@ import javax.lang.model.util.Types;
 class BuilderSpec {
   private final TypeElement autoValueClass;
   private final ProcessingEnvironment processingEnv;
+  private final LocalAndInheritedMethodsCache methodsCache;
   private final ErrorReporter errorReporter;
 
   BuilderSpec(
       TypeElement autoValueClass,
       ProcessingEnvironment processingEnv,
+      LocalAndInheritedMethodsCache methodsCache,
       ErrorReporter errorReporter) {
     this.autoValueClass = autoValueClass;
     this.processingEnv = processingEnv;
+    this.methodsCache = methodsCache;
     this.errorReporter = errorReporter;
   }
 
@@ -194,6 +197,7 @@ class BuilderSpec {
           builderMethods,
           errorReporter,
           processingEnv,
+          methodsCache,
           autoValueClass,
           builderTypeElement,
           getterToPropertyName,
@@ -246,6 +250,89 @@ class BuilderSpec {
         }
       }
       vars.builderRequiredProperties = ImmutableSet.copyOf(required);
+      defineSetBits(vars);
+    }
+  }
+
+  /**
+   * Assigns a bit to each primitive property, which the builder sets when the property is set.
+   * A builder field for a reference property is null until the property is set, but a field for a
+   * primitive property has no such value, and using the boxed type instead would mean boxing on
+   * every call to the setter. Every primitive property is required, since it can't be
+   * {@code @Nullable} or {@code Optional} or have a property builder. The bits are packed into
+   * {@code int} fields called {@code set$0}, {@code set$1}, and so on, 32 bits to a field.
+   */
+  private static void defineSetBits(AutoValueTemplateVars vars) {
+    ImmutableMap.Builder<String, SetBit> setBits = ImmutableMap.builder();
+    ImmutableList.Builder<SetBitField> setBitFields = ImmutableList.builder();
+    int bit = 0;
+    for (Property property : vars.props) {
+      if (property.getKind().isPrimitive()) {
+        String field = "set$" + (bit / Integer.SIZE);
+        int mask = 1 << (bit % Integer.SIZE);
+        setBits.put(property.getName(), new SetBit(field, mask));
+        bit++;
+        if (bit % Integer.SIZE == 0) {
+          setBitFields.add(new SetBitField(field, -1));
+        }
+      }
+    }
+    if (bit % Integer.SIZE != 0) {
+      int allSet = (1 << (bit % Integer.SIZE)) - 1;
+      setBitFields.add(new SetBitField("set$" + (bit / Integer.SIZE), allSet));
+    }
+    vars.builderSetBits = setBits.build();
+    vars.builderSetBitFields = setBitFields.build();
+  }
+
+  private static String hex(int value) {
+    return "0x" + Integer.toHexString(value);
+  }
+
+  /**
+   * Information about the bit that records whether a primitive property has been set in a
+   * builder, referenced from the autovalue.vm template.
+   */
+  public static class SetBit {
+    private final String field;
+    private final String mask;
+
+    SetBit(String field, int mask) {
+      this.field = field;
+      this.mask = hex(mask);
+    }
+
+    /** The name of the {@code int} field that contains the bit, for example {@code set$0}. */
+    public String getField() {
+      return field;
+    }
+
+    /** The bit within the field, as a hex literal, for example {@code 0x4}. */
+    public String getMask() {
+      return mask;
+    }
+  }
+
+  /**
+   * Information about one of the {@code int} fields that hold {@link SetBit}s, referenced from the
+   * autovalue.vm template.
+   */
+  public static class SetBitField {
+    private final String name;
+    private final String allSet;
+
+    SetBitField(String name, int allSet) {
+      this.name = name;
+      this.allSet = hex(allSet);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** The value of the field when every primitive property that it covers has been set. */
+    public String getAllSet() {
+      return allSet;
     }
   }
 
@@ -411,8 +498,7 @@ class BuilderSpec {
 
   // Return a set of all abstract methods in the given TypeElement or inherited from ancestors.
   private Set<ExecutableElement> abstractMethods(TypeElement typeElement) {
-    Set<ExecutableElement> methods = getLocalAndInheritedMethods(
-        typeElement, processingEnv.getTypeUtils(), processingEnv.getElementUtils());
+    Set<ExecutableElement> methods = methodsCache.getLocalAndInheritedMethods(typeElement);
     ImmutableSet.Builder<ExecutableElement> abstractMethods = ImmutableSet.builder();
     for (ExecutableElement method : methods) {
       if (method.getModifiers().contains(Modifier.ABSTRACT)) {
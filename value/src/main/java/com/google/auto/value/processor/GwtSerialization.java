@@ -43,12 +43,17 @@ import javax.tools.JavaFileObject;
 class GwtSerialization {
   private final GwtCompatibility gwtCompatibility;
   private final ProcessingEnvironment processingEnv;
+  private final RenderQueue renderQueue;
   private final TypeElement type;
 
   GwtSerialization(
-      GwtCompatibility gwtCompatibility, ProcessingEnvironment processingEnv, TypeElement type) {
+      GwtCompatibility gwtCompatibility,
+      ProcessingEnvironment processingEnv,
+      RenderQueue renderQueue,
+      TypeElement type) {
     this.gwtCompatibility = gwtCompatibility;
     this.processingEnv = processingEnv;
+    this.renderQueue = renderQueue;
     this.type = type;
   }
 
@@ -97,8 +102,8 @@ class GwtSerialization {
         vars.props.add(new Property(prop));
       }
       vars.classHashString = computeClassHash(autoVars.props);
-      String text = vars.toText();
-      writeSourceFile(className, text, type);
+      renderQueue.render(
+          vars, false, type, className, (text, reformat) -> writeSourceFile(className, text));
     }
   }
 
@@ -223,10 +228,9 @@ class GwtSerialization {
     }
   }
 
-  private void writeSourceFile(String className, String text, TypeElement originatingType) {
+  private void writeSourceFile(String className, String text) {
     try {
-      JavaFileObject sourceFile =
-          processingEnv.getFiler().createSourceFile(className, originatingType);
+      JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(className, type);
       try (Writer writer = sourceFile.openWriter()) {
         writer.write(text);
       }
@@ -44,10 +44,15 @@ public class Optionalish {
 
   private final DeclaredType optionalType;
   private final String rawTypeSpelling;
+  private final String empty;
 
   private Optionalish(DeclaredType optionalType, String rawTypeSpelling) {
     this.optionalType = optionalType;
     this.rawTypeSpelling = rawTypeSpelling;
+    TypeElement typeElement = MoreElements.asType(optionalType.asElement());
+    this.empty = typeElement.getQualifiedName().toString().startsWith("java.util.")
+        ? ".empty()"
+        : ".absent()";
   }
 
   /**
@@ -96,10 +101,6 @@ public class Optionalish {
    * templates.
    */
   public String getEmpty() {
-    TypeElement typeElement = MoreElements.asType(optionalType.asElement());
-    String empty = typeElement.getQualifiedName().toString().startsWith("java.util.")
-        ? ".empty()"
-        : ".absent()";
     return rawTypeSpelling + empty;
   }
 
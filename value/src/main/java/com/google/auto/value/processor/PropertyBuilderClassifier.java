@@ -15,7 +15,7 @@
  */
 package com.google.auto.value.processor;
 
-import com.google.auto.common.MoreElements;
+import com.google.auto.common.LocalAndInheritedMethodsCache;
 import com.google.auto.common.MoreTypes;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableBiMap;
@@ -50,6 +50,7 @@ class PropertyBuilderClassifier {
   private final ErrorReporter errorReporter;
   private final Types typeUtils;
   private final Elements elementUtils;
+  private final LocalAndInheritedMethodsCache methodsCache;
   private final BuilderMethodClassifier builderMethodClassifier;
   private final ImmutableBiMap<ExecutableElement, String> getterToPropertyName;
   private final TypeSimplifier typeSimplifier;
@@ -59,6 +60,7 @@ class PropertyBuilderClassifier {
       ErrorReporter errorReporter,
       Types typeUtils,
       Elements elementUtils,
+      LocalAndInheritedMethodsCache methodsCache,
       BuilderMethodClassifier builderMethodClassifier,
       ImmutableBiMap<ExecutableElement, String> getterToPropertyName,
       TypeSimplifier typeSimplifier,
@@ -66,6 +68,7 @@ class PropertyBuilderClassifier {
     this.errorReporter = errorReporter;
     this.typeUtils = typeUtils;
     this.elementUtils = elementUtils;
+    this.methodsCache = methodsCache;
     this.builderMethodClassifier = builderMethodClassifier;
     this.getterToPropertyName = getterToPropertyName;
     this.typeSimplifier = typeSimplifier;
@@ -80,6 +83,7 @@ class PropertyBuilderClassifier {
    */
   public static class PropertyBuilder {
     private final ExecutableElement propertyBuilderMethod;
+    private final String access;
     private final String name;
     private final String builderType;
     private final String initializer;
@@ -97,6 +101,7 @@ class PropertyBuilderClassifier {
         String builtToBuilder,
         String copyAll) {
       this.propertyBuilderMethod = propertyBuilderMethod;
+      this.access = AutoValueProcessor.access(propertyBuilderMethod);
       this.name = propertyBuilderMethod.getSimpleName() + "$";
       this.builderType = builderType;
       this.initializer = initializer;
@@ -112,7 +117,7 @@ class PropertyBuilderClassifier {
     }
 
     public String getAccess() {
-      return AutoValueProcessor.access(propertyBuilderMethod);
+      return access;
     }
 
     /** The name of the field to hold this builder. */
@@ -341,7 +346,7 @@ class PropertyBuilderClassifier {
 
   private Optional<ExecutableElement> addAllPutAll(TypeElement barBuilderTypeElement) {
     for (ExecutableElement method :
-        MoreElements.getLocalAndInheritedMethods(barBuilderTypeElement, typeUtils, elementUtils)) {
+        methodsCache.getLocalAndInheritedMethods(barBuilderTypeElement)) {
       Name name = method.getSimpleName();
       if (name.contentEquals("addAll") || name.contentEquals("putAll")) {
         return Optional.of(method);
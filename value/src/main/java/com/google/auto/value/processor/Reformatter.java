@@ -15,51 +15,128 @@
  */
 package com.google.auto.value.processor;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
 /**
  * Postprocessor that runs over the output of the template engine in order to make it look nicer.
  * Mostly, this involves removing surplus horizontal and vertical space.
  *
+ * <p>The input is scanned once, using {@link JavaScanner}, and each stretch of it that is unchanged
+ * is written directly to the output, so the reformatted text can go straight to the file that is
+ * being generated without any intermediate strings. Three things are changed:
+ * <ul>
+ *   <li>Trailing space is removed from every line.
+ *   <li>Extra blank lines are removed. An "extra" blank line is either a blank line where the
+ *       previous line was also blank; or a blank line that appears inside parentheses or inside
+ *       more than one set of braces. This means that we preserve blank lines inside our top-level
+ *       class, but not within our generated methods.
+ *   <li>Extra spaces are removed. An "extra" space is one that is not part of the indentation at
+ *       the start of a line, and where the next character is also a space or a right paren or a
+ *       semicolon or a dot or a comma, or the preceding character is a left paren.
+ * </ul>
+ *
+ * <p>Parentheses and braces are counted wherever they appear, even inside comments and string
+ * literals, and blank lines inside comments are treated like any other blank lines.
+ *
  * @author emcmanus@google.com (Éamonn McManus)
  */
 class Reformatter {
-  static String fixup(String s) {
-    s = removeTrailingSpace(s);
-    s = compressBlankLines(s);
-    s = compressSpace(s);
-    return s;
-  }
+  private final String s;
+  private final JavaScanner tokenizer;
+  private final Writer out;
+
+  /** The start of the text that has been accepted for the output but not yet written there. */
+  private int pendingStart;
 
-  private static String removeTrailingSpace(String s) {
-    // Remove trailing space from all lines. This is mainly to make it easier to find
-    // blank lines later.
+  /** The end of the text that has been accepted for the output but not yet written there. */
+  private int pendingEnd;
+
+  /** The last character accepted for the output, or 0 if there is none yet. */
+  private char lastChar;
+
+  private int parens;
+  private int braces;
+
+  private Reformatter(String s, Writer out) {
     if (!s.endsWith("\n")) {
       s += '\n';
     }
-    StringBuilder sb = new StringBuilder(s.length());
-    int start = 0;
-    while (start < s.length()) {
-      int nl = s.indexOf('\n', start);
-      int i = nl - 1;
-      while (i >= start && s.charAt(i) == ' ') {
-        i--;
+    this.s = s;
+    this.tokenizer = new JavaScanner(s);
+    this.out = out;
+  }
+
+  static String fixup(String s) {
+    StringWriter writer = new StringWriter(s.length());
+    try {
+      fixup(s, writer);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return writer.toString();
+  }
+
+  /** Writes the reformatted version of {@code s} to {@code out}. */
+  static void fixup(String s, Writer out) throws IOException {
+    new Reformatter(s, out).reformat();
+  }
+
+  private void reformat() throws IOException {
+    int len = s.length();
+    int end;
+    for (int start = 0; start < len; start = end) {
+      end = tokenizer.tokenEnd(start);
+      switch (s.charAt(start)) {
+        case ' ':
+          // Since we consider a newline plus following indentation to be a single token, we only
+          // see a token starting with ' ' if it is in the middle of a line. Since the string ends
+          // with \n, and a whitespace token stops at \n, it is safe to look at end.
+          char nextC = s.charAt(end);
+          if (nextC != '\n' && lastChar != '(' && ".,;)".indexOf(nextC) < 0) {
+            accept(start, start + 1);
+          }
+          break;
+        case '\n':
+          // A newline token includes the indentation of the next line. If the next line is blank,
+          // then its indentation is trailing space and the token is followed by another newline.
+          int newlines = 1;
+          while (end < len && s.charAt(end) == '\n') {
+            start = end;
+            end = tokenizer.tokenEnd(start);
+            newlines++;
+          }
+          newlines(newlines, start, end);
+          break;
+        default:
+          acceptToken(start, end);
+          break;
       }
-      sb.append(s.substring(start, i + 1)).append('\n');
-      start = nl + 1;
     }
-    return sb.toString();
+    flush();
   }
 
-  private static String compressBlankLines(String s) {
-    // Remove extra blank lines. An "extra" blank line is either a blank line where the previous
-    // line was also blank; or a blank line that appears inside parentheses or inside more than one
-    // set of braces. This means that we preserve blank lines inside our top-level class, but not
-    // within our generated methods.
-    StringBuilder sb = new StringBuilder(s.length());
-    int braces = 0;
-    int parens = 0;
-    for (int i = 0; i < s.length(); i++) {
-      char c = s.charAt(i);
-      switch (c) {
+  /**
+   * Handles a sequence of {@code count} newlines where the last one, with the indentation of the
+   * following line, is between {@code start} and {@code end}.
+   */
+  private void newlines(int count, int start, int end) throws IOException {
+    if (count > 1 && parens == 0 && braces <= 1) {
+      accept(start, start + 1);
+    }
+    accept(start, end);
+  }
+
+  /**
+   * Accepts a token that is not just space. Usually this is a single character, but it can also be
+   * a comment or a literal. A comment can contain trailing space and blank lines, which are
+   * removed as they would be anywhere else.
+   */
+  private void acceptToken(int start, int end) throws IOException {
+    int from = start;
+    for (int i = start; i < end; i++) {
+      switch (s.charAt(i)) {
         case '(':
           parens++;
           break;
@@ -72,52 +149,60 @@ class Reformatter {
         case '}':
           braces--;
           break;
-        case '\n':
-          int j = i + 1;
-          while (j < s.length() && s.charAt(j) == '\n') {
-            j++;
+        case ' ':
+          int spaceEnd = i + 1;
+          while (spaceEnd < end && s.charAt(spaceEnd) == ' ') {
+            spaceEnd++;
           }
-          if (j > i + 1) {
-            if (parens == 0 && braces <= 1) {
-              sb.append("\n");
+          if (s.charAt(spaceEnd) == '\n') {
+            accept(from, i);
+            from = spaceEnd;
+          }
+          i = spaceEnd - 1;
+          break;
+        case '\n':
+          accept(from, i);
+          int newlines = 1;
+          int lastNewline = i;
+          for (int j = i + 1; j < end && (s.charAt(j) == ' ' || s.charAt(j) == '\n'); j++) {
+            if (s.charAt(j) == '\n') {
+              newlines++;
+              lastNewline = j;
             }
-            i = j - 1;
           }
+          int indentEnd = lastNewline + 1;
+          while (indentEnd < end && s.charAt(indentEnd) == ' ') {
+            indentEnd++;
+          }
+          newlines(newlines, lastNewline, indentEnd);
+          from = indentEnd;
+          i = indentEnd - 1;
+          break;
+        default:
           break;
       }
-      sb.append(c);
     }
-    return sb.toString();
+    accept(from, end);
   }
 
-  private static String compressSpace(String s) {
-    // Remove extra spaces. An "extra" space is one that is not part of the indentation at the start
-    // of a line, and where the next character is also a space or a right paren or a semicolon
-    // or a dot or a comma, or the preceding character is a left paren.
-    // TODO(emcmanus): consider merging all three passes using this tokenization approach.
-    StringBuilder sb = new StringBuilder(s.length());
-    JavaScanner tokenizer = new JavaScanner(s);
-    int len = s.length();
-    int end;
-    for (int start = 0; start < len; start = end) {
-      end = tokenizer.tokenEnd(start);
-      if (s.charAt(start) == ' ') {
-        // Since we consider a newline plus following indentation to be a single token, we only
-        // see a token starting with ' ' if it is in the middle of a line.
-        if (sb.charAt(sb.length() - 1) == '(') {
-          continue;
-        }
-        // Since we ensure that the tokenized string ends with \n, and a whitespace token stops
-        // at \n, it is safe to look at end.
-        char nextC = s.charAt(end);
-        if (".,;)".indexOf(nextC) >= 0) {
-          continue;
-        }
-        sb.append(' ');
-      } else {
-        sb.append(s.substring(start, end));
-      }
+  /**
+   * Accepts the text between {@code start} and {@code end} for the output. Consecutive stretches of
+   * the input are combined so they can be written all at once.
+   */
+  private void accept(int start, int end) throws IOException {
+    if (start == end) {
+      return;
+    }
+    if (start != pendingEnd) {
+      flush();
+      pendingStart = start;
     }
-    return sb.toString();
+    pendingEnd = end;
+    lastChar = s.charAt(end - 1);
+  }
+
+  private void flush() throws IOException {
+    out.write(s, pendingStart, pendingEnd - pendingStart);
+    pendingStart = pendingEnd;
   }
 }
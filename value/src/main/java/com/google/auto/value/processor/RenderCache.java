@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.value.processor;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Remembers the text generated from each {@link TemplateVars} in a directory, so that a later
+ * compilation that computes the same template variables can reuse the text instead of evaluating
+ * and reformatting the template again. The cache is enabled with the processor option
+ * {@value #RENDER_CACHE_OPTION}, whose value is the directory, for example
+ * {@code javac -Acom.google.auto.value.renderCache=target/autovalue-cache ...}. The directory is
+ * created if necessary, and it can be deleted at any time.
+ *
+ * <p>Each entry is keyed by a fingerprint of the values of the template variables, of whether the
+ * text is reformatted, and of the version of the processor, so a change to any of those means a
+ * miss. The values are fingerprinted on the processor thread, since they may refer to the
+ * compiler's model of the source code.
+ *
+ * <p>On a hit, the source file is normally still written through the {@link Filer}, because the
+ * compiler needs it. But if the build has given the compiler the file that an earlier compilation
+ * generated, and that file already has the cached text, then it is not written again, so its
+ * timestamp does not change. See {@link #alreadyGenerated}.
+ *
+ * <p>When processing is over, the processor calls {@link #report} to print how many entries were
+ * found and how many were not, and how many files were left unchanged, as a compiler note.
+ */
+final class RenderCache {
+  static final String RENDER_CACHE_OPTION = "com.google.auto.value.renderCache";
+
+  private static final String SUFFIX = ".java.txt";
+
+  private final Path directory;
+  private final String processorVersion;
+  private final Filer filer;
+  private final Elements elementUtils;
+  private final ErrorReporter errorReporter;
+  private int hits;
+  private int misses;
+  private int unchanged;
+
+  private RenderCache(
+      Path directory, Filer filer, Elements elementUtils, ErrorReporter errorReporter) {
+    this.directory = directory;
+    this.processorVersion = processorVersion();
+    this.filer = filer;
+    this.elementUtils = elementUtils;
+    this.errorReporter = errorReporter;
+  }
+
+  /**
+   * Returns a cache in the directory given by the option {@value #RENDER_CACHE_OPTION} of
+   * {@code processingEnv}, or a disabled cache if that option is absent or empty.
+   */
+  static RenderCache fromOptions(
+      ProcessingEnvironment processingEnv, ErrorReporter errorReporter) {
+    String value = processingEnv.getOptions().get(RENDER_CACHE_OPTION);
+    Path directory = (value == null || value.isEmpty()) ? null : new File(value).toPath();
+    return new RenderCache(
+        directory, processingEnv.getFiler(), processingEnv.getElementUtils(), errorReporter);
+  }
+
+  boolean enabled() {
+    return directory != null;
+  }
+
+  /**
+   * Returns the key under which the text for {@code vars} is cached, or null if the cache is not
+   * enabled. This must be called on the processor thread.
+   *
+   * @param reformat whether the cached text is {@linkplain Reformatter reformatted}.
+   */
+  String key(TemplateVars vars, boolean reformat) {
+    if (!enabled()) {
+      return null;
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(processorVersion, StandardCharsets.UTF_8);
+    hasher.putString(vars.getClass().getName(), StandardCharsets.UTF_8);
+    hasher.putBoolean(reformat);
+    Fingerprinter fingerprinter = new Fingerprinter(hasher);
+    for (Field field : vars.fields()) {
+      hasher.putString(field.getName(), StandardCharsets.UTF_8);
+      fingerprinter.put(fieldValue(field, vars));
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the text cached under {@code key}, or null if there is none. Either way, the lookup
+   * is counted in the numbers that {@link #report} prints.
+   */
+  String get(String key) {
+    Path file = directory.resolve(key + SUFFIX);
+    if (Files.isRegularFile(file)) {
+      try {
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        hits++;
+        return text;
+      } catch (IOException e) {
+        // Treat an unreadable entry as a miss, and overwrite it when we put the new text.
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Returns true if the source file for the class {@code className}, whose text {@code text} was
+   * found in the cache, does not need to be written. That is so if the file that an earlier
+   * compilation generated for the class has exactly that text, and the compiler already knows the
+   * class, because the build passed that file to the compiler again, or put the class compiled
+   * from it on the classpath. Writing the file again would only change its timestamp, so that
+   * tools downstream would think that it had changed. If this returns true, it is counted in the
+   * numbers that {@link #report} prints.
+   */
+  boolean alreadyGenerated(String className, String text) {
+    int lastDot = className.lastIndexOf('.');
+    String pkg = className.substring(0, Math.max(lastDot, 0));
+    String fileName = className.substring(lastDot + 1) + ".java";
+    try {
+      FileObject existing = filer.getResource(StandardLocation.SOURCE_OUTPUT, pkg, fileName);
+      if (!existing.getCharContent(true).toString().equals(text)) {
+        return false;
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      // No earlier file, or none that we can read.
+      return false;
+    }
+    if (elementUtils.getTypeElement(className) == null) {
+      return false;
+    }
+    unchanged++;
+    return true;
+  }
+
+  /**
+   * Caches {@code text} under {@code key}. The text is written to a temporary file that is then
+   * moved into place, so a concurrent compilation that uses the same directory never sees part of
+   * an entry. A failure to write is reported as a warning, since it only costs time later.
+   */
+  void put(String key, String text) {
+    try {
+      Files.createDirectories(directory);
+      Path temp = Files.createTempFile(directory, key, ".tmp");
+      Files.write(temp, text.getBytes(StandardCharsets.UTF_8));
+      Files.move(
+          temp,
+          directory.resolve(key + SUFFIX),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      errorReporter.reportWarning(
+          "Could not write to -A" + RENDER_CACHE_OPTION + " directory " + directory + ": " + e,
+          null);
+    }
+  }
+
+  /**
+   * Prints how many entries were found and not found since the last call, and how many files
+   * were left unchanged, as a note through {@code messager}, and starts counting again. Does
+   * nothing if the cache is not enabled.
+   */
+  void report(Messager messager) {
+    if (enabled() && hits + misses > 0) {
+      messager.printMessage(
+          Diagnostic.Kind.NOTE,
+          "AutoValue render cache " + directory + ": " + hits + " hits, " + misses + " misses, "
+              + unchanged + " unchanged files");
+    }
+    hits = 0;
+    misses = 0;
+    unchanged = 0;
+  }
+
+  private static Object fieldValue(Field field, Object container) {
+    try {
+      return field.get(container);
+    } catch (IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Returns a string that changes whenever the processor does. That is the implementation
+   * version from the manifest of the processor's jar, if it has one, followed by the location and
+   * modification time of the jar that the processor was loaded from, so that a snapshot build of
+   * the processor does not reuse text produced by an earlier snapshot. If the processor was loaded
+   * from a directory of classes, as in its own tests, the time is the latest modification time of
+   * the files in this package, which include the templates.
+   */
+  private static String processorVersion() {
+    StringBuilder version = new StringBuilder();
+    Package pkg = RenderCache.class.getPackage();
+    if (pkg != null && pkg.getImplementationVersion() != null) {
+      version.append(pkg.getImplementationVersion());
+    }
+    CodeSource codeSource = RenderCache.class.getProtectionDomain().getCodeSource();
+    URL location = (codeSource == null) ? null : codeSource.getLocation();
+    if (location != null) {
+      version.append('|').append(location);
+      try {
+        File file = new File(location.toURI());
+        long lastModified = file.lastModified();
+        if (file.isDirectory()) {
+          File[] packageFiles =
+              new File(file, RenderCache.class.getPackage().getName().replace('.', '/'))
+                  .listFiles();
+          for (File packageFile : (packageFiles == null) ? new File[0] : packageFiles) {
+            lastModified = Math.max(lastModified, packageFile.lastModified());
+          }
+        }
+        version.append('|').append(lastModified);
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        // Not a file, so the location alone will have to do.
+      }
+    }
+    return version.toString();
+  }
+
+  /**
+   * Feeds a description of a template variable's value to a {@link Hasher}. Strings, primitive
+   * wrappers, and enums are described by their values. Collections, maps, and optionals are
+   * described by their contents, in iteration order, since that is the order in which a template
+   * sees them. Elements, types, and annotations from the compiler's model are described by their
+   * string forms. Any other object, such as an {@link AutoValueProcessor.Property}, is described
+   * by its class and the values of all of its instance fields, including private ones, since the
+   * template may call any of its methods and those methods may use any of its fields.
+   */
+  private static final class Fingerprinter {
+    private final Hasher hasher;
+    private final Map<Object, Integer> seen = new IdentityHashMap<Object, Integer>();
+
+    Fingerprinter(Hasher hasher) {
+      this.hasher = hasher;
+    }
+
+    void put(Object value) {
+      if (value == null) {
+        hasher.putByte((byte) 0);
+      } else if (value instanceof CharSequence
+          || value instanceof Number
+          || value instanceof Boolean
+          || value instanceof Character
+          || value instanceof Enum<?>) {
+        putString(value.getClass().getName(), value.toString());
+      } else if (value instanceof Element) {
+        putString("Element", value + " " + ((Element) value).asType());
+      } else if (value instanceof TypeMirror
+          || value instanceof AnnotationMirror
+          || value instanceof AnnotationValue) {
+        putString("Model", value.toString());
+      } else if (value instanceof Optional<?>) {
+        putString("Optional", "");
+        put(((Optional<?>) value).orNull());
+      } else if (value instanceof java.util.Optional<?>) {
+        putString("Optional", "");
+        put(((java.util.Optional<?>) value).orElse(null));
+      } else if (seen.containsKey(value)) {
+        // A cycle, or an object that we have already described, such as a property that is both
+        // in the list of properties and in the list of required builder properties. Identify it
+        // by when we first saw it.
+        putString("Seen", value.getClass().getName());
+        hasher.putInt(seen.get(value));
+      } else {
+        seen.put(value, seen.size());
+        putStructure(value);
+      }
+    }
+
+    private void putStructure(Object value) {
+      if (value instanceof Map<?, ?>) {
+        putString("Map", "");
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+          put(entry.getKey());
+          put(entry.getValue());
+        }
+        hasher.putByte((byte) 1);
+      } else if (value instanceof Multimap<?, ?>) {
+        putString("Multimap", "");
+        put(((Multimap<?, ?>) value).asMap());
+      } else if (value instanceof Iterable<?>) {
+        putString("Iterable", "");
+        for (Object element : (Iterable<?>) value) {
+          put(element);
+        }
+        hasher.putByte((byte) 1);
+      } else if (value.getClass().getName().startsWith("com.google.auto.value.")) {
+        putString("Object", value.getClass().getName());
+        for (Field field : instanceFields(value.getClass())) {
+          put(fieldValue(field, value));
+        }
+        hasher.putByte((byte) 1);
+      } else {
+        // Not a class of ours, so we can't look at its fields, and it isn't one that a template
+        // is expected to use in any other way than through its string form.
+        putString(value.getClass().getName(), value.toString());
+      }
+    }
+
+    private void putString(String kind, String value) {
+      hasher.putString(kind, StandardCharsets.UTF_8);
+      hasher.putByte((byte) 0);
+      hasher.putInt(value.length());
+      hasher.putString(value, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Returns the instance fields of {@code c} and its superclasses, not counting synthetic ones such
+   * as the reference from an inner class to its enclosing instance.
+   */
+  private static List<Field> instanceFields(Class<?> c) {
+    List<Field> fields = new ArrayList<Field>();
+    for (; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+          field.setAccessible(true);
+          fields.add(field);
+        }
+      }
+    }
+    return fields;
+  }
+}
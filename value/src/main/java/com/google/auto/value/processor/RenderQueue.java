@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.value.processor;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Evaluates the templates for the classes that {@link AutoValueProcessor} generates, optionally on
+ * a pool of worker threads. Everything that involves the compiler's model of the source code, such
+ * as filling in the {@link TemplateVars}, happens on the processor thread before a template is
+ * handed to this class. Then only template evaluation and reformatting happen on the workers.
+ * Source files are always written on the processor thread, in the order in which their templates
+ * were submitted, so the output does not depend on how the work was scheduled.
+ *
+ * <p>The number of worker threads is given by the processor option
+ * {@value #RENDER_THREADS_OPTION}. If that option is absent or less than 2, each template is
+ * evaluated and written immediately when it is submitted, just as if this class did not exist.
+ *
+ * <p>If a {@link RenderCache} is enabled, a template whose variables are the same as in an earlier
+ * compilation is not evaluated at all. The cached text is written instead, in the same position
+ * in the output order that the evaluated text would have had, unless the file that the earlier
+ * compilation generated is {@linkplain RenderCache#alreadyGenerated already there}.
+ */
+final class RenderQueue {
+  static final String RENDER_THREADS_OPTION = "com.google.auto.value.renderThreads";
+
+  /**
+   * How many templates per worker thread can be waiting to be evaluated or written before
+   * {@link #render} waits for the oldest one. This bounds the memory used by pending templates
+   * while still giving each worker something to do.
+   */
+  private static final int MAX_PENDING_PER_THREAD = 4;
+
+  /** Receives the text of a generated source file, on the processor thread. */
+  interface SourceWriter {
+    /**
+     * Writes the given text.
+     *
+     * @param reformat true if the text still needs to be {@linkplain Reformatter reformatted}.
+     */
+    void write(String text, boolean reformat);
+  }
+
+  private final TemplateProfiler templateProfiler;
+  private final RenderCache renderCache;
+  private final ErrorReporter errorReporter;
+  private final int threads;
+  private final Queue<Pending> pending = new ArrayDeque<Pending>();
+  private ExecutorService executor;
+
+  private RenderQueue(
+      TemplateProfiler templateProfiler,
+      RenderCache renderCache,
+      ErrorReporter errorReporter,
+      int threads) {
+    this.templateProfiler = templateProfiler;
+    this.renderCache = renderCache;
+    this.errorReporter = errorReporter;
+    this.threads = threads;
+  }
+
+  /**
+   * Returns a queue that uses the number of threads given by {@value #RENDER_THREADS_OPTION} in
+   * {@code options}. An invalid value is reported as a warning and means no worker threads.
+   */
+  static RenderQueue fromOptions(
+      Map<String, String> options,
+      TemplateProfiler templateProfiler,
+      RenderCache renderCache,
+      ErrorReporter errorReporter) {
+    int threads = 0;
+    String value = options.get(RENDER_THREADS_OPTION);
+    if (value != null) {
+      try {
+        threads = Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        errorReporter.reportWarning(
+            "Ignoring -A" + RENDER_THREADS_OPTION + "=" + value + ": not an integer", null);
+      }
+    }
+    return new RenderQueue(templateProfiler, renderCache, errorReporter, threads);
+  }
+
+  /**
+   * Evaluates the template of {@code vars} for the class {@code className}, and passes the result
+   * to {@code writer}. With worker
+   * threads, this happens later, and {@code vars} must not be modified after this call. An
+   * exception during evaluation is then reported as an error on {@code type}. Without worker
+   * threads, it happens before this method returns, and an exception propagates to the caller.
+   *
+   * @param reformat whether the text should be {@linkplain Reformatter reformatted}. With worker
+   *     threads, or if the text is cached, reformatting also happens here, so {@code writer} is
+   *     told that no further reformatting is needed.
+   */
+  void render(
+      TemplateVars vars,
+      boolean reformat,
+      TypeElement type,
+      String className,
+      SourceWriter writer) {
+    String cacheKey = renderCache.key(vars, reformat);
+    if (cacheKey != null) {
+      String cached = renderCache.get(cacheKey);
+      if (cached != null) {
+        if (renderCache.alreadyGenerated(className, cached)) {
+          return;
+        }
+        if (threads < 2) {
+          writer.write(cached, false);
+        } else {
+          // Queue the cached text behind any pending templates so that the output order is kept.
+          pending.add(new Pending(Futures.immediateFuture(cached), type, writer, null));
+          writeCompleted(threads * MAX_PENDING_PER_THREAD);
+        }
+        return;
+      }
+    }
+    if (threads < 2) {
+      if (cacheKey == null) {
+        writer.write(templateProfiler.toText(vars), reformat);
+      } else {
+        String rendered = templateProfiler.toText(vars);
+        String text = reformat ? Reformatter.fixup(rendered) : rendered;
+        renderCache.put(cacheKey, text);
+        writer.write(text, false);
+      }
+      return;
+    }
+    if (executor == null) {
+      executor =
+          Executors.newFixedThreadPool(
+              threads,
+              new ThreadFactoryBuilder()
+                  .setNameFormat("AutoValue renderer %d")
+                  .setDaemon(true)
+                  .build());
+    }
+    Future<String> text =
+        executor.submit(
+            () -> {
+              String rendered = templateProfiler.toText(vars);
+              return reformat ? Reformatter.fixup(rendered) : rendered;
+            });
+    pending.add(new Pending(text, type, writer, cacheKey));
+    writeCompleted(threads * MAX_PENDING_PER_THREAD);
+  }
+
+  /**
+   * Waits for the evaluation of every template that has been submitted, and writes the results.
+   * This must be called before the end of each processing round, so that the generated classes
+   * are available to the compiler in the next round.
+   */
+  void flush() {
+    writeCompleted(0);
+  }
+
+  /** Flushes the queue and stops the worker threads, if any. */
+  void close() {
+    flush();
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  /**
+   * Writes the results at the head of the queue that are available, and then waits for and writes
+   * further results until no more than {@code maxPending} remain.
+   */
+  private void writeCompleted(int maxPending) {
+    while (!pending.isEmpty()
+        && (pending.size() > maxPending || pending.peek().text.isDone())) {
+      Pending p = pending.remove();
+      String text;
+      try {
+        text = Uninterruptibles.getUninterruptibly(p.text);
+      } catch (ExecutionException e) {
+        String trace = Throwables.getStackTraceAsString(e.getCause());
+        errorReporter.reportError("@AutoValue processor threw an exception: " + trace, p.type);
+        continue;
+      }
+      if (p.cacheKey != null) {
+        renderCache.put(p.cacheKey, text);
+      }
+      p.writer.write(text, false);
+    }
+  }
+
+  private static final class Pending {
+    final Future<String> text;
+    final TypeElement type;
+    final SourceWriter writer;
+    /** The key under which to cache the text once it is available, or null not to cache it. */
+    final String cacheKey;
+
+    Pending(Future<String> text, TypeElement type, SourceWriter writer, String cacheKey) {
+      this.text = text;
+      this.type = type;
+      this.writer = writer;
+      this.cacheKey = cacheKey;
+    }
+  }
+}
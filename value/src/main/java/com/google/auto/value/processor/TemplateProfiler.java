@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.value.processor;
+
+import com.google.auto.value.processor.escapevelocity.Template;
+import com.google.auto.value.processor.escapevelocity.TemplateProfile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.processing.Messager;
+import javax.tools.Diagnostic;
+
+/**
+ * Renders {@link TemplateVars} for a processor, optionally profiling the templates. Profiling is
+ * enabled with the processor option {@value #PROFILE_TEMPLATES_OPTION}, for example
+ * {@code javac -Acom.google.auto.value.profileTemplates ...}. Then every template is interpreted,
+ * never rendered by a generated renderer, using a copy of the template that counts how many times
+ * each of its nodes is evaluated and how long that takes. When processing is over, the processor
+ * calls {@link #report} to print the results as compiler notes.
+ *
+ * <p>Profiling makes template evaluation a good deal slower than usual, so the absolute times in
+ * the report are only useful for comparing the nodes of a template with each other.
+ */
+final class TemplateProfiler {
+  static final String PROFILE_TEMPLATES_OPTION = "com.google.auto.value.profileTemplates";
+
+  private final boolean enabled;
+  private final ConcurrentMap<Class<?>, Profiled> profiled =
+      new ConcurrentHashMap<Class<?>, Profiled>();
+
+  private TemplateProfiler(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Returns a profiler that is enabled if {@code options} contains
+   * {@value #PROFILE_TEMPLATES_OPTION}, with no value or any value other than {@code false}.
+   */
+  static TemplateProfiler fromOptions(Map<String, String> options) {
+    boolean enabled =
+        options.containsKey(PROFILE_TEMPLATES_OPTION)
+            && !"false".equals(options.get(PROFILE_TEMPLATES_OPTION));
+    return new TemplateProfiler(enabled);
+  }
+
+  /**
+   * Returns the same text as {@link TemplateVars#toText() vars.toText()}, recording a profile of
+   * the template evaluation if profiling is enabled.
+   */
+  String toText(TemplateVars vars) {
+    if (!enabled) {
+      return vars.toText();
+    }
+    Profiled p = profiled.get(vars.getClass());
+    if (p == null) {
+      Profiled newP = new Profiled(vars.parsedTemplate());
+      p = profiled.putIfAbsent(vars.getClass(), newP);
+      if (p == null) {
+        p = newP;
+      }
+    }
+    return vars.toTextInterpreted(p.template);
+  }
+
+  /**
+   * Prints the profile of each template that has been evaluated since the last call, as a note
+   * through {@code messager}, and starts new profiles. Does nothing if profiling is not enabled.
+   */
+  void report(Messager messager) {
+    for (Map.Entry<Class<?>, Profiled> entry : profiled.entrySet()) {
+      TemplateProfile profile = entry.getValue().profile;
+      if (!profile.isEmpty()) {
+        messager.printMessage(
+            Diagnostic.Kind.NOTE,
+            "Template profile for " + entry.getKey().getSimpleName() + ":\n" + profile.report());
+      }
+    }
+    profiled.clear();
+  }
+
+  /** An instrumented copy of a template, and the profile that it records into. */
+  private static final class Profiled {
+    final TemplateProfile profile = new TemplateProfile();
+    final Template template;
+
+    Profiled(Template template) {
+      this.template = template.instrumented(profile);
+    }
+  }
+}
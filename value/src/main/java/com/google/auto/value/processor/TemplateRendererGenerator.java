@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.value.processor;
+
+import com.google.auto.value.processor.escapevelocity.JavaTemplateCompiler;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generates a {@link TemplateVars.Renderer} for the template of each {@link TemplateVars} subclass
+ * in this package. The build runs this once the package has been compiled, and then compiles the
+ * generated sources, so the processors can render their templates without interpreting them. If
+ * a template cannot be compiled, the exception from {@link JavaTemplateCompiler} fails the build.
+ *
+ * <p>The single argument is the directory where the generated sources are written.
+ */
+public final class TemplateRendererGenerator {
+  private TemplateRendererGenerator() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("Usage: TemplateRendererGenerator <output-directory>");
+    }
+    String packagePath = TemplateVars.class.getPackage().getName().replace('.', '/');
+    File outputDirectory = new File(args[0], packagePath);
+    if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+      throw new IOException("Could not create " + outputDirectory);
+    }
+    ImmutableList<TemplateVars> allVars = ImmutableList.of(
+        new AutoValueTemplateVars(),
+        new AutoAnnotationTemplateVars(),
+        new GwtSerialization.GwtTemplateVars());
+    for (TemplateVars vars : allVars) {
+      String className = TemplateVars.rendererClassName(vars.getClass());
+      File file = new File(outputDirectory, className + ".java");
+      Files.write(rendererSource(vars, className), file, StandardCharsets.UTF_8);
+    }
+  }
+
+  /** Returns the source code of the renderer for the given template variables. */
+  static String rendererSource(TemplateVars vars, String className) {
+    Class<? extends TemplateVars> varsClass = vars.getClass();
+    String packageName = TemplateVars.class.getPackage().getName();
+    String varsType = varsClass.getCanonicalName().substring(packageName.length() + 1);
+    JavaTemplateCompiler compiler = new JavaTemplateCompiler(
+        packageName,
+        className,
+        "TemplateVars.Renderer<" + varsType + ">",
+        varsType,
+        "vars");
+    for (Field field : vars.fields()) {
+      String code = "TemplateVars.checkSet(vars." + field.getName() + ", "
+          + stringLiteral(field.toString()) + ")";
+      compiler.addVariable(field.getName(), code, field.getGenericType());
+    }
+    return compiler.compile(vars.parsedTemplate(), varsClass.getSimpleName());
+  }
+
+  private static String stringLiteral(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+}
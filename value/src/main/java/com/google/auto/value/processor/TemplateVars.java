@@ -16,9 +16,11 @@
 package com.google.auto.value.processor;
 
 import com.google.auto.value.processor.escapevelocity.Template;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -27,12 +29,20 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.AbstractMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -48,19 +58,239 @@ import java.util.jar.JarFile;
  * same package as this class. They cannot be primitive or null, so that there is a clear indication
  * when a field has not been set.
  *
+ * <p>The build can also compile the template of a subclass into a Java class that implements
+ * {@link Renderer}, using {@link TemplateRendererGenerator}. If that class exists,
+ * {@link #toText()} uses it instead of interpreting the template, which is considerably faster.
+ * The two produce identical text.
+ *
  * @author Éamonn McManus
  */
 abstract class TemplateVars {
   abstract Template parsedTemplate();
 
-  private final ImmutableList<Field> fields;
+  private final VarsClass varsClass;
 
   TemplateVars() {
-    if (getClass().getSuperclass() != TemplateVars.class) {
+    this.varsClass = varsClass(getClass());
+  }
+
+  /**
+   * Returns the fields of this class that are template variables, in the order they were
+   * declared.
+   */
+  ImmutableList<Field> fields() {
+    return varsClass.fields;
+  }
+
+  /**
+   * Returns the result of substituting the variables defined by the fields of this class
+   * (a concrete subclass of TemplateVars) into the template returned by {@link #parsedTemplate()}.
+   */
+  String toText() {
+    Optional<Renderer<TemplateVars>> renderer = renderer(getClass());
+    if (!renderer.isPresent()) {
+      return toTextInterpreted();
+    }
+    StringBuilder output = new StringBuilder(INITIAL_OUTPUT_CAPACITY);
+    renderer.get().render(this, output);
+    String text = output.toString();
+    if (verifyRenderers) {
+      String interpreted = toTextInterpreted();
+      if (!text.equals(interpreted)) {
+        throw new IllegalStateException(
+            "Output of " + rendererClassName(getClass()) + " differs from interpreted template:\n"
+                + text + "\n---\n" + interpreted);
+      }
+    }
+    return text;
+  }
+
+  /**
+   * Returns the same result as {@link #toText()}, but always obtained by interpreting the parsed
+   * template.
+   */
+  String toTextInterpreted() {
+    return toTextInterpreted(parsedTemplate());
+  }
+
+  /**
+   * Returns the result of substituting the variables defined by the fields of this class into the
+   * given template, which is {@link #parsedTemplate()} or a copy of it that has been
+   * {@linkplain Template#instrumented instrumented} for profiling.
+   */
+  String toTextInterpreted(Template template) {
+    Map<String, Object> vars = toVars();
+    StringBuilder output = new StringBuilder(INITIAL_OUTPUT_CAPACITY);
+    try {
+      template.evaluate(vars, output);
+    } catch (IOException e) {
+      // StringBuilder.append doesn't throw IOException.
+      throw new AssertionError(e);
+    }
+    return output.toString();
+  }
+
+  /**
+   * A class generated from the template of a {@code TemplateVars} subclass, which appends the
+   * result of substituting the fields of {@code vars} into the template to {@code output}.
+   */
+  interface Renderer<T extends TemplateVars> {
+    void render(T vars, StringBuilder output);
+  }
+
+  /**
+   * If true, {@link #toText()} checks that a generated renderer produces exactly the same text as
+   * interpreting the template.
+   */
+  @VisibleForTesting
+  static volatile boolean verifyRenderers;
+
+  /**
+   * The generated renderer of each {@code TemplateVars} subclass, or absent if the subclass does
+   * not have one, for example because the build that produced it did not generate renderers.
+   */
+  private static final ConcurrentMap<Class<?>, Optional<Renderer<TemplateVars>>> renderers =
+      new ConcurrentHashMap<Class<?>, Optional<Renderer<TemplateVars>>>();
+
+  @VisibleForTesting
+  static Optional<Renderer<TemplateVars>> renderer(Class<? extends TemplateVars> varsClass) {
+    Optional<Renderer<TemplateVars>> renderer = renderers.get(varsClass);
+    if (renderer == null) {
+      renderer = loadRenderer(varsClass);
+      renderers.put(varsClass, renderer);
+    }
+    return renderer;
+  }
+
+  private static Optional<Renderer<TemplateVars>> loadRenderer(
+      Class<? extends TemplateVars> varsClass) {
+    String varsClassName = varsClass.getName();
+    String name =
+        varsClassName.substring(0, varsClassName.lastIndexOf('.') + 1)
+            + rendererClassName(varsClass);
+    Object renderer;
+    try {
+      Class<?> rendererClass = Class.forName(name, true, varsClass.getClassLoader());
+      Constructor<?> constructor = rendererClass.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      renderer = constructor.newInstance();
+    } catch (ClassNotFoundException e) {
+      return Optional.absent();
+    } catch (ReflectiveOperationException e) {
+      throw new AssertionError(e);
+    }
+    @SuppressWarnings("unchecked")  // the generated class implements Renderer<varsClass>
+    Renderer<TemplateVars> typedRenderer = (Renderer<TemplateVars>) renderer;
+    return Optional.of(typedRenderer);
+  }
+
+  /**
+   * Returns the simple name of the generated renderer for the given class, which is in the same
+   * package. For example, the renderer for {@code GwtSerialization.GwtTemplateVars} is
+   * {@code GwtSerialization_GwtTemplateVarsRenderer}.
+   */
+  static String rendererClassName(Class<?> varsClass) {
+    String name = varsClass.getName();
+    name = name.substring(name.lastIndexOf('.') + 1);
+    return name.replace('$', '_') + "Renderer";
+  }
+
+  /**
+   * Returns {@code value}, the value of the given field, after checking that it has been set. This
+   * is the same check that is made when a template is interpreted. It is called by generated
+   * renderers.
+   */
+  static <T> T checkSet(T value, String field) {
+    if (value == null) {
+      throw new IllegalArgumentException("Field cannot be null (was it set?): " + field);
+    }
+    return value;
+  }
+
+  /**
+   * The initial size of the buffer that template output is written into. Generated classes are
+   * typically a few thousand characters long, so starting with a buffer of this size means that
+   * it rarely needs to be reallocated during template evaluation.
+   */
+  private static final int INITIAL_OUTPUT_CAPACITY = 8192;
+
+  /**
+   * Returns the template variables defined by the fields of this object, as a map from field name
+   * to value. The map is a view of an array of the field values, so building it does not involve
+   * copying the values into a new map.
+   */
+  private Map<String, Object> toVars() {
+    ImmutableList<Field> fields = varsClass.fields;
+    ImmutableList<MethodHandle> getters = varsClass.getters;
+    Object[] values = new Object[fields.size()];
+    for (int i = 0; i < values.length; i++) {
+      Object value = fieldValue(getters.get(i), this);
+      if (value == null) {
+        throw new IllegalArgumentException("Field cannot be null (was it set?): " + fields.get(i));
+      }
+      values[i] = value;
+    }
+    return new VarsMap(varsClass.indexes, values);
+  }
+
+  /**
+   * What we know about the template variables of a {@code TemplateVars} subclass. This is computed
+   * once per subclass, the first time it is instantiated, rather than every time an instance is
+   * constructed or evaluated.
+   */
+  private static final class VarsClass {
+    /** The fields that are template variables, in the order they were declared. */
+    final ImmutableList<Field> fields;
+
+    /**
+     * Method handles that read each of the {@link #fields} from a {@code TemplateVars} instance.
+     * Each has the type {@code (TemplateVars)Object}.
+     */
+    final ImmutableList<MethodHandle> getters;
+
+    /** Maps the name of each of the {@link #fields} to its index in that list. */
+    final ImmutableMap<String, Integer> indexes;
+
+    VarsClass(ImmutableList<Field> fields) {
+      this.fields = fields;
+      ImmutableList.Builder<MethodHandle> getters = ImmutableList.builder();
+      ImmutableMap.Builder<String, Integer> indexes = ImmutableMap.builder();
+      MethodType getterType = MethodType.methodType(Object.class, TemplateVars.class);
+      for (int i = 0; i < fields.size(); i++) {
+        Field field = fields.get(i);
+        field.setAccessible(true);
+        try {
+          getters.add(MethodHandles.lookup().unreflectGetter(field).asType(getterType));
+        } catch (IllegalAccessException e) {
+          throw new AssertionError(e);
+        }
+        indexes.put(field.getName(), i);
+      }
+      this.getters = getters.build();
+      this.indexes = indexes.build();
+    }
+  }
+
+  private static final ConcurrentMap<Class<?>, VarsClass> varsClasses =
+      new ConcurrentHashMap<Class<?>, VarsClass>();
+
+  private static VarsClass varsClass(Class<? extends TemplateVars> c) {
+    VarsClass varsClass = varsClasses.get(c);
+    if (varsClass == null) {
+      // If the class is invalid, this throws and nothing is cached, so every attempt to
+      // instantiate the class will throw.
+      varsClass = new VarsClass(templateVarFields(c));
+      varsClasses.put(c, varsClass);
+    }
+    return varsClass;
+  }
+
+  private static ImmutableList<Field> templateVarFields(Class<? extends TemplateVars> c) {
+    if (c.getSuperclass() != TemplateVars.class) {
       throw new IllegalArgumentException("Class must extend TemplateVars directly");
     }
     ImmutableList.Builder<Field> fields = ImmutableList.builder();
-    Field[] declaredFields = getClass().getDeclaredFields();
+    Field[] declaredFields = c.getDeclaredFields();
     for (Field field : declaredFields) {
       if (field.isSynthetic() || isStaticFinal(field)) {
         continue;
@@ -76,34 +306,77 @@ abstract class TemplateVars {
       }
       fields.add(field);
     }
-    this.fields = fields.build();
+    return fields.build();
   }
 
   /**
-   * Returns the result of substituting the variables defined by the fields of this class
-   * (a concrete subclass of TemplateVars) into the template returned by {@link #parsedTemplate()}.
+   * A read-only map from template variable names to values, backed by the array of values that
+   * {@link #toVars()} read from the fields.
    */
-  String toText() {
-    Map<String, Object> vars = toVars();
-    return parsedTemplate().evaluate(vars);
-  }
+  private static final class VarsMap extends AbstractMap<String, Object> {
+    private final ImmutableMap<String, Integer> indexes;
+    private final Object[] values;
 
-  private Map<String, Object> toVars() {
-    Map<String, Object> vars = Maps.newTreeMap();
-    for (Field field : fields) {
-      Object value = fieldValue(field, this);
-      if (value == null) {
-        throw new IllegalArgumentException("Field cannot be null (was it set?): " + field);
-      }
-      Object old = vars.put(field.getName(), value);
-      if (old != null) {
-        throw new IllegalArgumentException("Two fields called " + field.getName() + "?!");
+    VarsMap(ImmutableMap<String, Integer> indexes, Object[] values) {
+      this.indexes = indexes;
+      this.values = values;
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return indexes.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+      Integer index = indexes.get(key);
+      return (index == null) ? null : values[index];
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      ImmutableMap.Builder<String, Object> entries = ImmutableMap.builder();
+      for (Map.Entry<String, Integer> entry : indexes.entrySet()) {
+        entries.put(entry.getKey(), values[entry.getValue()]);
       }
+      return entries.build().entrySet();
     }
-    return ImmutableMap.copyOf(vars);
   }
 
+  /**
+   * Templates that have already been parsed, keyed by the URL of the resource they were parsed
+   * from. Parsed templates are immutable and can be evaluated concurrently, so a single instance can
+   * be shared by every processor instance and thread that uses the same resource. There is one
+   * entry for each template resource of this package that has been used in this class loader.
+   */
+  private static final ConcurrentMap<String, Template> parsedTemplates =
+      new ConcurrentHashMap<String, Template>();
+
   static Template parsedTemplateForResource(String resourceName) {
+    URL resourceUrl = TemplateVars.class.getResource(resourceName);
+    if (resourceUrl == null) {
+      throw new IllegalArgumentException("Could not find resource: " + resourceName);
+    }
+    String key = resourceUrl.toString();
+    Template template = parsedTemplates.get(key);
+    if (template == null) {
+      template = parseTemplateForResource(resourceName);
+      // If another thread parsed the same template at the same time, use its result so that
+      // everyone shares one instance.
+      Template previous = parsedTemplates.putIfAbsent(key, template);
+      if (previous != null) {
+        template = previous;
+      }
+    }
+    return template;
+  }
+
+  private static Template parseTemplateForResource(String resourceName) {
     InputStream in = TemplateVars.class.getResourceAsStream(resourceName);
     if (in == null) {
       throw new IllegalArgumentException("Could not find resource: " + resourceName);
@@ -195,11 +468,12 @@ abstract class TemplateVars {
     }
   }
 
-  private static Object fieldValue(Field field, Object container) {
+  private static Object fieldValue(MethodHandle getter, TemplateVars container) {
     try {
-      return field.get(container);
-    } catch (IllegalAccessException e) {
-      throw new RuntimeException(e);
+      return (Object) getter.invokeExact(container);
+    } catch (Throwable t) {
+      Throwables.throwIfUnchecked(t);
+      throw new RuntimeException(t);
     }
   }
 
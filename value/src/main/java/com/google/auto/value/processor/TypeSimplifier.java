@@ -19,7 +19,10 @@ import static java.util.stream.Collectors.joining;
 import static javax.lang.model.element.Modifier.PRIVATE;
 
 import com.google.auto.common.MoreElements;
+import com.google.auto.common.MoreTypes;
+import com.google.common.base.Equivalence;
 import com.google.common.collect.ImmutableSortedSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -81,16 +84,92 @@ final class TypeSimplifier {
    *     like {@code Set<UndefinedClass<?>>}.
    */
   TypeSimplifier(Types typeUtils, String packageName, Set<TypeMirror> types, TypeMirror base) {
-    this.typeUtils = typeUtils;
+    this(new Cache(typeUtils), packageName, types, base);
+  }
+
+  /**
+   * Makes a new simplifier for the given package and set of types, reusing the analysis of any of
+   * the types, or of the supertypes of {@code base}, that is already in {@code cache}. The
+   * parameters are otherwise as for {@link #TypeSimplifier(Types, String, Set, TypeMirror)}.
+   */
+  TypeSimplifier(Cache cache, String packageName, Set<TypeMirror> types, TypeMirror base) {
+    this.typeUtils = cache.typeUtils;
     Set<TypeMirror> typesPlusBase = new TypeMirrorSet(types);
     if (base != null) {
       typesPlusBase.add(base);
     }
-    Set<TypeMirror> referenced = referencedClassTypes(typeUtils, typesPlusBase);
-    Set<TypeMirror> defined = nonPrivateDeclaredTypes(typeUtils, base);
+    Set<TypeMirror> referenced = new TypeMirrorSet();
+    for (TypeMirror type : typesPlusBase) {
+      referenced.addAll(cache.referencedClassTypes(type));
+    }
+    Set<TypeMirror> defined =
+        (base == null) ? new TypeMirrorSet() : cache.nonPrivateDeclaredTypes(base);
     this.imports = findImports(typeUtils, packageName, referenced, defined);
   }
 
+  /**
+   * The results of analyzing individual types, which can be shared by all the
+   * {@code TypeSimplifier} instances made during one annotation-processing round. Many
+   * {@code @AutoValue} classes reference the same property types and have the same supertypes, so
+   * there is no need to find the classes referenced by {@code List<String>}, or the nested types
+   * of a common abstract superclass, again for each one. A new cache should be made for each
+   * round, since the compiler does not guarantee that a {@code TypeMirror} from one round is valid
+   * in the next.
+   */
+  static final class Cache {
+    private final Types typeUtils;
+    private final Map<Equivalence.Wrapper<TypeMirror>, Set<TypeMirror>> referencedClassTypes =
+        new HashMap<Equivalence.Wrapper<TypeMirror>, Set<TypeMirror>>();
+    private final Map<Equivalence.Wrapper<TypeMirror>, Set<TypeMirror>> nonPrivateDeclaredTypes =
+        new HashMap<Equivalence.Wrapper<TypeMirror>, Set<TypeMirror>>();
+
+    Cache(Types typeUtils) {
+      this.typeUtils = typeUtils;
+    }
+
+    /**
+     * Returns the top-level classes and interfaces that are referenced by the given type, as
+     * described for {@link TypeSimplifier#referencedClassTypes}.
+     */
+    Set<TypeMirror> referencedClassTypes(TypeMirror type) {
+      Equivalence.Wrapper<TypeMirror> key = MoreTypes.equivalence().wrap(type);
+      Set<TypeMirror> referenced = referencedClassTypes.get(key);
+      if (referenced == null) {
+        referenced = Collections.unmodifiableSet(
+            TypeSimplifier.referencedClassTypes(typeUtils, Collections.singleton(type)));
+        referencedClassTypes.put(key, referenced);
+      }
+      return referenced;
+    }
+
+    /**
+     * Returns the types that are declared with non-private visibility by the given type, any class
+     * in its superclass chain, or any interface it implements. Each supertype is analyzed only
+     * once, however many types it is a supertype of.
+     */
+    Set<TypeMirror> nonPrivateDeclaredTypes(TypeMirror type) {
+      Equivalence.Wrapper<TypeMirror> key = MoreTypes.equivalence().wrap(type);
+      Set<TypeMirror> declared = nonPrivateDeclaredTypes.get(key);
+      if (declared == null) {
+        Set<TypeMirror> newDeclared = new TypeMirrorSet();
+        newDeclared.add(type);
+        List<TypeElement> nestedTypes =
+            ElementFilter.typesIn(typeUtils.asElement(type).getEnclosedElements());
+        for (TypeElement nestedType : nestedTypes) {
+          if (!nestedType.getModifiers().contains(PRIVATE)) {
+            newDeclared.add(nestedType.asType());
+          }
+        }
+        for (TypeMirror supertype : typeUtils.directSupertypes(type)) {
+          newDeclared.addAll(nonPrivateDeclaredTypes(supertype));
+        }
+        declared = Collections.unmodifiableSet(newDeclared);
+        nonPrivateDeclaredTypes.put(key, declared);
+      }
+      return declared;
+    }
+  }
+
   /**
    * Returns the set of types to import. We import every type that is neither in java.lang nor in
    * the package containing the AutoValue class, provided that the result refers to the type
@@ -414,30 +493,6 @@ final class TypeSimplifier {
     }
   }
 
-  /**
-   * Finds all types that are declared with non private visibility by the given {@code TypeMirror},
-   * any class in its superclass chain, or any interface it implements.
-   */
-  private static Set<TypeMirror> nonPrivateDeclaredTypes(Types typeUtils, TypeMirror type) {
-    if (type == null) {
-      return new TypeMirrorSet();
-    } else {
-      Set<TypeMirror> declared = new TypeMirrorSet();
-      declared.add(type);
-      List<TypeElement> nestedTypes =
-          ElementFilter.typesIn(typeUtils.asElement(type).getEnclosedElements());
-      for (TypeElement nestedType : nestedTypes) {
-        if (!nestedType.getModifiers().contains(PRIVATE)) {
-          declared.add(nestedType.asType());
-        }
-      }
-      for (TypeMirror supertype : typeUtils.directSupertypes(type)) {
-        declared.addAll(nonPrivateDeclaredTypes(typeUtils, supertype));
-      }
-      return declared;
-    }
-  }
-
   private static Set<String> ambiguousNames(Types typeUtils, Set<TypeMirror> types) {
     Set<String> ambiguous = new HashSet<String>();
     Map<String, Name> simpleNamesToQualifiedNames = new HashMap<String, Name>();
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.auto.value.processor.escapevelocity;
+
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.ForEachNode;
+import com.google.auto.value.processor.escapevelocity.ExpressionNode.BinaryExpressionNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.IndexReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.MemberReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.MethodReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.PlainReferenceNode;
+import com.google.common.collect.ImmutableList;
+import java.util.Iterator;
+
+/**
+ * Runtime support for the Java classes that {@link JavaTemplateCompiler} generates from templates.
+ * Generated code calls these methods for the parts of a template that could not be translated into
+ * plain Java, typically because the type of a value is not known until the template is evaluated.
+ * Each method behaves exactly as the corresponding construct does when the template is
+ * interpreted, including the exceptions it throws.
+ *
+ * <p>This class is public only so that generated classes in other packages can use it.
+ */
+public final class CompiledTemplateSupport {
+  private CompiledTemplateSupport() {}
+
+  /**
+   * The value of a variable that can be changed by {@code #set} but that has not yet been given a
+   * value.
+   */
+  public static final Object UNDEFINED = new Object() {
+    @Override
+    public String toString() {
+      return "<undefined>";
+    }
+  };
+
+  /** True if {@code value} is considered true by Velocity, meaning it is not null or false. */
+  public static boolean isTrue(Object value) {
+    return ExpressionNode.isTrue(value);
+  }
+
+  /** True if {@code value} is defined and true, which is the condition tested by {@code #if}. */
+  public static boolean isDefinedAndTrue(Object value) {
+    return value != UNDEFINED && ExpressionNode.isTrue(value);
+  }
+
+  /**
+   * Returns {@code value}, which is the value of the variable {@code $id}, after checking that it
+   * is defined.
+   */
+  public static Object defined(Object value, String id) {
+    if (value == UNDEFINED) {
+      throw undefined(id);
+    }
+    return value;
+  }
+
+  private static EvaluationException undefined(String id) {
+    return new EvaluationException("Undefined reference $" + id);
+  }
+
+  /** True if {@code lhs} and {@code rhs} are equal according to Velocity's {@code ==}. */
+  public static boolean equal(Object lhs, Object rhs) {
+    return BinaryExpressionNode.equal(lhs, rhs);
+  }
+
+  /**
+   * Returns the integer value of an operand of an arithmetic or comparison operator on the given
+   * line.
+   */
+  public static int intValue(Object value, int lineNumber) {
+    if (value instanceof Integer) {
+      return (Integer) value;
+    }
+    return new ConstantExpressionNode(lineNumber, value).intValue(null);
+  }
+
+  /** Returns an iterator over the elements that {@code #foreach} visits for {@code collection}. */
+  public static Iterator<?> iterator(Object collection) {
+    return ForEachNode.iterable(collection).iterator();
+  }
+
+  public static MemberSite memberSite(int lineNumber, String id) {
+    return new MemberSite(lineNumber, id);
+  }
+
+  public static MethodSite methodSite(int lineNumber, String id, int argumentCount) {
+    return new MethodSite(lineNumber, id, argumentCount);
+  }
+
+  public static IndexSite indexSite(int lineNumber) {
+    return new IndexSite(lineNumber);
+  }
+
+  /**
+   * A reference like {@code $x.foo} where the class of {@code $x} is not known until evaluation
+   * time. Each site remembers the getter it found, just as the equivalent node in an interpreted
+   * template does.
+   */
+  public static final class MemberSite {
+    private final ReferenceNode node;
+
+    MemberSite(int lineNumber, String id) {
+      this.node = new MemberReferenceNode(target(lineNumber), id);
+    }
+
+    public Object get(Object target) {
+      return node.evaluate(new ValuesContext(target));
+    }
+  }
+
+  /** A method call like {@code $x.foo($y)} that could not be resolved when it was compiled. */
+  public static final class MethodSite {
+    private final ReferenceNode node;
+
+    MethodSite(int lineNumber, String id, int argumentCount) {
+      ImmutableList.Builder<ExpressionNode> args = ImmutableList.builder();
+      for (int i = 1; i <= argumentCount; i++) {
+        args.add(new PlainReferenceNode(lineNumber, "arg" + i, i));
+      }
+      this.node = new MethodReferenceNode(target(lineNumber), id, args.build());
+    }
+
+    public Object invoke(Object target, Object[] args) {
+      Object[] values = new Object[args.length + 1];
+      values[0] = target;
+      System.arraycopy(args, 0, values, 1, args.length);
+      return node.evaluate(new ValuesContext(values));
+    }
+  }
+
+  /** An index reference like {@code $x[$i]} that could not be resolved when it was compiled. */
+  public static final class IndexSite {
+    private final ReferenceNode node;
+
+    IndexSite(int lineNumber) {
+      this.node = new IndexReferenceNode(
+          target(lineNumber), new PlainReferenceNode(lineNumber, "index", 1));
+    }
+
+    public Object get(Object target, Object index) {
+      return node.evaluate(new ValuesContext(target, index));
+    }
+  }
+
+  private static ReferenceNode target(int lineNumber) {
+    return new PlainReferenceNode(lineNumber, "target", 0);
+  }
+
+  /**
+   * The context in which the node of a site is evaluated. The target of the site is in slot 0 and
+   * its arguments, if any, are in the following slots.
+   */
+  private static final class ValuesContext implements EvaluationContext {
+    private final Object[] values;
+
+    ValuesContext(Object... values) {
+      this.values = values;
+    }
+
+    @Override
+    public Object getVar(int slot) {
+      return values[slot];
+    }
+
+    @Override
+    public boolean varIsDefined(int slot) {
+      return true;
+    }
+
+    @Override
+    public void setVar(int slot, Object value) {
+      throw readOnly();
+    }
+
+    @Override
+    public Object saveVar(int slot) {
+      throw readOnly();
+    }
+
+    @Override
+    public void restoreVar(int slot, Object savedState) {
+      throw readOnly();
+    }
+
+    private static AssertionError readOnly() {
+      return new AssertionError("The context of a compiled template site is read-only");
+    }
+  }
+}
@@ -58,18 +58,18 @@ abstract class DirectiveNode extends Node {
    * {@code $set ($x[$i] = $y)}. That is not currently supported here.
    */
   static class SetNode extends DirectiveNode {
-    private final String var;
-    private final Node expression;
+    final int slot;
+    final Node expression;
 
-    SetNode(String var, Node expression) {
+    SetNode(int slot, Node expression) {
       super(expression.lineNumber);
-      this.var = var;
+      this.slot = slot;
       this.expression = expression;
     }
 
     @Override
     Object evaluate(EvaluationContext context) {
-      context.setVar(var, expression.evaluate(context));
+      context.setVar(slot, expression.evaluate(context));
       return "";
     }
   }
@@ -82,9 +82,9 @@ abstract class DirectiveNode extends Node {
    * #if} had been used instead of {@code #elseif}.
    */
   static class IfNode extends DirectiveNode {
-    private final ExpressionNode condition;
-    private final Node truePart;
-    private final Node falsePart;
+    final ExpressionNode condition;
+    final Node truePart;
+    final Node falsePart;
 
     IfNode(int lineNumber, ExpressionNode condition, Node trueNode, Node falseNode) {
       super(lineNumber);
@@ -97,6 +97,11 @@ abstract class DirectiveNode extends Node {
       Node branch = condition.isDefinedAndTrue(context) ? truePart : falsePart;
       return branch.evaluate(context);
     }
+
+    @Override void render(EvaluationContext context, StringBuilder output) {
+      Node branch = condition.isDefinedAndTrue(context) ? truePart : falsePart;
+      branch.render(context, output);
+    }
   }
 
   /**
@@ -108,41 +113,62 @@ abstract class DirectiveNode extends Node {
    * {@code $foreach.hasNext}.
    */
   static class ForEachNode extends DirectiveNode {
-    private final String var;
-    private final ExpressionNode collection;
-    private final Node body;
+    final int slot;
+    final int forEachSlot;
+    final ExpressionNode collection;
+    final Node body;
 
-    ForEachNode(int lineNumber, String var, ExpressionNode in, Node body) {
+    /**
+     * Constructs a new node.
+     *
+     * @param slot the slot of the loop variable, {@code $x} in {@code #foreach ($x in $things)}.
+     * @param forEachSlot the slot of the {@code $foreach} variable.
+     */
+    ForEachNode(int lineNumber, int slot, int forEachSlot, ExpressionNode in, Node body) {
       super(lineNumber);
-      this.var = var;
+      this.slot = slot;
+      this.forEachSlot = forEachSlot;
       this.collection = in;
       this.body = body;
     }
 
     @Override
     Object evaluate(EvaluationContext context) {
-      Object collectionValue = collection.evaluate(context);
-      Iterable<?> iterable;
+      StringBuilder sb = new StringBuilder();
+      render(context, sb);
+      return sb.toString();
+    }
+
+    @Override
+    void render(EvaluationContext context, StringBuilder output) {
+      Iterable<?> iterable = iterable(collection.evaluate(context));
+      Object savedVar = context.saveVar(slot);
+      Object savedForEach = context.saveVar(forEachSlot);
+      Iterator<?> it = iterable.iterator();
+      context.setVar(forEachSlot, new ForEachVar(it));
+      while (it.hasNext()) {
+        context.setVar(slot, it.next());
+        body.render(context, output);
+      }
+      context.restoreVar(forEachSlot, savedForEach);
+      context.restoreVar(slot, savedVar);
+    }
+
+    /**
+     * Returns the elements that {@code #foreach} iterates over when the collection expression
+     * evaluates to {@code collectionValue}. That is the value itself if it is {@link Iterable},
+     * the elements of an array, or the values of a {@link Map}.
+     */
+    static Iterable<?> iterable(Object collectionValue) {
       if (collectionValue instanceof Iterable<?>) {
-        iterable = (Iterable<?>) collectionValue;
+        return (Iterable<?>) collectionValue;
       } else if (collectionValue instanceof Object[]) {
-        iterable = Arrays.asList((Object[]) collectionValue);
+        return Arrays.asList((Object[]) collectionValue);
       } else if (collectionValue instanceof Map<?, ?>) {
-        iterable = ((Map<?, ?>) collectionValue).values();
+        return ((Map<?, ?>) collectionValue).values();
       } else {
         throw new EvaluationException("Not iterable: " + collectionValue);
       }
-      Runnable undo = context.setVar(var, null);
-      StringBuilder sb = new StringBuilder();
-      Iterator<?> it = iterable.iterator();
-      Runnable undoForEach = context.setVar("foreach", new ForEachVar(it));
-      while (it.hasNext()) {
-        context.setVar(var, it.next());
-        sb.append(body.evaluate(context));
-      }
-      undoForEach.run();
-      undo.run();
-      return sb.toString();
     }
 
     /**
@@ -175,7 +201,7 @@ abstract class DirectiveNode extends Node {
    */
   static class MacroCallNode extends DirectiveNode {
     private final String name;
-    private final ImmutableList<Node> thunks;
+    final ImmutableList<Node> thunks;
     private Macro macro;
 
     MacroCallNode(int lineNumber, String name, ImmutableList<Node> argumentNodes) {
@@ -196,10 +222,20 @@ abstract class DirectiveNode extends Node {
       this.macro = macro;
     }
 
+    Macro macro() {
+      return macro;
+    }
+
     @Override
     Object evaluate(EvaluationContext context) {
       Verify.verifyNotNull(macro, "Macro #%s should have been linked", name);
       return macro.evaluate(context, thunks);
     }
+
+    @Override
+    void render(EvaluationContext context, StringBuilder output) {
+      Verify.verifyNotNull(macro, "Macro #%s should have been linked", name);
+      macro.render(context, thunks, output);
+    }
   }
 }
@@ -32,8 +32,9 @@
  */
 package com.google.auto.value.processor.escapevelocity;
 
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * The context of a template evaluation. This consists of the template variables and the template
@@ -41,58 +42,78 @@ import java.util.TreeMap;
  * be changed by {@code #set} directives and during the execution of {@code #foreach} and macro
  * calls. The macros are extracted from the template during parsing and never change thereafter.
  *
+ * <p>Variables are identified by <i>slots</i>, which are small integers that the parser assigns
+ * to each distinct variable name that appears in the template. See {@code Template.variableNames}.
+ *
  * @author emcmanus@google.com (Éamonn McManus)
  */
 interface EvaluationContext {
-  Object getVar(String var);
+  Object getVar(int slot);
+
+  boolean varIsDefined(int slot);
+
+  /**
+   * Sets the variable in the given slot to the given value.
+   */
+  void setVar(int slot, Object value);
 
-  boolean varIsDefined(String var);
+  /**
+   * Returns an object representing the current state of the variable in the given slot, which can
+   * later be passed to {@link #restoreVar} to restore that state. If the variable is undefined,
+   * the restored variable will be undefined too. This allows us to restore the state of {@code $x}
+   * after {@code #foreach ($x in ...)}.
+   */
+  Object saveVar(int slot);
 
   /**
-   * Sets the given variable to the given value.
-   *
-   * @return a Runnable that will restore the variable to the value it had before. If the variable
-   *     was undefined before this method was executed, the Runnable will make it undefined again.
-   *     This allows us to restore the state of {@code $x} after {@code #foreach ($x in ...)}.
+   * Restores the variable in the given slot to a state previously returned by {@link #saveVar}.
    */
-  Runnable setVar(final String var, Object value);
+  void restoreVar(int slot, Object savedState);
 
   class PlainEvaluationContext implements EvaluationContext {
-    private final Map<String, Object> vars;
+    /**
+     * The value stored in a slot whose variable is undefined. This is different from null because
+     * a variable can be defined with a null value.
+     */
+    private static final Object UNDEFINED = new Object();
+
+    private final Object[] values;
 
-    PlainEvaluationContext(Map<String, ?> vars) {
-      this.vars = new TreeMap<String, Object>(vars);
+    PlainEvaluationContext(ImmutableList<String> variableNames, Map<String, ?> vars) {
+      this.values = new Object[variableNames.size()];
+      Arrays.fill(values, UNDEFINED);
+      for (int slot = 0; slot < values.length; slot++) {
+        String name = variableNames.get(slot);
+        if (vars.containsKey(name)) {
+          values[slot] = vars.get(name);
+        }
+      }
     }
 
     @Override
-    public Object getVar(String var) {
-      return vars.get(var);
+    public Object getVar(int slot) {
+      Object value = values[slot];
+      return (value == UNDEFINED) ? null : value;
     }
 
     @Override
-    public boolean varIsDefined(String var) {
-      return vars.containsKey(var);
+    public boolean varIsDefined(int slot) {
+      return values[slot] != UNDEFINED;
     }
 
     @Override
-    public Runnable setVar(final String var, Object value) {
-      Runnable undo;
-      if (vars.containsKey(var)) {
-        final Object oldValue = vars.get(var);
-        undo = new Runnable() {
-          @Override public void run() {
-            vars.put(var, oldValue);
-          }
-        };
-      } else {
-        undo = new Runnable() {
-          @Override public void run() {
-            vars.remove(var);
-          }
-        };
-      }
-      vars.put(var, value);
-      return undo;
+    public void setVar(int slot, Object value) {
+      values[slot] = value;
+    }
+
+    @Override
+    public Object saveVar(int slot) {
+      return values[slot];
+    }
+
+    @Override
+    public void restoreVar(int slot, Object savedState) {
+      values[slot] = savedState;
     }
   }
 }
@@ -58,7 +58,14 @@ abstract class ExpressionNode extends Node {
    * true.
    */
   boolean isTrue(EvaluationContext context) {
-    Object value = evaluate(context);
+    return isTrue(evaluate(context));
+  }
+
+  /**
+   * True if the given value is considered true by Velocity, as described for
+   * {@link #isTrue(EvaluationContext)}.
+   */
+  static boolean isTrue(Object value) {
     if (value instanceof Boolean) {
       return (Boolean) value;
     } else {
@@ -113,7 +120,11 @@ abstract class ExpressionNode extends Node {
     final ExpressionNode rhs;
 
     BinaryExpressionNode(ExpressionNode lhs, Operator op, ExpressionNode rhs) {
-      super(lhs.lineNumber);
+      this(lhs.lineNumber, lhs, op, rhs);
+    }
+
+    BinaryExpressionNode(int lineNumber, ExpressionNode lhs, Operator op, ExpressionNode rhs) {
+      super(lineNumber);
       this.lhs = lhs;
       this.op = op;
       this.rhs = rhs;
@@ -171,8 +182,10 @@ abstract class ExpressionNode extends Node {
      * compares equal to each of them.
      */
     private boolean equal(EvaluationContext context) {
-      Object lhsValue = lhs.evaluate(context);
-      Object rhsValue = rhs.evaluate(context);
+      return equal(lhs.evaluate(context), rhs.evaluate(context));
+    }
+
+    static boolean equal(Object lhsValue, Object rhsValue) {
       if (lhsValue == rhsValue) {
         return true;
       }
@@ -191,10 +204,14 @@ abstract class ExpressionNode extends Node {
    * A node in the parse tree representing an expression like {@code !$a}.
    */
   static class NotExpressionNode extends ExpressionNode {
-    private final ExpressionNode expr;
+    final ExpressionNode expr;
 
     NotExpressionNode(ExpressionNode expr) {
-      super(expr.lineNumber);
+      this(expr.lineNumber, expr);
+    }
+
+    NotExpressionNode(int lineNumber, ExpressionNode expr) {
+      super(lineNumber);
       this.expr = expr;
     }
 
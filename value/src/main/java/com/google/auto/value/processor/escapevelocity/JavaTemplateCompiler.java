@@ -0,0 +1,966 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.auto.value.processor.escapevelocity;
+
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.ForEachNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.IfNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.MacroCallNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.SetNode;
+import com.google.auto.value.processor.escapevelocity.ExpressionNode.BinaryExpressionNode;
+import com.google.auto.value.processor.escapevelocity.ExpressionNode.NotExpressionNode;
+import com.google.auto.value.processor.escapevelocity.Node.Cons;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.IndexReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.MemberReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.MethodReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.PlainReferenceNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Primitives;
+import com.google.common.reflect.Invokable;
+import com.google.common.reflect.Parameter;
+import com.google.common.reflect.TypeToken;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates a {@link Template} into the source code of a Java class that produces the same output
+ * as evaluating the template, without interpreting its parse tree. The generated class implements
+ * an interface supplied by the caller, whose only method is
+ * {@code void render(P vars, StringBuilder output)}. The variables of the template are defined by
+ * {@link #addVariable}, each as a Java expression that can refer to the {@code vars} parameter,
+ * together with its declared type.
+ *
+ * <p>Declared types are what allow the generated code to be faster than the interpreter. If the
+ * type of {@code $x} is known then a reference like {@code $x.foo} compiles into a direct call of
+ * {@code getFoo()}, and the result of that call has a known type in turn. Where a type is not
+ * known, for example because it is {@code Object} or because a variable can change with
+ * {@code #set}, the generated code uses one of the call sites in {@link CompiledTemplateSupport},
+ * which behave exactly as the interpreter does. Macro calls are expanded inline.
+ *
+ * <p>Some templates cannot be compiled faithfully, for example those where a macro calls itself or
+ * a macro assigns to one of its own parameters. For those, {@link #compile} throws
+ * {@link UnsupportedOperationException} and the template can only be interpreted.
+ */
+public final class JavaTemplateCompiler {
+  private final String packageName;
+  private final String className;
+  private final String superinterface;
+  private final String parameterType;
+  private final String parameterName;
+  private final Map<String, Variable> variables = new LinkedHashMap<String, Variable>();
+
+  /**
+   * Constructs a compiler for classes with the given package and name.
+   *
+   * @param superinterface the interface that the generated class implements, as it should appear
+   *     in the {@code implements} clause.
+   * @param parameterType the type of the first parameter of the {@code render} method.
+   * @param parameterName the name of that parameter, which the code of variables can refer to.
+   */
+  public JavaTemplateCompiler(
+      String packageName,
+      String className,
+      String superinterface,
+      String parameterType,
+      String parameterName) {
+    this.packageName = packageName;
+    this.className = className;
+    this.superinterface = superinterface;
+    this.parameterType = parameterType;
+    this.parameterName = parameterName;
+  }
+
+  /**
+   * Defines the template variable {@code $name} to be the value of the Java expression
+   * {@code code}, whose declared type is {@code type}. The expression is evaluated once, at the
+   * start of the {@code render} method.
+   */
+  public void addVariable(String name, String code, Type type) {
+    if (variables.put(name, new Variable(code, type)) != null) {
+      throw new IllegalArgumentException("Duplicate variable " + name);
+    }
+  }
+
+  /**
+   * Returns the source code of a class that renders the given template.
+   *
+   * @param templateName the name of the template, used in comments and error messages.
+   * @throws UnsupportedOperationException if the template uses a feature that cannot be compiled.
+   */
+  public String compile(Template template, String templateName) {
+    return new Compilation(template, templateName).compile();
+  }
+
+  private static class Variable {
+    final String code;
+    final Type type;
+
+    Variable(String code, Type type) {
+      this.code = code;
+      this.type = type;
+    }
+  }
+
+  /**
+   * A Java expression and its static type. The type is always one that can be named in the
+   * generated code, and is {@code Object} when nothing useful is known about the value.
+   */
+  private static class JavaExpr {
+    final String code;
+    final Type type;
+
+    JavaExpr(String code, Type type) {
+      this.code = code;
+      this.type = type;
+    }
+  }
+
+  /**
+   * What a variable name means at a given point in the generated code. Scopes are immutable linked
+   * lists, so the scope of a macro call site can be kept for evaluating its arguments later.
+   */
+  private static class Scope {
+    final Scope parent;
+    final String name;
+
+    /** The value of the variable, or null if it is a macro parameter. */
+    final JavaExpr value;
+
+    /** True if this is {@code $foreach}, in which case {@link #value} is the loop's iterator. */
+    final boolean isForEach;
+
+    /** The argument of a macro parameter, which is evaluated in {@link #thunkScope}. */
+    final Node thunk;
+    final Scope thunkScope;
+
+    private Scope(
+        Scope parent,
+        String name,
+        JavaExpr value,
+        boolean isForEach,
+        Node thunk,
+        Scope thunkScope) {
+      this.parent = parent;
+      this.name = name;
+      this.value = value;
+      this.isForEach = isForEach;
+      this.thunk = thunk;
+      this.thunkScope = thunkScope;
+    }
+
+    static Scope bind(Scope parent, String name, JavaExpr value) {
+      return new Scope(parent, name, value, false, null, null);
+    }
+
+    static Scope bindForEach(Scope parent, String name, String iterator) {
+      return new Scope(parent, name, new JavaExpr(iterator, Object.class), true, null, null);
+    }
+
+    static Scope bindThunk(Scope parent, String name, Node thunk, Scope thunkScope) {
+      return new Scope(parent, name, null, false, thunk, thunkScope);
+    }
+
+    static Scope lookup(Scope scope, String name) {
+      for (Scope s = scope; s != null; s = s.parent) {
+        if (s.name.equals(name)) {
+          return s;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final String SUPPORT = "CompiledTemplateSupport";
+  private static final String OUTPUT = "output$";
+
+  /** The state of compiling one template. */
+  private class Compilation {
+    private final Template template;
+    private final String templateName;
+
+    /**
+     * The variables that can be changed by {@code #set}. Each one is a local variable of type
+     * {@code Object} for the whole of the {@code render} method, initially
+     * {@link CompiledTemplateSupport#UNDEFINED} unless it is also one of the {@link #variables}.
+     */
+    private final Map<String, String> assignedLocals = new LinkedHashMap<String, String>();
+
+    private final List<String> siteDeclarations = new ArrayList<String>();
+    private final StringBuilder body = new StringBuilder();
+    private final Set<Macro> expanding = newMacroSet();
+    private int indent = 2;
+    private int nextId;
+
+    Compilation(Template template, String templateName) {
+      this.template = template;
+      this.templateName = templateName;
+    }
+
+    String compile() {
+      Set<String> assignedNames = new LinkedHashSet<String>();
+      collectBoundNames(template.root(), false, assignedNames, newMacroSet());
+      Scope scope = null;
+      for (Map.Entry<String, Variable> entry : variables.entrySet()) {
+        String name = entry.getKey();
+        Variable variable = entry.getValue();
+        String local = newLocal(name);
+        if (assignedNames.contains(name)) {
+          line("Object " + local + " = " + variable.code + ";");
+          assignedLocals.put(name, local);
+        } else {
+          Type type = nameable(variable.type);
+          line(typeName(type) + " " + local + " = " + variable.code + ";");
+          scope = Scope.bind(scope, name, new JavaExpr(local, type));
+        }
+      }
+      for (String name : assignedNames) {
+        if (!assignedLocals.containsKey(name)) {
+          String local = newLocal(name);
+          line("Object " + local + " = " + SUPPORT + ".UNDEFINED;");
+          assignedLocals.put(name, local);
+        }
+      }
+      render(template.root(), scope);
+
+      StringBuilder source = new StringBuilder();
+      source.append("// Generated from ").append(templateName)
+          .append(" by ").append(JavaTemplateCompiler.class.getSimpleName())
+          .append(". Do not edit.\n");
+      if (!packageName.isEmpty()) {
+        source.append("package ").append(packageName).append(";\n\n");
+      }
+      source.append("import ").append(CompiledTemplateSupport.class.getName()).append(";\n\n");
+      source.append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+      source.append("final class ").append(className)
+          .append(" implements ").append(superinterface).append(" {\n");
+      for (String site : siteDeclarations) {
+        source.append("  ").append(site).append("\n");
+      }
+      if (!siteDeclarations.isEmpty()) {
+        source.append("\n");
+      }
+      source.append("  @Override\n");
+      source.append("  public void render(").append(parameterType).append(" ")
+          .append(parameterName).append(", StringBuilder ").append(OUTPUT).append(") {\n");
+      source.append(body);
+      source.append("  }\n");
+      source.append("}\n");
+      return source.toString();
+    }
+
+    private void render(Node node, Scope scope) {
+      if (node instanceof Cons) {
+        for (Node child : ((Cons) node).nodes) {
+          render(child, scope);
+        }
+      } else if (node instanceof ConstantExpressionNode) {
+        Object value = node.evaluate(null);
+        if (!"".equals(value)) {
+          appendOutput(expression(node, scope));
+        }
+      } else if (node instanceof ExpressionNode) {
+        appendOutput(expression(node, scope));
+      } else if (node instanceof SetNode) {
+        renderSet((SetNode) node, scope);
+      } else if (node instanceof IfNode) {
+        renderIf((IfNode) node, scope, "if");
+        line("}");
+      } else if (node instanceof ForEachNode) {
+        renderForEach((ForEachNode) node, scope);
+      } else if (node instanceof MacroCallNode) {
+        renderMacroCall((MacroCallNode) node, scope);
+      } else {
+        throw unsupported("unexpected node " + node.getClass().getSimpleName(), node);
+      }
+    }
+
+    private void appendOutput(JavaExpr expr) {
+      Type type = expr.type;
+      if (type == String.class
+          || type == Object.class
+          || (type instanceof Class<?> && ((Class<?>) type).isPrimitive())) {
+        line(OUTPUT + ".append(" + expr.code + ");");
+      } else {
+        // Make sure we call append(Object), so for example a char[] is not appended as characters.
+        line(OUTPUT + ".append((Object) " + expr.code + ");");
+      }
+    }
+
+    private void renderSet(SetNode node, Scope scope) {
+      if (!(node.expression instanceof ExpressionNode)) {
+        throw unsupported("unexpected #set value", node);
+      }
+      String local = assignedLocals.get(name(node.slot));
+      line(local + " = " + expression(node.expression, scope).code + ";");
+    }
+
+    /**
+     * Generates an {@code if} statement for {@code node}, without the final closing brace. An
+     * {@code #elseif} generates {@code else if}, so the whole chain needs only one brace.
+     */
+    private void renderIf(IfNode node, Scope scope, String keyword) {
+      line(keyword + " (" + condition(node.condition, scope) + ") {");
+      indented(node.truePart, scope);
+      if (node.falsePart instanceof IfNode) {
+        renderIf((IfNode) node.falsePart, scope, "} else if");
+      } else if (!isEmpty(node.falsePart)) {
+        line("} else {");
+        indented(node.falsePart, scope);
+      }
+    }
+
+    private void renderForEach(ForEachNode node, Scope scope) {
+      String name = name(node.slot);
+      String forEachName = name(node.forEachSlot);
+      if (assignedLocals.containsKey(forEachName)) {
+        throw unsupported("#set ($" + forEachName + ")", node);
+      }
+      JavaExpr collection = expression(node.collection, scope);
+      Type elementType = Object.class;
+      String iterator;
+      Class<?> collectionClass = staticClass(collection.type);
+      if (collectionClass != null && Iterable.class.isAssignableFrom(collectionClass)) {
+        iterator = collection.code + ".iterator()";
+        elementType = typeArgument(collection.type, Iterable.class, 0);
+      } else if (collectionClass != null && Map.class.isAssignableFrom(collectionClass)) {
+        iterator = collection.code + ".values().iterator()";
+        elementType = typeArgument(collection.type, Map.class, 1);
+      } else if (collectionClass != null
+          && collectionClass.isArray()
+          && !collectionClass.getComponentType().isPrimitive()) {
+        iterator = "java.util.Arrays.asList(" + collection.code + ").iterator()";
+        elementType = nameable(TypeToken.of(collection.type).getComponentType().getType());
+      } else {
+        iterator = SUPPORT + ".iterator(" + collection.code + ")";
+      }
+      int id = nextId++;
+      String iteratorLocal = "it$" + id;
+      String wildcard = (elementType == Object.class) ? "?" : "? extends " + typeName(elementType);
+      line("java.util.Iterator<" + wildcard + "> " + iteratorLocal + " = " + iterator + ";");
+      String assignedLocal = assignedLocals.get(name);
+      String savedLocal = "saved$" + id;
+      if (assignedLocal != null) {
+        line("Object " + savedLocal + " = " + assignedLocal + ";");
+      }
+      line("while (" + iteratorLocal + ".hasNext()) {");
+      indent++;
+      JavaExpr element;
+      if (assignedLocal != null) {
+        line(assignedLocal + " = " + iteratorLocal + ".next();");
+        element = new JavaExpr(assignedLocal, Object.class);
+      } else {
+        String local = newLocal(name);
+        line(typeName(elementType) + " " + local + " = " + iteratorLocal + ".next();");
+        element = new JavaExpr(local, elementType);
+      }
+      Scope bodyScope = Scope.bind(scope, name, element);
+      bodyScope = Scope.bindForEach(bodyScope, forEachName, iteratorLocal);
+      render(node.body, bodyScope);
+      indent--;
+      line("}");
+      if (assignedLocal != null) {
+        line(assignedLocal + " = " + savedLocal + ";");
+      }
+    }
+
+    /**
+     * Expands a macro call inline. Each reference to a parameter in the macro body compiles into
+     * the corresponding argument, compiled in the scope of the call. That is only the same as
+     * call-by-name evaluation if the macro body does not change any of the variables the arguments
+     * refer to, and does not {@code #set} one of its parameters, so we check for both.
+     */
+    private void renderMacroCall(MacroCallNode node, Scope scope) {
+      Macro macro = node.macro();
+      if (!expanding.add(macro)) {
+        throw unsupported("recursive call of #" + macro.name(), node);
+      }
+      Set<String> assigned = new LinkedHashSet<String>();
+      collectBoundNames(macro.body(), false, assigned, newMacroSet());
+      if (!Collections.disjoint(assigned, macro.parameterNames())) {
+        throw unsupported("#" + macro.name() + " sets one of its parameters", node);
+      }
+      Set<String> bound = new LinkedHashSet<String>();
+      collectBoundNames(macro.body(), true, bound, newMacroSet());
+      Scope bodyScope = scope;
+      for (int i = 0; i < node.thunks.size(); i++) {
+        Node thunk = node.thunks.get(i);
+        Set<String> referenced = new LinkedHashSet<String>();
+        collectReferencedNames(thunk, referenced);
+        if (!Collections.disjoint(referenced, bound)) {
+          throw unsupported(
+              "#" + macro.name() + " changes variables that its arguments refer to: "
+                  + Sets.intersection(referenced, bound), node);
+        }
+        bodyScope = Scope.bindThunk(bodyScope, macro.parameterNames().get(i), thunk, scope);
+      }
+      render(macro.body(), bodyScope);
+      expanding.remove(macro);
+    }
+
+    /** Returns a Java boolean expression that is the condition of an {@code #if}. */
+    private String condition(ExpressionNode node, Scope scope) {
+      if (node instanceof PlainReferenceNode) {
+        String id = ((PlainReferenceNode) node).id;
+        if (Scope.lookup(scope, id) == null) {
+          String local = assignedLocals.get(id);
+          return (local == null) ? "false" : SUPPORT + ".isDefinedAndTrue(" + local + ")";
+        }
+      }
+      return truth(expression(node, scope));
+    }
+
+    private String truth(JavaExpr expr) {
+      if (expr.type == boolean.class) {
+        return expr.code;
+      }
+      return SUPPORT + ".isTrue(" + expr.code + ")";
+    }
+
+    private JavaExpr expression(Node node, Scope scope) {
+      if (node instanceof ConstantExpressionNode) {
+        return constant(node.evaluate(null), node);
+      } else if (node instanceof PlainReferenceNode) {
+        return plainReference((PlainReferenceNode) node, scope);
+      } else if (node instanceof MemberReferenceNode) {
+        return memberReference((MemberReferenceNode) node, scope);
+      } else if (node instanceof MethodReferenceNode) {
+        return methodReference((MethodReferenceNode) node, scope);
+      } else if (node instanceof IndexReferenceNode) {
+        return indexReference((IndexReferenceNode) node, scope);
+      } else if (node instanceof BinaryExpressionNode) {
+        return binaryExpression((BinaryExpressionNode) node, scope);
+      } else if (node instanceof NotExpressionNode) {
+        String operand = truth(expression(((NotExpressionNode) node).expr, scope));
+        return new JavaExpr("(!" + operand + ")", boolean.class);
+      } else {
+        throw unsupported("unexpected expression " + node.getClass().getSimpleName(), node);
+      }
+    }
+
+    private JavaExpr constant(Object value, Node node) {
+      if (value instanceof String) {
+        return new JavaExpr(stringLiteral((String) value), String.class);
+      } else if (value instanceof Integer) {
+        int i = (Integer) value;
+        return new JavaExpr((i < 0) ? "(" + i + ")" : String.valueOf(i), int.class);
+      } else if (value instanceof Boolean) {
+        return new JavaExpr(value.toString(), boolean.class);
+      } else {
+        throw unsupported("unexpected constant " + value, node);
+      }
+    }
+
+    private JavaExpr plainReference(PlainReferenceNode node, Scope scope) {
+      Scope binding = Scope.lookup(scope, node.id);
+      if (binding != null) {
+        if (binding.thunk != null) {
+          return expression(binding.thunk, binding.thunkScope);
+        } else if (binding.isForEach) {
+          throw unsupported("$" + node.id + " other than $" + node.id + ".hasNext", node);
+        } else {
+          return binding.value;
+        }
+      }
+      String local = assignedLocals.get(node.id);
+      if (local == null) {
+        // This variable is never defined, but it is only an error if it is actually evaluated.
+        local = SUPPORT + ".UNDEFINED";
+      }
+      return new JavaExpr(
+          SUPPORT + ".defined(" + local + ", " + stringLiteral(node.id) + ")", Object.class);
+    }
+
+    private JavaExpr memberReference(MemberReferenceNode node, Scope scope) {
+      if (node.lhs instanceof PlainReferenceNode) {
+        Scope binding = Scope.lookup(scope, ((PlainReferenceNode) node.lhs).id);
+        if (binding != null && binding.isForEach) {
+          if (!node.id.equals("hasNext")) {
+            throw unsupported("$foreach." + node.id, node);
+          }
+          return new JavaExpr(binding.value.code + ".hasNext()", boolean.class);
+        }
+      }
+      JavaExpr lhs = expression(node.lhs, scope);
+      Method getter = staticGetter(lhs.type, node.id);
+      if (getter != null) {
+        return invocation(lhs, getter, ImmutableList.<JavaExpr>of());
+      }
+      String site =
+          site("MemberSite", "memberSite(" + node.lineNumber + ", " + stringLiteral(node.id) + ")");
+      return new JavaExpr(site + ".get(" + lhs.code + ")", Object.class);
+    }
+
+    private JavaExpr methodReference(MethodReferenceNode node, Scope scope) {
+      JavaExpr lhs = expression(node.lhs, scope);
+      List<JavaExpr> args = new ArrayList<JavaExpr>();
+      for (ExpressionNode arg : node.args) {
+        args.add(expression(arg, scope));
+      }
+      Method method = staticMethod(lhs.type, node.id, args);
+      if (method != null) {
+        return invocation(lhs, method, args);
+      }
+      String site = site(
+          "MethodSite",
+          "methodSite(" + node.lineNumber + ", " + stringLiteral(node.id) + ", " + args.size()
+              + ")");
+      return new JavaExpr(
+          site + ".invoke(" + lhs.code + ", new Object[] {" + codes(args) + "})", Object.class);
+    }
+
+    private JavaExpr indexReference(IndexReferenceNode node, Scope scope) {
+      JavaExpr lhs = expression(node.lhs, scope);
+      JavaExpr index = expression(node.index, scope);
+      Class<?> lhsClass = staticClass(lhs.type);
+      if (lhsClass != null && !lhsClass.isArray()) {
+        boolean isList = List.class.isAssignableFrom(lhsClass);
+        boolean isMap = Map.class.isAssignableFrom(lhsClass);
+        if (isMap && !isList) {
+          Type valueType = typeArgument(lhs.type, Map.class, 1);
+          return new JavaExpr(lhs.code + ".get(" + index.code + ")", valueType);
+        } else if (!isMap && !isList) {
+          // The interpreter evaluates $x[$i] as $x.get($i) for anything that is not a list or map.
+          Method method = staticMethod(lhs.type, "get", ImmutableList.of(index));
+          if (method != null) {
+            return invocation(lhs, method, ImmutableList.of(index));
+          }
+        }
+      }
+      String site = site("IndexSite", "indexSite(" + node.lineNumber + ")");
+      String code = site + ".get(" + lhs.code + ", " + index.code + ")";
+      if (lhsClass != null && List.class.isAssignableFrom(lhsClass)) {
+        Type elementType = typeArgument(lhs.type, List.class, 0);
+        if (elementType != Object.class) {
+          return new JavaExpr("((" + typeName(elementType) + ") " + code + ")", elementType);
+        }
+      }
+      return new JavaExpr(code, Object.class);
+    }
+
+    private JavaExpr binaryExpression(BinaryExpressionNode node, Scope scope) {
+      JavaExpr lhs = expression(node.lhs, scope);
+      JavaExpr rhs = expression(node.rhs, scope);
+      switch (node.op) {
+        case OR:
+        case AND:
+          return new JavaExpr(
+              "(" + truth(lhs) + " " + node.op.symbol + " " + truth(rhs) + ")", boolean.class);
+        case EQUAL:
+          return new JavaExpr(
+              SUPPORT + ".equal(" + lhs.code + ", " + rhs.code + ")", boolean.class);
+        case NOT_EQUAL:
+          return new JavaExpr(
+              "(!" + SUPPORT + ".equal(" + lhs.code + ", " + rhs.code + "))", boolean.class);
+        default: // fall out
+      }
+      String code = "(" + intValue(lhs, node.lhs) + " " + node.op.symbol + " "
+          + intValue(rhs, node.rhs) + ")";
+      switch (node.op) {
+        case LESS:
+        case LESS_OR_EQUAL:
+        case GREATER:
+        case GREATER_OR_EQUAL:
+          return new JavaExpr(code, boolean.class);
+        case PLUS:
+        case MINUS:
+        case TIMES:
+        case DIVIDE:
+        case REMAINDER:
+          return new JavaExpr(code, int.class);
+        default:
+          throw new AssertionError(node.op);
+      }
+    }
+
+    private String intValue(JavaExpr expr, Node node) {
+      if (expr.type == int.class) {
+        return expr.code;
+      }
+      return SUPPORT + ".intValue(" + expr.code + ", " + node.lineNumber + ")";
+    }
+
+    /**
+     * Returns the getter that the interpreter would call for {@code $x.id} when {@code $x} has the
+     * given type, or null if that cannot be determined or the getter cannot be called directly.
+     * This follows the same search order as {@link MemberReferenceNode}.
+     */
+    private Method staticGetter(Type type, String id) {
+      Class<?> c = staticClass(type);
+      if (c == null || c.isArray()) {
+        return null;
+      }
+      String changedId = changeInitialCase(id);
+      for (String prefix : new String[] {"get", "is"}) {
+        for (String baseId : new String[] {id, changedId}) {
+          Method method;
+          try {
+            method = c.getMethod(prefix + baseId);
+          } catch (NoSuchMethodException e) {
+            continue;
+          }
+          if (prefix.equals("is") && !method.getReturnType().equals(boolean.class)) {
+            continue;
+          }
+          return directlyCallable(method) ? method : null;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the method that {@code $x.id(args)} calls when {@code $x} has the given type, if
+     * there is exactly one method of that name and the arguments can be passed to it without
+     * casts. Otherwise returns null.
+     */
+    private Method staticMethod(Type type, String id, List<JavaExpr> args) {
+      Class<?> c = staticClass(type);
+      if (c == null || c.isArray()) {
+        return null;
+      }
+      Method found = null;
+      for (Method method : c.getMethods()) {
+        if (method.getName().equals(id) && !method.isSynthetic()) {
+          if (found != null) {
+            return null;
+          }
+          found = method;
+        }
+      }
+      if (found == null
+          || !directlyCallable(found)
+          || found.getParameterTypes().length != args.size()) {
+        return null;
+      }
+      List<Parameter> parameters = TypeToken.of(type).method(found).getParameters();
+      for (int i = 0; i < args.size(); i++) {
+        if (!isAssignable(parameters.get(i).getType(), args.get(i).type)) {
+          return null;
+        }
+      }
+      return found;
+    }
+
+    private boolean directlyCallable(Method method) {
+      if (Modifier.isStatic(method.getModifiers())
+          || method.isVarArgs()
+          || method.getTypeParameters().length > 0
+          || method.getReturnType() == void.class) {
+        return false;
+      }
+      for (Class<?> exceptionType : method.getExceptionTypes()) {
+        if (!RuntimeException.class.isAssignableFrom(exceptionType)
+            && !Error.class.isAssignableFrom(exceptionType)) {
+          // The generated code would have to catch the checked exception.
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean isAssignable(TypeToken<?> parameterType, Type argType) {
+      Class<?> parameterClass = parameterType.getRawType();
+      if (parameterClass.isPrimitive()) {
+        if (!(argType instanceof Class<?>)) {
+          return false;
+        }
+        Class<?> argClass = Primitives.unwrap((Class<?>) argType);
+        return argClass.isPrimitive()
+            && MethodReferenceNode.primitiveTypeIsAssignmentCompatible(parameterClass, argClass);
+      }
+      if (argType instanceof Class<?> && ((Class<?>) argType).isPrimitive()) {
+        argType = Primitives.wrap((Class<?>) argType);
+      }
+      return parameterType.isSupertypeOf(argType);
+    }
+
+    private JavaExpr invocation(JavaExpr lhs, Method method, List<JavaExpr> args) {
+      Invokable<?, Object> invokable = TypeToken.of(lhs.type).method(method);
+      Type returnType = invokable.getReturnType().getType();
+      String code = lhs.code + "." + method.getName() + "(" + codes(args) + ")";
+      Type type = nameable(returnType);
+      if (type != returnType && !(returnType instanceof WildcardType)) {
+        code = "((" + typeName(type) + ") " + code + ")";
+      }
+      return new JavaExpr(code, type);
+    }
+
+    private String site(String siteClass, String factoryCall) {
+      String field = "site$" + siteDeclarations.size();
+      siteDeclarations.add(
+          "private static final " + SUPPORT + "." + siteClass + " " + field + " = "
+              + SUPPORT + "." + factoryCall + ";");
+      return field;
+    }
+
+    private void indented(Node node, Scope scope) {
+      indent++;
+      render(node, scope);
+      indent--;
+    }
+
+    private void line(String line) {
+      for (int i = 0; i < indent; i++) {
+        body.append("  ");
+      }
+      body.append(line).append('\n');
+    }
+
+    /**
+     * Adds to {@code names} the variables that evaluating {@code node} can change with
+     * {@code #set}, including inside any macros it calls. If {@code includeForEach} is true, this
+     * also includes the variables that are changed temporarily by {@code #foreach}.
+     */
+    private void collectBoundNames(
+        Node node, boolean includeForEach, Set<String> names, Set<Macro> visitedMacros) {
+      if (node instanceof Cons) {
+        for (Node child : ((Cons) node).nodes) {
+          collectBoundNames(child, includeForEach, names, visitedMacros);
+        }
+      } else if (node instanceof SetNode) {
+        names.add(name(((SetNode) node).slot));
+      } else if (node instanceof IfNode) {
+        IfNode ifNode = (IfNode) node;
+        collectBoundNames(ifNode.truePart, includeForEach, names, visitedMacros);
+        collectBoundNames(ifNode.falsePart, includeForEach, names, visitedMacros);
+      } else if (node instanceof ForEachNode) {
+        ForEachNode forEachNode = (ForEachNode) node;
+        if (includeForEach) {
+          names.add(name(forEachNode.slot));
+          names.add(name(forEachNode.forEachSlot));
+        }
+        collectBoundNames(forEachNode.body, includeForEach, names, visitedMacros);
+      } else if (node instanceof MacroCallNode) {
+        Macro macro = ((MacroCallNode) node).macro();
+        if (visitedMacros.add(macro)) {
+          collectBoundNames(macro.body(), includeForEach, names, visitedMacros);
+        }
+      }
+    }
+
+    private String name(int slot) {
+      return template.variableNames().get(slot);
+    }
+
+    private String newLocal(String name) {
+      return name.replace('-', '_') + "$" + nextId++;
+    }
+
+    private UnsupportedOperationException unsupported(String what, Node node) {
+      return new UnsupportedOperationException(
+          "Cannot compile " + templateName + " on line " + node.lineNumber + ": " + what);
+    }
+  }
+
+  private static Set<Macro> newMacroSet() {
+    return Collections.newSetFromMap(new IdentityHashMap<Macro, Boolean>());
+  }
+
+  /** Adds to {@code names} the variables that the expression {@code node} refers to. */
+  private static void collectReferencedNames(Node node, Set<String> names) {
+    if (node instanceof PlainReferenceNode) {
+      names.add(((PlainReferenceNode) node).id);
+    } else if (node instanceof MemberReferenceNode) {
+      collectReferencedNames(((MemberReferenceNode) node).lhs, names);
+    } else if (node instanceof MethodReferenceNode) {
+      MethodReferenceNode methodNode = (MethodReferenceNode) node;
+      collectReferencedNames(methodNode.lhs, names);
+      for (Node arg : methodNode.args) {
+        collectReferencedNames(arg, names);
+      }
+    } else if (node instanceof IndexReferenceNode) {
+      IndexReferenceNode indexNode = (IndexReferenceNode) node;
+      collectReferencedNames(indexNode.lhs, names);
+      collectReferencedNames(indexNode.index, names);
+    } else if (node instanceof BinaryExpressionNode) {
+      BinaryExpressionNode binaryNode = (BinaryExpressionNode) node;
+      collectReferencedNames(binaryNode.lhs, names);
+      collectReferencedNames(binaryNode.rhs, names);
+    } else if (node instanceof NotExpressionNode) {
+      collectReferencedNames(((NotExpressionNode) node).expr, names);
+    }
+  }
+
+  private static boolean isEmpty(Node node) {
+    return node instanceof Cons && ((Cons) node).nodes.isEmpty();
+  }
+
+  /**
+   * Returns the class whose methods can be called on an expression of the given type, or null if
+   * the type is primitive or {@code Object}, meaning that calls must be resolved at run time.
+   */
+  private static Class<?> staticClass(Type type) {
+    if (type == Object.class || (type instanceof Class<?> && ((Class<?>) type).isPrimitive())) {
+      return null;
+    }
+    return TypeToken.of(type).getRawType();
+  }
+
+  /**
+   * Returns the {@code index}th type argument of {@code supertype} as seen from {@code type}, for
+   * example {@code String} for the element type of {@code List<String>} as an {@code Iterable}.
+   */
+  private Type typeArgument(Type type, Class<?> supertype, int index) {
+    Type resolved = TypeToken.of(type).resolveType(supertype.getTypeParameters()[index]).getType();
+    return nameable(resolved);
+  }
+
+  /**
+   * Returns {@code type} if it can be named in the generated code, or otherwise the nearest type
+   * that can. That is the upper bound of a wildcard, or the raw type, or ultimately
+   * {@code Object}.
+   */
+  private Type nameable(Type type) {
+    if (typeName(type) != null) {
+      return type;
+    }
+    if (type instanceof WildcardType) {
+      return nameable(((WildcardType) type).getUpperBounds()[0]);
+    }
+    Class<?> raw = TypeToken.of(type).getRawType();
+    return (typeName(raw) == null) ? Object.class : raw;
+  }
+
+  /** Returns the Java source for {@code type}, or null if the generated class can't name it. */
+  private String typeName(Type type) {
+    if (type instanceof Class<?>) {
+      Class<?> c = (Class<?>) type;
+      if (c.isArray()) {
+        String componentName = typeName(c.getComponentType());
+        return (componentName == null) ? null : componentName + "[]";
+      } else if (c.isPrimitive()) {
+        return c.getName();
+      } else {
+        return isAccessible(c) ? c.getCanonicalName() : null;
+      }
+    } else if (type instanceof ParameterizedType) {
+      ParameterizedType parameterized = (ParameterizedType) type;
+      if (parameterized.getOwnerType() instanceof ParameterizedType) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder();
+      String rawName = typeName(parameterized.getRawType());
+      if (rawName == null) {
+        return null;
+      }
+      sb.append(rawName).append('<');
+      String sep = "";
+      for (Type arg : parameterized.getActualTypeArguments()) {
+        String argName = typeName(arg);
+        if (argName == null) {
+          return null;
+        }
+        sb.append(sep).append(argName);
+        sep = ", ";
+      }
+      return sb.append('>').toString();
+    } else if (type instanceof WildcardType) {
+      WildcardType wildcard = (WildcardType) type;
+      Type[] lowerBounds = wildcard.getLowerBounds();
+      Type bound = (lowerBounds.length > 0) ? lowerBounds[0] : wildcard.getUpperBounds()[0];
+      if (bound == Object.class) {
+        return "?";
+      }
+      String boundName = typeName(bound);
+      if (boundName == null) {
+        return null;
+      }
+      return ((lowerBounds.length > 0) ? "? super " : "? extends ") + boundName;
+    } else if (type instanceof GenericArrayType) {
+      String componentName = typeName(((GenericArrayType) type).getGenericComponentType());
+      return (componentName == null) ? null : componentName + "[]";
+    } else {
+      // A type variable, which means nothing useful is known about the type.
+      return null;
+    }
+  }
+
+  private boolean isAccessible(Class<?> c) {
+    if (c.isAnonymousClass() || c.isLocalClass()) {
+      return false;
+    }
+    for (Class<?> k = c; k != null; k = k.getEnclosingClass()) {
+      int modifiers = k.getModifiers();
+      if (Modifier.isPrivate(modifiers)) {
+        return false;
+      }
+      if (!Modifier.isPublic(modifiers) && !packageNameOf(k).equals(packageName)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String packageNameOf(Class<?> c) {
+    String name = c.getName();
+    int lastDot = name.lastIndexOf('.');
+    return (lastDot < 0) ? "" : name.substring(0, lastDot);
+  }
+
+  private static String changeInitialCase(String id) {
+    return MemberReferenceNode.changeInitialCase(id);
+  }
+
+  private static String codes(List<JavaExpr> exprs) {
+    StringBuilder sb = new StringBuilder();
+    String sep = "";
+    for (JavaExpr expr : exprs) {
+      sb.append(sep).append(expr.code);
+      sep = ", ";
+    }
+    return sb.toString();
+  }
+
+  private static String stringLiteral(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.append('"').toString();
+  }
+}
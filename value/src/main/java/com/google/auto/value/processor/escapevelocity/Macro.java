@@ -34,9 +34,8 @@ package com.google.auto.value.processor.escapevelocity;
 
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A macro definition. Macros appear in templates using the syntax {@code #macro (m $x $y) ... #end}
@@ -51,12 +50,19 @@ class Macro {
   private final int definitionLineNumber;
   private final String name;
   private final ImmutableList<String> parameterNames;
-  private final Node body;
+  private final int[] parameterSlots;
+  private Node body;
 
-  Macro(int definitionLineNumber, String name, List<String> parameterNames, Node body) {
+  Macro(
+      int definitionLineNumber,
+      String name,
+      List<String> parameterNames,
+      List<Integer> parameterSlots,
+      Node body) {
     this.definitionLineNumber = definitionLineNumber;
     this.name = name;
     this.parameterNames = ImmutableList.copyOf(parameterNames);
+    this.parameterSlots = Ints.toArray(parameterSlots);
     this.body = body;
   }
 
@@ -68,15 +74,48 @@ class Macro {
     return parameterNames.size();
   }
 
+  ImmutableList<String> parameterNames() {
+    return parameterNames;
+  }
+
+  ImmutableList<Integer> parameterSlots() {
+    return ImmutableList.copyOf(Ints.asList(parameterSlots));
+  }
+
+  Node body() {
+    return body;
+  }
+
+  /**
+   * Replaces the body of this macro with an equivalent one. This is used by {@link Optimizer} once
+   * all macros have been defined.
+   */
+  void setBody(Node body) {
+    this.body = body;
+  }
+
+  /**
+   * Returns a new macro with the same definition as this one. The copy's body can then be replaced
+   * without affecting calls that are linked to this macro.
+   */
+  Macro copy() {
+    return new Macro(
+        definitionLineNumber, name, parameterNames, Ints.asList(parameterSlots), body);
+  }
+
   Object evaluate(EvaluationContext context, List<Node> thunks) {
+    StringBuilder sb = new StringBuilder();
+    render(context, thunks, sb);
+    return sb.toString();
+  }
+
+  void render(EvaluationContext context, List<Node> thunks, StringBuilder output) {
     try {
       Verify.verify(thunks.size() == parameterNames.size(), "Argument mistmatch for %s", name);
-      Map<String, Node> parameterThunks = Maps.newLinkedHashMap();
-      for (int i = 0; i < parameterNames.size(); i++) {
-        parameterThunks.put(parameterNames.get(i), thunks.get(i));
-      }
-      EvaluationContext newContext = new MacroEvaluationContext(parameterThunks, context);
-      return body.evaluate(newContext);
+      Node[] parameterThunks = thunks.toArray(new Node[thunks.size()]);
+      EvaluationContext newContext =
+          new MacroEvaluationContext(parameterSlots, parameterThunks, context);
+      body.render(newContext, output);
     } catch (EvaluationException e) {
       EvaluationException newException = new EvaluationException(
           "In macro #" + name + " defined on line " + definitionLineNumber + ": " + e.getMessage());
@@ -102,20 +141,52 @@ class Macro {
    * but it has the same responsibility.
    */
   static class MacroEvaluationContext implements EvaluationContext {
-    private final Map<String, Node> parameterThunks;
+    private final int[] parameterSlots;
+
+    /**
+     * The thunk for each parameter, in the same order as {@link #parameterSlots}. An entry is null
+     * if the parameter has been shadowed by {@code #set}.
+     */
+    private final Node[] parameterThunks;
+
     private final EvaluationContext originalEvaluationContext;
 
     MacroEvaluationContext(
-        Map<String, Node> parameterThunks, EvaluationContext originalEvaluationContext) {
+        int[] parameterSlots,
+        Node[] parameterThunks,
+        EvaluationContext originalEvaluationContext) {
+      this.parameterSlots = parameterSlots;
       this.parameterThunks = parameterThunks;
       this.originalEvaluationContext = originalEvaluationContext;
     }
 
+    /**
+     * Returns the index of the parameter with the given slot, or -1 if there is none. If the same
+     * parameter name appears more than once, the last one wins.
+     */
+    private int parameterIndex(int slot) {
+      for (int i = parameterSlots.length - 1; i >= 0; i--) {
+        if (parameterSlots[i] == slot) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the thunk for the parameter with the given slot, or null if there is no such
+     * parameter or it has been shadowed.
+     */
+    private Node thunk(int slot) {
+      int i = parameterIndex(slot);
+      return (i < 0) ? null : parameterThunks[i];
+    }
+
     @Override
-    public Object getVar(String var) {
-      Node thunk = parameterThunks.get(var);
+    public Object getVar(int slot) {
+      Node thunk = thunk(slot);
       if (thunk == null) {
-        return originalEvaluationContext.getVar(var);
+        return originalEvaluationContext.getVar(slot);
       } else {
         // Evaluate the thunk in the context where it appeared, not in this context. Otherwise
         // if you pass $x to a parameter called $x you would get an infinite recursion. Likewise
@@ -127,27 +198,58 @@ class Macro {
     }
 
     @Override
-    public boolean varIsDefined(String var) {
-      return parameterThunks.containsKey(var) || originalEvaluationContext.varIsDefined(var);
+    public boolean varIsDefined(int slot) {
+      return thunk(slot) != null || originalEvaluationContext.varIsDefined(slot);
     }
 
     @Override
-    public Runnable setVar(final String var, Object value) {
+    public void setVar(int slot, Object value) {
       // Copy the behaviour that #set will shadow a macro parameter, even though the Velocity peeps
       // seem to agree that that is not good.
-      final Node thunk = parameterThunks.get(var);
+      int i = parameterIndex(slot);
+      if (i >= 0) {
+        parameterThunks[i] = null;
+      }
+      originalEvaluationContext.setVar(slot, value);
+    }
+
+    @Override
+    public Object saveVar(int slot) {
+      Object originalState = originalEvaluationContext.saveVar(slot);
+      Node thunk = thunk(slot);
       if (thunk == null) {
-        return originalEvaluationContext.setVar(var, value);
+        return originalState;
       } else {
-        parameterThunks.remove(var);
-        final Runnable originalUndo = originalEvaluationContext.setVar(var, value);
-        return new Runnable() {
-          @Override
-          public void run() {
-            originalUndo.run();
-            parameterThunks.put(var, thunk);
-          }
-        };
+        return new SavedParameter(this, thunk, originalState);
+      }
+    }
+
+    @Override
+    public void restoreVar(int slot, Object savedState) {
+      if (savedState instanceof SavedParameter && ((SavedParameter) savedState).context == this) {
+        SavedParameter savedParameter = (SavedParameter) savedState;
+        originalEvaluationContext.restoreVar(slot, savedParameter.originalState);
+        parameterThunks[parameterIndex(slot)] = savedParameter.thunk;
+      } else {
+        originalEvaluationContext.restoreVar(slot, savedState);
+      }
+    }
+
+    /**
+     * The saved state of a variable that was a macro parameter at the time it was saved. Restoring
+     * this state un-shadows the parameter as well as restoring the variable in the original
+     * context. This is only needed for the unusual case of a {@code #foreach} inside a macro
+     * whose loop variable has the same name as a parameter of the macro.
+     */
+    private static class SavedParameter {
+      final MacroEvaluationContext context;
+      final Node thunk;
+      final Object originalState;
+
+      SavedParameter(MacroEvaluationContext context, Node thunk, Object originalState) {
+        this.context = context;
+        this.thunk = thunk;
+        this.originalState = originalState;
       }
     }
   }
@@ -55,6 +55,16 @@ abstract class Node {
    */
   abstract Object evaluate(EvaluationContext context);
 
+  /**
+   * Appends the result of evaluating this node in the given context to {@code output}. This is
+   * what happens when the node is part of the template output rather than part of an expression.
+   * Nodes that contain other nodes override this method so that the output of their children is
+   * appended directly to {@code output} rather than first being collected into a separate string.
+   */
+  void render(EvaluationContext context, StringBuilder output) {
+    output.append(evaluate(context));
+  }
+
   EvaluationException evaluationException(String message) {
     return new EvaluationException("In expression on line " + lineNumber + ": " + message);
   }
@@ -80,8 +90,8 @@ abstract class Node {
     return new Cons(lineNumber, nodes);
   }
 
-  private static final class Cons extends Node {
-    private final ImmutableList<Node> nodes;
+  static final class Cons extends Node {
+    final ImmutableList<Node> nodes;
 
     Cons(int lineNumber, ImmutableList<Node> nodes) {
       super(lineNumber);
@@ -90,10 +100,14 @@ abstract class Node {
 
     @Override Object evaluate(EvaluationContext context) {
       StringBuilder sb = new StringBuilder();
+      render(context, sb);
+      return sb.toString();
+    }
+
+    @Override void render(EvaluationContext context, StringBuilder output) {
       for (Node node : nodes) {
-        sb.append(node.evaluate(context));
+        node.render(context, output);
       }
-      return sb.toString();
     }
   }
 }
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.auto.value.processor.escapevelocity;
+
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.ForEachNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.IfNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.MacroCallNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.SetNode;
+import com.google.auto.value.processor.escapevelocity.ExpressionNode.BinaryExpressionNode;
+import com.google.auto.value.processor.escapevelocity.ExpressionNode.NotExpressionNode;
+import com.google.auto.value.processor.escapevelocity.Node.Cons;
+import com.google.auto.value.processor.escapevelocity.Parser.Operator;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.IndexReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.MemberReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.MethodReferenceNode;
+import com.google.auto.value.processor.escapevelocity.ReferenceNode.PlainReferenceNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The last phase of parsing, which rewrites the parse tree into one that produces the same output
+ * with less work. Adjacent pieces of literal text are merged into one, and nested
+ * {@link Node.Cons} nodes are flattened. Operators and {@code #if} conditions whose operands are
+ * constants are evaluated once, here. And calls of macros are replaced by the body of the macro
+ * with the argument expressions substituted for the parameters, when that gives the same result
+ * as Velocity's call-by-name semantics, so that no thunks or extra evaluation context are needed.
+ */
+class Optimizer {
+  private final Collection<Macro> macros;
+
+  /**
+   * The macros whose bodies are being optimized or inlined. A call to one of these macros is left
+   * alone, so that a recursive macro is not inlined forever.
+   */
+  private final Set<Macro> expanding = Sets.newHashSet();
+
+  Optimizer(Collection<Macro> macros) {
+    this.macros = macros;
+  }
+
+  /**
+   * Returns an optimized version of the given template body. The body of each macro is also
+   * replaced by an optimized version, for the calls that are not inlined.
+   */
+  Node optimize(Node root) {
+    for (Macro macro : macros) {
+      expanding.add(macro);
+      macro.setBody(optimizeNode(macro.body()));
+      expanding.remove(macro);
+    }
+    return optimizeNode(root);
+  }
+
+  private Node optimizeNode(Node node) {
+    if (node instanceof Cons) {
+      return optimizeCons((Cons) node);
+    } else if (node instanceof IfNode) {
+      return optimizeIf((IfNode) node);
+    } else if (node instanceof ForEachNode) {
+      ForEachNode forEach = (ForEachNode) node;
+      return new ForEachNode(
+          forEach.lineNumber,
+          forEach.slot,
+          forEach.forEachSlot,
+          fold(forEach.collection),
+          optimizeNode(forEach.body));
+    } else if (node instanceof SetNode) {
+      SetNode set = (SetNode) node;
+      return new SetNode(set.slot, optimizeNode(set.expression));
+    } else if (node instanceof MacroCallNode) {
+      return optimizeMacroCall((MacroCallNode) node);
+    } else if (node instanceof ExpressionNode) {
+      return fold((ExpressionNode) node);
+    } else {
+      return node;
+    }
+  }
+
+  /**
+   * Optimizes each of the nodes of {@code cons}, then flattens any of the results that are
+   * themselves {@code Cons} nodes, and merges each run of literal text into a single constant.
+   * If that leaves just one node, that node is returned instead of a {@code Cons}.
+   */
+  private Node optimizeCons(Cons cons) {
+    List<Node> flattened = Lists.newArrayList();
+    for (Node node : cons.nodes) {
+      Node optimized = optimizeNode(node);
+      if (optimized instanceof Cons) {
+        flattened.addAll(((Cons) optimized).nodes);
+      } else {
+        flattened.add(optimized);
+      }
+    }
+    ImmutableList.Builder<Node> merged = ImmutableList.builder();
+    for (int i = 0; i < flattened.size(); ) {
+      Node node = flattened.get(i++);
+      if (!isText(node)) {
+        merged.add(node);
+        continue;
+      }
+      StringBuilder text = new StringBuilder((String) node.evaluate(null));
+      while (i < flattened.size() && isText(flattened.get(i))) {
+        text.append((String) flattened.get(i++).evaluate(null));
+      }
+      if (text.length() > 0) {
+        merged.add(new ConstantExpressionNode(node.lineNumber, text.toString()));
+      }
+    }
+    ImmutableList<Node> nodes = merged.build();
+    switch (nodes.size()) {
+      case 0:
+        return Node.emptyNode(cons.lineNumber);
+      case 1:
+        return nodes.get(0);
+      default:
+        return Node.cons(cons.lineNumber, nodes);
+    }
+  }
+
+  private static boolean isText(Node node) {
+    return node instanceof ConstantExpressionNode && node.evaluate(null) instanceof String;
+  }
+
+  private Node optimizeIf(IfNode ifNode) {
+    ExpressionNode condition = fold(ifNode.condition);
+    if (condition instanceof ConstantExpressionNode) {
+      return optimizeNode(condition.isTrue(null) ? ifNode.truePart : ifNode.falsePart);
+    }
+    return new IfNode(
+        ifNode.lineNumber,
+        condition,
+        optimizeNode(ifNode.truePart),
+        optimizeNode(ifNode.falsePart));
+  }
+
+  /**
+   * Returns an expression equivalent to the given one where subexpressions with constant operands
+   * have been replaced by their values. An expression whose evaluation would throw an exception is
+   * left alone, so that the exception happens when the template is evaluated, if the expression is
+   * reached then.
+   */
+  private static ExpressionNode fold(ExpressionNode node) {
+    if (node instanceof BinaryExpressionNode) {
+      BinaryExpressionNode binary = (BinaryExpressionNode) node;
+      ExpressionNode lhs = fold(binary.lhs);
+      if (lhs instanceof ConstantExpressionNode) {
+        // A constant left operand can determine the result of || or && on its own.
+        boolean lhsTrue = lhs.isTrue(null);
+        if ((binary.op == Operator.OR && lhsTrue) || (binary.op == Operator.AND && !lhsTrue)) {
+          return new ConstantExpressionNode(binary.lineNumber, lhsTrue);
+        }
+      }
+      ExpressionNode rhs = fold(binary.rhs);
+      if (lhs != binary.lhs || rhs != binary.rhs) {
+        binary = new BinaryExpressionNode(binary.lineNumber, lhs, binary.op, rhs);
+      }
+      if (lhs instanceof ConstantExpressionNode && rhs instanceof ConstantExpressionNode) {
+        return constant(binary);
+      }
+      return binary;
+    } else if (node instanceof NotExpressionNode) {
+      NotExpressionNode not = (NotExpressionNode) node;
+      ExpressionNode expr = fold(not.expr);
+      if (expr != not.expr) {
+        not = new NotExpressionNode(not.lineNumber, expr);
+      }
+      if (expr instanceof ConstantExpressionNode) {
+        return constant(not);
+      }
+      return not;
+    } else {
+      return node;
+    }
+  }
+
+  private static ExpressionNode constant(ExpressionNode node) {
+    Object value;
+    try {
+      value = node.evaluate(null);
+    } catch (RuntimeException e) {
+      return node;
+    }
+    return new ConstantExpressionNode(node.lineNumber, value);
+  }
+
+  private Node optimizeMacroCall(MacroCallNode call) {
+    Macro macro = call.macro();
+    if (expanding.contains(macro) || !canInline(macro, call.thunks)) {
+      return call;
+    }
+    Map<Integer, ReferenceNode> arguments = Maps.newHashMap();
+    ImmutableList<Integer> parameterSlots = macro.parameterSlots();
+    for (int i = 0; i < parameterSlots.size(); i++) {
+      // If the same parameter name appears more than once, the last one wins, as it does for
+      // MacroEvaluationContext.
+      arguments.put(parameterSlots.get(i), (ReferenceNode) call.thunks.get(i));
+    }
+    expanding.add(macro);
+    Node inlined = optimizeNode(new Substituter(arguments).substitute(macro.body()));
+    expanding.remove(macro);
+    return inlined;
+  }
+
+  /**
+   * True if a call of {@code macro} with the given arguments can be replaced by the body of the
+   * macro, with each reference to a parameter replaced by the corresponding argument. The arguments
+   * must all be references, since a parameter can be the left-hand side of a reference like
+   * {@code $p.foo}. Besides that, a few things can tell the difference between a parameter and the
+   * expression it stands for, and if the body does any of them we leave the call alone:
+   * <ul>
+   *   <li>{@code #set} or {@code #foreach} on a parameter shadows it;
+   *   <li>{@code #if ($p)} is an error if {@code $p} is an undefined variable but not if it is a
+   *       parameter whose argument is an undefined variable;
+   *   <li>an arithmetic or comparison error involving {@code $p} reports the line number of
+   *       {@code $p}, not that of the argument;
+   *   <li>a macro called from the body can see, and {@code #set}, the parameters of this one.
+   * </ul>
+   */
+  private boolean canInline(Macro macro, List<Node> arguments) {
+    for (Node argument : arguments) {
+      if (!(argument instanceof ReferenceNode)) {
+        return false;
+      }
+    }
+    return canSubstitute(macro.body(), ImmutableSet.copyOf(macro.parameterSlots()));
+  }
+
+  private static boolean canSubstitute(Node node, Set<Integer> parameters) {
+    if (node instanceof Cons) {
+      for (Node child : ((Cons) node).nodes) {
+        if (!canSubstitute(child, parameters)) {
+          return false;
+        }
+      }
+      return true;
+    } else if (node instanceof SetNode) {
+      SetNode set = (SetNode) node;
+      return !parameters.contains(set.slot) && canSubstitute(set.expression, parameters);
+    } else if (node instanceof IfNode) {
+      IfNode ifNode = (IfNode) node;
+      return !isParameter(ifNode.condition, parameters)
+          && canSubstitute(ifNode.condition, parameters)
+          && canSubstitute(ifNode.truePart, parameters)
+          && canSubstitute(ifNode.falsePart, parameters);
+    } else if (node instanceof ForEachNode) {
+      ForEachNode forEach = (ForEachNode) node;
+      return !parameters.contains(forEach.slot)
+          && !parameters.contains(forEach.forEachSlot)
+          && canSubstitute(forEach.collection, parameters)
+          && canSubstitute(forEach.body, parameters);
+    } else if (node instanceof MacroCallNode) {
+      MacroCallNode call = (MacroCallNode) node;
+      for (Node thunk : call.thunks) {
+        if (!canSubstitute(thunk, parameters)) {
+          return false;
+        }
+      }
+      return !usesAny(call.macro(), parameters, Sets.<Macro>newHashSet());
+    } else if (node instanceof BinaryExpressionNode) {
+      BinaryExpressionNode binary = (BinaryExpressionNode) node;
+      if (isIntegerOperator(binary.op)
+          && (isParameter(binary.lhs, parameters) || isParameter(binary.rhs, parameters))) {
+        return false;
+      }
+      return canSubstitute(binary.lhs, parameters) && canSubstitute(binary.rhs, parameters);
+    } else if (node instanceof NotExpressionNode) {
+      return canSubstitute(((NotExpressionNode) node).expr, parameters);
+    } else if (node instanceof MemberReferenceNode) {
+      return canSubstitute(((MemberReferenceNode) node).lhs, parameters);
+    } else if (node instanceof MethodReferenceNode) {
+      MethodReferenceNode method = (MethodReferenceNode) node;
+      for (ExpressionNode arg : method.args) {
+        if (!canSubstitute(arg, parameters)) {
+          return false;
+        }
+      }
+      return canSubstitute(method.lhs, parameters);
+    } else if (node instanceof IndexReferenceNode) {
+      IndexReferenceNode index = (IndexReferenceNode) node;
+      return canSubstitute(index.lhs, parameters) && canSubstitute(index.index, parameters);
+    } else {
+      return true;
+    }
+  }
+
+  private static boolean isParameter(Node node, Set<Integer> parameters) {
+    return node instanceof PlainReferenceNode
+        && parameters.contains(((PlainReferenceNode) node).slot);
+  }
+
+  /** True if {@code op} requires integer operands and so can report the line of an operand. */
+  private static boolean isIntegerOperator(Operator op) {
+    switch (op) {
+      case OR:
+      case AND:
+      case EQUAL:
+      case NOT_EQUAL:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * True if the body of {@code macro}, or of any macro it calls, mentions a variable in the given
+   * set of slots in any way.
+   */
+  private static boolean usesAny(Macro macro, Set<Integer> slots, Set<Macro> visited) {
+    return visited.add(macro) && usesAny(macro.body(), slots, visited);
+  }
+
+  private static boolean usesAny(Node node, Set<Integer> slots, Set<Macro> visited) {
+    if (node instanceof Cons) {
+      for (Node child : ((Cons) node).nodes) {
+        if (usesAny(child, slots, visited)) {
+          return true;
+        }
+      }
+      return false;
+    } else if (node instanceof PlainReferenceNode) {
+      return slots.contains(((PlainReferenceNode) node).slot);
+    } else if (node instanceof SetNode) {
+      SetNode set = (SetNode) node;
+      return slots.contains(set.slot) || usesAny(set.expression, slots, visited);
+    } else if (node instanceof IfNode) {
+      IfNode ifNode = (IfNode) node;
+      return usesAny(ifNode.condition, slots, visited)
+          || usesAny(ifNode.truePart, slots, visited)
+          || usesAny(ifNode.falsePart, slots, visited);
+    } else if (node instanceof ForEachNode) {
+      ForEachNode forEach = (ForEachNode) node;
+      return slots.contains(forEach.slot)
+          || slots.contains(forEach.forEachSlot)
+          || usesAny(forEach.collection, slots, visited)
+          || usesAny(forEach.body, slots, visited);
+    } else if (node instanceof MacroCallNode) {
+      MacroCallNode call = (MacroCallNode) node;
+      for (Node thunk : call.thunks) {
+        if (usesAny(thunk, slots, visited)) {
+          return true;
+        }
+      }
+      return usesAny(call.macro(), slots, visited);
+    } else if (node instanceof BinaryExpressionNode) {
+      BinaryExpressionNode binary = (BinaryExpressionNode) node;
+      return usesAny(binary.lhs, slots, visited) || usesAny(binary.rhs, slots, visited);
+    } else if (node instanceof NotExpressionNode) {
+      return usesAny(((NotExpressionNode) node).expr, slots, visited);
+    } else if (node instanceof MemberReferenceNode) {
+      return usesAny(((MemberReferenceNode) node).lhs, slots, visited);
+    } else if (node instanceof MethodReferenceNode) {
+      MethodReferenceNode method = (MethodReferenceNode) node;
+      for (ExpressionNode arg : method.args) {
+        if (usesAny(arg, slots, visited)) {
+          return true;
+        }
+      }
+      return usesAny(method.lhs, slots, visited);
+    } else if (node instanceof IndexReferenceNode) {
+      IndexReferenceNode index = (IndexReferenceNode) node;
+      return usesAny(index.lhs, slots, visited) || usesAny(index.index, slots, visited);
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Makes a copy of a macro body where each reference to a parameter is replaced by the
+   * corresponding argument. Every node in the copy has the same line number as the node it is a
+   * copy of, so error messages are unchanged.
+   */
+  private static class Substituter {
+    private final Map<Integer, ReferenceNode> arguments;
+
+    Substituter(Map<Integer, ReferenceNode> arguments) {
+      this.arguments = arguments;
+    }
+
+    Node substitute(Node node) {
+      if (node instanceof ExpressionNode) {
+        return substituteExpression((ExpressionNode) node);
+      } else if (node instanceof Cons) {
+        ImmutableList.Builder<Node> nodes = ImmutableList.builder();
+        for (Node child : ((Cons) node).nodes) {
+          nodes.add(substitute(child));
+        }
+        return Node.cons(node.lineNumber, nodes.build());
+      } else if (node instanceof SetNode) {
+        SetNode set = (SetNode) node;
+        return new SetNode(set.slot, substitute(set.expression));
+      } else if (node instanceof IfNode) {
+        IfNode ifNode = (IfNode) node;
+        return new IfNode(
+            ifNode.lineNumber,
+            substituteExpression(ifNode.condition),
+            substitute(ifNode.truePart),
+            substitute(ifNode.falsePart));
+      } else if (node instanceof ForEachNode) {
+        ForEachNode forEach = (ForEachNode) node;
+        return new ForEachNode(
+            forEach.lineNumber,
+            forEach.slot,
+            forEach.forEachSlot,
+            substituteExpression(forEach.collection),
+            substitute(forEach.body));
+      } else if (node instanceof MacroCallNode) {
+        MacroCallNode call = (MacroCallNode) node;
+        ImmutableList.Builder<Node> thunks = ImmutableList.builder();
+        for (Node thunk : call.thunks) {
+          thunks.add(substitute(thunk));
+        }
+        MacroCallNode newCall = new MacroCallNode(call.lineNumber, call.name(), thunks.build());
+        newCall.setMacro(call.macro());
+        return newCall;
+      } else {
+        return node;
+      }
+    }
+
+    private ExpressionNode substituteExpression(ExpressionNode node) {
+      if (node instanceof ReferenceNode) {
+        return substituteReference((ReferenceNode) node);
+      } else if (node instanceof BinaryExpressionNode) {
+        BinaryExpressionNode binary = (BinaryExpressionNode) node;
+        return new BinaryExpressionNode(
+            binary.lineNumber,
+            substituteExpression(binary.lhs),
+            binary.op,
+            substituteExpression(binary.rhs));
+      } else if (node instanceof NotExpressionNode) {
+        NotExpressionNode not = (NotExpressionNode) node;
+        return new NotExpressionNode(not.lineNumber, substituteExpression(not.expr));
+      } else {
+        return node;
+      }
+    }
+
+    private ReferenceNode substituteReference(ReferenceNode node) {
+      if (node instanceof PlainReferenceNode) {
+        ReferenceNode argument = arguments.get(((PlainReferenceNode) node).slot);
+        return (argument == null) ? node : argument;
+      } else if (node instanceof MemberReferenceNode) {
+        MemberReferenceNode member = (MemberReferenceNode) node;
+        return new MemberReferenceNode(
+            member.lineNumber, substituteReference(member.lhs), member.id);
+      } else if (node instanceof MethodReferenceNode) {
+        MethodReferenceNode method = (MethodReferenceNode) node;
+        ImmutableList.Builder<ExpressionNode> args = ImmutableList.builder();
+        for (ExpressionNode arg : method.args) {
+          args.add(substituteExpression(arg));
+        }
+        return new MethodReferenceNode(
+            method.lineNumber, substituteReference(method.lhs), method.id, args.build());
+      } else if (node instanceof IndexReferenceNode) {
+        IndexReferenceNode index = (IndexReferenceNode) node;
+        return new IndexReferenceNode(
+            index.lineNumber, substituteReference(index.lhs), substituteExpression(index.index));
+      } else {
+        return node;
+      }
+    }
+  }
+}
@@ -52,22 +52,33 @@ import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.Iterables;
+import com.google.common.io.CharStreams;
 import com.google.common.primitives.Chars;
 import com.google.common.primitives.Ints;
 import java.io.IOException;
-import java.io.LineNumberReader;
 import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A parser that reads input from the given {@link Reader} and parses it to produce a
- * {@link Template}.
+ * {@link Template}. The whole input is read into an array before parsing starts, so that parsing
+ * itself is just a scan over that array.
  *
  * @author emcmanus@google.com (Éamonn McManus)
  */
 class Parser {
   private static final int EOF = -1;
 
-  private final LineNumberReader reader;
+  /**
+   * The characters of the input. As with {@link java.io.LineNumberReader}, each of the line
+   * terminators {@code \r\n} and {@code \r} has been replaced by a single {@code \n}.
+   */
+  private final char[] chars;
+
+  /** The index in {@link #chars} of the character after {@code c}. */
+  private int pos;
 
   /**
    * The invariant of this parser is that {@code c} is always the next character of interest.
@@ -77,12 +88,41 @@ class Parser {
    */
   private int c;
 
+  /**
+   * The slot assigned to each variable name seen so far. Slots are assigned in order of first
+   * appearance, starting from 0.
+   */
+  private final Map<String, Integer> variableSlots = new LinkedHashMap<String, Integer>();
+
+  /**
+   * The line number at {@link #lineNumberPos}. Line numbers are only computed when they are
+   * needed, by counting the newlines since the last time.
+   */
+  private int lineNumber = 1;
+  private int lineNumberPos;
+
   Parser(Reader reader) throws IOException {
-    this.reader = new LineNumberReader(reader);
-    this.reader.setLineNumber(1);
+    this.chars = readChars(reader);
     next();
   }
 
+  private static char[] readChars(Reader reader) throws IOException {
+    String input = CharStreams.toString(reader);
+    char[] chars = new char[input.length()];
+    int length = 0;
+    for (int i = 0; i < input.length(); i++) {
+      char c = input.charAt(i);
+      if (c == '\r') {
+        c = '\n';
+        if (i + 1 < input.length() && input.charAt(i + 1) == '\n') {
+          i++;
+        }
+      }
+      chars[length++] = c;
+    }
+    return (length == chars.length) ? chars : Arrays.copyOf(chars, length);
+  }
+
   /**
    * Parse the input completely to produce a {@link Template}.
    *
@@ -117,27 +157,50 @@ class Parser {
    * replace the lexer with an ad-hoc parser that is the first phase described above, and we
    * define a simple parser over the resultant tokens that is the second phase.
    */
-  Template parse() throws IOException {
+  Template parse() {
     ImmutableList.Builder<Node> tokens = ImmutableList.builder();
     Node token;
     do {
       token = parseNode();
       tokens.add(token);
     } while (!(token instanceof EofNode));
-    return new Reparser(tokens.build()).reparse();
+    ImmutableList<String> variableNames = ImmutableList.copyOf(variableSlots.keySet());
+    return new Reparser(tokens.build(), variableNames).reparse();
   }
 
+  /**
+   * Returns the slot for the variable with the given name, assigning a new one if this is the first
+   * time the name has been seen.
+   */
+  private int slot(String var) {
+    Integer slot = variableSlots.get(var);
+    if (slot == null) {
+      slot = variableSlots.size();
+      variableSlots.put(var, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the number of the line we are on, counting a newline in {@code c} as already having
+   * moved to the next line.
+   */
   private int lineNumber() {
-    return reader.getLineNumber();
+    for (; lineNumberPos < pos; lineNumberPos++) {
+      if (chars[lineNumberPos] == '\n') {
+        lineNumber++;
+      }
+    }
+    return lineNumber;
   }
 
   /**
-   * Gets the next character from the reader and assigns it to {@code c}. If there are no more
+   * Gets the next character from the input and assigns it to {@code c}. If there are no more
    * characters, sets {@code c} to {@link #EOF} if it is not already.
    */
-  private void next() throws IOException {
+  private void next() {
     if (c != EOF) {
-      c = reader.read();
+      c = (pos < chars.length) ? chars[pos++] : EOF;
     }
   }
 
@@ -145,26 +208,26 @@ class Parser {
    * If {@code c} is a space character, keeps reading until {@code c} is a non-space character or
    * there are no more characters.
    */
-  private void skipSpace() throws IOException {
+  private void skipSpace() {
     while (Character.isWhitespace(c)) {
       next();
     }
   }
 
   /**
-   * Gets the next character from the reader, and if it is a space character, keeps reading until
+   * Gets the next character from the input, and if it is a space character, keeps reading until
    * a non-space character is found.
    */
-  private void nextNonSpace() throws IOException {
+  private void nextNonSpace() {
     next();
     skipSpace();
   }
 
   /**
-   * Skips any space in the reader, and then throws an exception if the first non-space character
+   * Skips any space in the input, and then throws an exception if the first non-space character
    * found is not the expected one. Sets {@code c} to the first character after that expected one.
    */
-  private void expect(char expected) throws IOException {
+  private void expect(char expected) {
     skipSpace();
     if (c == expected) {
       next();
@@ -174,14 +237,14 @@ class Parser {
   }
 
   /**
-   * Parses a single node from the reader, as part of the first parsing phase.
+   * Parses a single node from the input, as part of the first parsing phase.
    * <pre>{@code
    * <template> -> <empty> |
    *               <directive> <template> |
    *               <non-directive> <template>
    * }</pre>
    */
-  private Node parseNode() throws IOException {
+  private Node parseNode() {
     if (c == '#') {
       next();
       if (c == '#') {
@@ -197,13 +260,13 @@ class Parser {
   }
 
   /**
-   * Parses a single non-directive node from the reader.
+   * Parses a single non-directive node from the input.
    * <pre>{@code
    * <non-directive> -> <reference> |
    *                    <text containing neither $ nor #>
    * }</pre>
    */
-  private Node parseNonDirective() throws IOException {
+  private Node parseNonDirective() {
     if (c == '$') {
       next();
       if (isAsciiLetter(c) || c == '{') {
@@ -219,7 +282,7 @@ class Parser {
   }
 
   /**
-   * Parses a single directive token from the reader. Directives can be spelled with or without
+   * Parses a single directive token from the input. Directives can be spelled with or without
    * braces, for example {@code #if} or {@code #{if}}. We omit the brace spelling in the productions
    * here: <pre>{@code
    * <directive> -> <if-token> |
@@ -233,7 +296,7 @@ class Parser {
    *                <comment>
    * }</pre>
    */
-  private Node parseDirective() throws IOException {
+  private Node parseDirective() {
     String directive;
     if (c == '{') {
       next();
@@ -275,7 +338,7 @@ class Parser {
    *
    * @param directive either {@code "if"} or {@code "elseif"}.
    */
-  private Node parseIfOrElseIf(String directive) throws IOException {
+  private Node parseIfOrElseIf(String directive) {
     expect('(');
     ExpressionNode condition = parseExpression();
     expect(')');
@@ -283,11 +346,11 @@ class Parser {
   }
 
   /**
-   * Parses a {@code #foreach} token from the reader. <pre>{@code
+   * Parses a {@code #foreach} token from the input. <pre>{@code
    * <foreach-token> -> #foreach ( $<id> in <expression> )
    * }</pre>
    */
-  private Node parseForEach() throws IOException {
+  private Node parseForEach() {
     expect('(');
     expect('$');
     String var = parseId("For-each variable");
@@ -307,26 +370,26 @@ class Parser {
     next();
     ExpressionNode collection = parseExpression();
     expect(')');
-    return new ForEachTokenNode(var, collection);
+    return new ForEachTokenNode(slot(var), slot("foreach"), collection);
   }
 
   /**
-   * Parses a {@code #set} token from the reader. <pre>{@code
+   * Parses a {@code #set} token from the input. <pre>{@code
    * <set-token> -> #set ( $<id> = <expression>)
    * }</pre>
    */
-  private Node parseSet() throws IOException {
+  private Node parseSet() {
     expect('(');
     expect('$');
     String var = parseId("#set variable");
     expect('=');
     ExpressionNode expression = parseExpression();
     expect(')');
-    return new SetNode(var, expression);
+    return new SetNode(slot(var), expression);
   }
 
   /**
-   * Parses a {@code #macro} token from the reader. <pre>{@code
+   * Parses a {@code #macro} token from the input. <pre>{@code
    * <macro-token> -> #macro ( <id> <macro-parameter-list> )
    * <macro-parameter-list> -> <empty> |
    *                           $<id> <macro-parameter-list>
@@ -334,11 +397,12 @@ class Parser {
    *
    * <p>Macro parameters are not separated by commas, though method-reference parameters are.
    */
-  private Node parseMacroDefinition() throws IOException {
+  private Node parseMacroDefinition() {
     expect('(');
     skipSpace();
     String name = parseId("Macro name");
     ImmutableList.Builder<String> parameterNames = ImmutableList.builder();
+    ImmutableList.Builder<Integer> parameterSlots = ImmutableList.builder();
     while (true) {
       skipSpace();
       if (c == ')') {
@@ -349,9 +413,12 @@ class Parser {
         throw parseException("Macro parameters should look like $name");
       }
       next();
-      parameterNames.add(parseId("Macro parameter name"));
+      String parameterName = parseId("Macro parameter name");
+      parameterNames.add(parameterName);
+      parameterSlots.add(slot(parameterName));
     }
-    return new MacroDefinitionTokenNode(lineNumber(), name, parameterNames.build());
+    return new MacroDefinitionTokenNode(
+        lineNumber(), name, parameterNames.build(), parameterSlots.build());
   }
 
   /**
@@ -366,7 +433,7 @@ class Parser {
    * <optional-comma> -> <empty> | ,
    * }</pre>
    */
-  private Node parsePossibleMacroCall(String directive) throws IOException {
+  private Node parsePossibleMacroCall(String directive) {
     skipSpace();
     if (c != '(') {
       throw parseException("Unrecognized directive #" + directive);
@@ -393,7 +460,7 @@ class Parser {
    * Parses and discards a comment, which is {@code ##} followed by any number of characters up to
    * and including the next newline.
    */
-  private Node parseComment() throws IOException {
+  private Node parseComment() {
     int lineNumber = lineNumber();
     while (c != '\n' && c != EOF) {
       next();
@@ -407,7 +474,7 @@ class Parser {
    * {@code firstChar} is the first character of the plain text, and {@link #c} is the second
    * (if the plain text is more than one character).
    */
-  private Node parsePlainText(int firstChar) throws IOException {
+  private Node parsePlainText(int firstChar) {
     StringBuilder sb = new StringBuilder();
     sb.appendCodePoint(firstChar);
 
@@ -438,7 +505,7 @@ class Parser {
    *
    * <p>On entry to this method, {@link #c} is the character immediately after the {@code $}.
    */
-  private ReferenceNode parseReference() throws IOException {
+  private ReferenceNode parseReference() {
     if (c == '{') {
       next();
       ReferenceNode node = parseReferenceNoBrace();
@@ -455,9 +522,9 @@ class Parser {
    * <reference-no-brace> -> <id><reference-suffix>
    * }</pre>
    */
-  private ReferenceNode parseReferenceNoBrace() throws IOException {
+  private ReferenceNode parseReferenceNoBrace() {
     String id = parseId("Reference");
-    ReferenceNode lhs = new PlainReferenceNode(lineNumber(), id);
+    ReferenceNode lhs = new PlainReferenceNode(lineNumber(), id, slot(id));
     return parseReferenceSuffix(lhs);
   }
 
@@ -472,7 +539,7 @@ class Parser {
    * @param lhs the reference node representing the first part of the reference
    * {@code $x} in {@code $x.foo} or {@code $x.foo()}, or later {@code $x.y} in {@code $x.y.z}.
    */
-  private ReferenceNode parseReferenceSuffix(ReferenceNode lhs) throws IOException {
+  private ReferenceNode parseReferenceSuffix(ReferenceNode lhs) {
     switch (c) {
       case '.':
         return parseReferenceMember(lhs);
@@ -495,7 +562,7 @@ class Parser {
    * @param lhs the reference node representing what appears to the left of the dot, like the
    * {@code $x} in {@code $x.foo} or {@code $x.foo()}.
    */
-  private ReferenceNode parseReferenceMember(ReferenceNode lhs) throws IOException {
+  private ReferenceNode parseReferenceMember(ReferenceNode lhs) {
     assert c == '.';
     next();
     String id = parseId("Member");
@@ -520,8 +587,7 @@ class Parser {
    * @param lhs the reference node representing what appears to the left of the dot, like the
    * {@code $x} in {@code $x.foo()}.
    */
-  private ReferenceNode parseReferenceMethodParams(ReferenceNode lhs, String id)
-      throws IOException {
+  private ReferenceNode parseReferenceMethodParams(ReferenceNode lhs, String id) {
     assert c == '(';
     nextNonSpace();
     ImmutableList.Builder<ExpressionNode> args = ImmutableList.builder();
@@ -549,7 +615,7 @@ class Parser {
    * @param lhs the reference node representing what appears to the left of the dot, like the
    * {@code $x} in {@code $x[$i]}.
    */
-  private ReferenceNode parseReferenceIndex(ReferenceNode lhs) throws IOException {
+  private ReferenceNode parseReferenceIndex(ReferenceNode lhs) {
     assert c == '[';
     next();
     ExpressionNode index = parseExpression();
@@ -633,7 +699,7 @@ class Parser {
    * <mult-op> -> * | / | %
    * }</pre>
    */
-  private ExpressionNode parseExpression() throws IOException {
+  private ExpressionNode parseExpression() {
     ExpressionNode lhs = parseUnaryExpression();
     return new OperatorParser().parse(lhs, 1);
   }
@@ -650,7 +716,7 @@ class Parser {
      */
     private Operator currentOperator;
 
-    OperatorParser() throws IOException {
+    OperatorParser() {
       nextOperator();
     }
 
@@ -660,7 +726,7 @@ class Parser {
      *
      * @return the parsed subexpression
      */
-    ExpressionNode parse(ExpressionNode lhs, int minPrecedence) throws IOException {
+    ExpressionNode parse(ExpressionNode lhs, int minPrecedence) {
       while (currentOperator.precedence >= minPrecedence) {
         Operator operator = currentOperator;
         ExpressionNode rhs = parseUnaryExpression();
@@ -677,7 +743,7 @@ class Parser {
      * Updates {@link #currentOperator} to be an operator read from the input,
      * or {@link Operator#STOP} if there is none.
      */
-    private void nextOperator() throws IOException {
+    private void nextOperator() {
       skipSpace();
       ImmutableList<Operator> possibleOperators = CODE_POINT_TO_OPERATORS.get(c);
       if (possibleOperators.isEmpty()) {
@@ -712,7 +778,7 @@ class Parser {
    *                       ! <unary-expression>
    * }</pre>
    */
-  private ExpressionNode parseUnaryExpression() throws IOException {
+  private ExpressionNode parseUnaryExpression() {
     skipSpace();
     ExpressionNode node;
     if (c == '(') {
@@ -740,7 +806,7 @@ class Parser {
    *              <boolean-literal>
    * }</pre>
    */
-  private ExpressionNode parsePrimary() throws IOException {
+  private ExpressionNode parsePrimary() {
     ExpressionNode node;
     if (c == '$') {
       next();
@@ -763,7 +829,7 @@ class Parser {
     return node;
   }
 
-  private ExpressionNode parseStringLiteral() throws IOException {
+  private ExpressionNode parseStringLiteral() {
     assert c == '"';
     StringBuilder sb = new StringBuilder();
     next();
@@ -785,7 +851,7 @@ class Parser {
     return new ConstantExpressionNode(lineNumber(), sb.toString());
   }
 
-  private ExpressionNode parseIntLiteral(String prefix) throws IOException {
+  private ExpressionNode parseIntLiteral(String prefix) {
     StringBuilder sb = new StringBuilder(prefix);
     while (isAsciiDigit(c)) {
       sb.appendCodePoint(c);
@@ -803,7 +869,7 @@ class Parser {
    * <boolean-literal> -> true |
    *                      false
    */
-  private ExpressionNode parseBooleanLiteral() throws IOException {
+  private ExpressionNode parseBooleanLiteral() {
     String s = parseId("Identifier without $");
     boolean value;
     if (s.equals("true")) {
@@ -849,7 +915,7 @@ class Parser {
    * </a>. Identifiers are ASCII: starts with a letter, then letters, digits, {@code -} and
    * {@code _}.
    */
-  private String parseId(String what) throws IOException {
+  private String parseId(String what) {
     if (!isAsciiLetter(c)) {
       throw parseException(what + " should start with an ASCII letter");
     }
@@ -865,7 +931,7 @@ class Parser {
    * Returns an exception to be thrown describing a parse error with the given message, and
    * including information about where it occurred.
    */
-  private ParseException parseException(String message) throws IOException {
+  private ParseException parseException(String message) {
     StringBuilder context = new StringBuilder();
     if (c == EOF) {
       context.append("EOF");
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.auto.value.processor.escapevelocity;
+
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.ForEachNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.IfNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.MacroCallNode;
+import com.google.auto.value.processor.escapevelocity.DirectiveNode.SetNode;
+import com.google.auto.value.processor.escapevelocity.Node.Cons;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import java.util.Map;
+
+/**
+ * A node that evaluates another node and records how long that took in a {@link TemplateProfile}.
+ * The {@link Instrumenter} wraps each node that can appear in template output in one of these,
+ * except literal text, where the cost of timing would exceed the cost of the node itself.
+ * Expressions within directives, such as the condition of an {@code #if}, are not wrapped, so
+ * their time is counted as part of the directive.
+ */
+final class ProfilingNode extends Node {
+  private final Node node;
+  private final TemplateProfile.Stats stats;
+
+  private ProfilingNode(Node node, TemplateProfile.Stats stats) {
+    super(node.lineNumber);
+    this.node = node;
+    this.stats = stats;
+  }
+
+  @Override
+  Object evaluate(EvaluationContext context) {
+    long start = System.nanoTime();
+    try {
+      return node.evaluate(context);
+    } finally {
+      stats.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  void render(EvaluationContext context, StringBuilder output) {
+    long start = System.nanoTime();
+    try {
+      node.render(context, output);
+    } finally {
+      stats.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Builds a copy of a parse tree where the nodes are wrapped in {@code ProfilingNode} instances.
+   * The original tree is not modified, so it can continue to be evaluated without profiling.
+   * Macros that are called from the tree are copied too, with instrumented bodies.
+   */
+  static final class Instrumenter {
+    private final TemplateProfile profile;
+    private final Map<Macro, Macro> instrumentedMacros = Maps.newIdentityHashMap();
+
+    Instrumenter(TemplateProfile profile) {
+      this.profile = profile;
+    }
+
+    Node instrument(Node node) {
+      if (node instanceof Cons) {
+        ImmutableList.Builder<Node> nodes = ImmutableList.builder();
+        for (Node child : ((Cons) node).nodes) {
+          nodes.add(instrument(child));
+        }
+        return Node.cons(node.lineNumber, nodes.build());
+      } else if (node instanceof ConstantExpressionNode) {
+        return node;
+      } else if (node instanceof IfNode) {
+        IfNode ifNode = (IfNode) node;
+        return wrap(
+            new IfNode(
+                ifNode.lineNumber,
+                ifNode.condition,
+                instrument(ifNode.truePart),
+                instrument(ifNode.falsePart)),
+            "#if");
+      } else if (node instanceof ForEachNode) {
+        ForEachNode forEach = (ForEachNode) node;
+        return wrap(
+            new ForEachNode(
+                forEach.lineNumber,
+                forEach.slot,
+                forEach.forEachSlot,
+                forEach.collection,
+                instrument(forEach.body)),
+            "#foreach");
+      } else if (node instanceof SetNode) {
+        return wrap(node, "#set");
+      } else if (node instanceof MacroCallNode) {
+        MacroCallNode call = (MacroCallNode) node;
+        MacroCallNode newCall = new MacroCallNode(call.lineNumber, call.name(), call.thunks);
+        newCall.setMacro(instrument(call.macro()));
+        return wrap(newCall, "#" + call.name());
+      } else if (node instanceof ReferenceNode) {
+        return wrap(node, "$reference");
+      } else {
+        return wrap(node, "expression");
+      }
+    }
+
+    private Macro instrument(Macro macro) {
+      Macro instrumented = instrumentedMacros.get(macro);
+      if (instrumented == null) {
+        // Record the copy before instrumenting its body, in case the macro calls itself.
+        instrumented = macro.copy();
+        instrumentedMacros.put(macro, instrumented);
+        instrumented.setBody(instrument(macro.body()));
+      }
+      return instrumented;
+    }
+
+    private Node wrap(Node node, String kind) {
+      return new ProfilingNode(node, profile.stats(node.lineNumber, kind));
+    }
+  }
+}
@@ -37,10 +37,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Primitives;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -61,15 +63,17 @@ abstract class ReferenceNode extends ExpressionNode {
    */
   static class PlainReferenceNode extends ReferenceNode {
     final String id;
+    final int slot;
 
-    PlainReferenceNode(int lineNumber, String id) {
+    PlainReferenceNode(int lineNumber, String id, int slot) {
       super(lineNumber);
       this.id = id;
+      this.slot = slot;
     }
 
     @Override Object evaluate(EvaluationContext context) {
-      if (context.varIsDefined(id)) {
-        return context.getVar(id);
+      if (context.varIsDefined(slot)) {
+        return context.getVar(slot);
       } else {
         throw new EvaluationException("Undefined reference $" + id);
       }
@@ -77,7 +81,7 @@ abstract class ReferenceNode extends ExpressionNode {
 
     @Override
     boolean isDefinedAndTrue(EvaluationContext context) {
-      if (context.varIsDefined(id)) {
+      if (context.varIsDefined(slot)) {
         return isTrue(context);
       } else {
         return false;
@@ -94,7 +98,11 @@ abstract class ReferenceNode extends ExpressionNode {
     final String id;
 
     MemberReferenceNode(ReferenceNode lhs, String id) {
-      super(lhs.lineNumber);
+      this(lhs.lineNumber, lhs, id);
+    }
+
+    MemberReferenceNode(int lineNumber, ReferenceNode lhs, String id) {
+      super(lineNumber);
       this.lhs = lhs;
       this.id = id;
     }
@@ -102,11 +110,27 @@ abstract class ReferenceNode extends ExpressionNode {
     private static final String[] PREFIXES = {"get", "is"};
     private static final boolean[] CHANGE_CASE = {false, true};
 
+    /**
+     * The getter that was found the last time this node was evaluated, along with the class of the
+     * object it was found in. Most references in a template always see objects of the same class,
+     * so this saves us from repeating the lookup on every evaluation.
+     */
+    private volatile ResolvedMethod resolved;
+
     @Override Object evaluate(EvaluationContext context) {
       Object lhsValue = lhs.evaluate(context);
       if (lhsValue == null) {
         throw new EvaluationException("Cannot get member " + id + " of null value");
       }
+      ResolvedMethod resolved = this.resolved;
+      if (resolved == null || !resolved.matches(lhsValue.getClass(), NO_ARGS)) {
+        resolved = resolve(lhsValue);
+        this.resolved = resolved;
+      }
+      return resolved.invoke(lhsValue, NO_ARGS);
+    }
+
+    private ResolvedMethod resolve(Object lhsValue) {
       // Velocity specifies that, given a reference .foo, it will first look for getfoo() and then
       // for getFoo(), and likewise given .Foo it will look for getFoo() and then getfoo().
       for (String prefix : PREFIXES) {
@@ -118,7 +142,7 @@ abstract class ReferenceNode extends ExpressionNode {
             method = lhsValue.getClass().getMethod(methodName);
             if (!prefix.equals("is") || method.getReturnType().equals(boolean.class)) {
               // Don't consider methods that happen to be called isFoo() but don't return boolean.
-              return invokeMethod(method, lhsValue, ImmutableList.of());
+              return resolveMethod(method, lhsValue.getClass(), NO_ARGS);
             }
           } catch (NoSuchMethodException e) {
             // Continue with next possibility
@@ -130,7 +154,7 @@ abstract class ReferenceNode extends ExpressionNode {
               + ", a " + lhsValue.getClass().getName());
     }
 
-    private static String changeInitialCase(String id) {
+    static String changeInitialCase(String id) {
       int initial = id.codePointAt(0);
       String rest = id.substring(Character.charCount(initial));
       if (Character.isUpperCase(initial)) {
@@ -150,11 +174,18 @@ abstract class ReferenceNode extends ExpressionNode {
   static class IndexReferenceNode extends ReferenceNode {
     final ReferenceNode lhs;
     final ExpressionNode index;
+    private final MethodReferenceNode getMethodNode;
 
     IndexReferenceNode(ReferenceNode lhs, ExpressionNode index) {
-      super(lhs.lineNumber);
+      this(lhs.lineNumber, lhs, index);
+    }
+
+    IndexReferenceNode(int lineNumber, ReferenceNode lhs, ExpressionNode index) {
+      super(lineNumber);
       this.lhs = lhs;
       this.index = index;
+      this.getMethodNode =
+          new MethodReferenceNode(lineNumber, lhs, "get", ImmutableList.of(index));
     }
 
     @Override Object evaluate(EvaluationContext context) {
@@ -181,8 +212,7 @@ abstract class ReferenceNode extends ExpressionNode {
       } else {
         // In general, $x[$y] is equivalent to $x.get($y). We've covered the most common cases
         // above, but for other cases like Multimap we resort to evaluating the equivalent form.
-        MethodReferenceNode node = new MethodReferenceNode(lhs, "get", ImmutableList.of(index));
-        return node.evaluate(context);
+        return getMethodNode.evaluate(context);
       }
     }
   }
@@ -196,12 +226,23 @@ abstract class ReferenceNode extends ExpressionNode {
     final List<ExpressionNode> args;
 
     MethodReferenceNode(ReferenceNode lhs, String id, List<ExpressionNode> args) {
-      super(lhs.lineNumber);
+      this(lhs.lineNumber, lhs, id, args);
+    }
+
+    MethodReferenceNode(int lineNumber, ReferenceNode lhs, String id, List<ExpressionNode> args) {
+      super(lineNumber);
       this.lhs = lhs;
       this.id = id;
       this.args = args;
     }
 
+    /**
+     * The method that was selected the last time this node was evaluated. Which method is selected
+     * depends only on the class of {@code $x} and the classes of the arguments, so if those are
+     * the same as last time we can reuse the previous choice.
+     */
+    private volatile ResolvedMethod resolved;
+
     /**
      * {@inheritDoc}
      *
@@ -224,10 +265,20 @@ abstract class ReferenceNode extends ExpressionNode {
       if (lhsValue == null) {
         throw evaluationException("Cannot invoke method " + id + " on null value");
       }
-      List<Object> argValues = new ArrayList<Object>();
-      for (ExpressionNode arg : args) {
-        argValues.add(arg.evaluate(context));
+      Object[] argValues = new Object[args.size()];
+      for (int i = 0; i < argValues.length; i++) {
+        argValues[i] = args.get(i).evaluate(context);
+      }
+      ResolvedMethod resolved = this.resolved;
+      if (resolved == null || !resolved.matches(lhsValue.getClass(), argValues)) {
+        resolved = resolve(lhsValue, argValues);
+        this.resolved = resolved;
       }
+      return resolved.invoke(lhsValue, argValues);
+    }
+
+    private ResolvedMethod resolve(Object lhsValue, Object[] argValues) {
+      List<Object> argValueList = Arrays.asList(argValues);
       List<Method> methodsWithName = Lists.newArrayList();
       for (Method method : lhsValue.getClass().getMethods()) {
         if (method.getName().equals(id) && !method.isSynthetic()) {
@@ -240,16 +291,17 @@ abstract class ReferenceNode extends ExpressionNode {
       List<Method> compatibleMethods = Lists.newArrayList();
       for (Method method : methodsWithName) {
         // TODO(emcmanus): support varargs, if it's useful
-        if (compatibleArgs(method.getParameterTypes(), argValues)) {
+        if (compatibleArgs(method.getParameterTypes(), argValueList)) {
           compatibleMethods.add(method);
         }
       }
       switch (compatibleMethods.size()) {
         case 0:
           throw evaluationException(
-              "Parameters for method " + id + " have wrong types: " + argValues);
+              "Parameters for method " + id + " have wrong types: " + argValueList);
         case 1:
-          return invokeMethod(Iterables.getOnlyElement(compatibleMethods), lhsValue, argValues);
+          return resolveMethod(
+              Iterables.getOnlyElement(compatibleMethods), lhsValue.getClass(), argValues);
         default:
           throw evaluationException(
               "Ambiguous method invocation, could be one of:"
@@ -317,29 +369,97 @@ abstract class ReferenceNode extends ExpressionNode {
     }
   }
 
+  private static final Object[] NO_ARGS = {};
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
   /**
-   * Invoke the given method on the given target with the given arguments. The method is expected
-   * to be public, but the class it is in might not be. In that case we will search up the
-   * hierarchy for an ancestor that is public and has the same method, and use that to invoke the
-   * method. Otherwise we would get an {@link IllegalAccessException}. More than one ancestor might
-   * define the method, but it doesn't matter which one we invoke since ultimately the code that
-   * will run will be the same.
+   * The type of every {@link MethodHandle} in a {@link ResolvedMethod}. The first parameter is
+   * the target object and the second is the array of arguments.
    */
-  Object invokeMethod(Method method, Object target, List<Object> argValues) {
-    if (!classIsPublic(target.getClass())) {
-      method = visibleMethod(method, target.getClass());
-      if (method == null) {
+  private static final MethodType INVOKER_TYPE =
+      MethodType.methodType(Object.class, Object.class, Object[].class);
+
+  /**
+   * A method that has been looked up for a particular class of target object and particular
+   * classes of arguments, and converted into a {@link MethodHandle} that can be invoked directly.
+   * Instances of this class are immutable so that a node can cache one and share it between
+   * threads that are evaluating the same template.
+   */
+  private static final class ResolvedMethod {
+    private final Class<?> targetClass;
+    private final Class<?>[] argClasses;
+    private final MethodHandle handle;
+    private final ReferenceNode node;
+
+    ResolvedMethod(
+        Class<?> targetClass, Class<?>[] argClasses, MethodHandle handle, ReferenceNode node) {
+      this.targetClass = targetClass;
+      this.argClasses = argClasses;
+      this.handle = handle;
+      this.node = node;
+    }
+
+    /**
+     * Returns true if this method is the one that would be selected for the given target class
+     * and arguments. A null argument is only considered to match a previous null argument.
+     */
+    boolean matches(Class<?> targetClass, Object[] argValues) {
+      if (targetClass != this.targetClass) {
+        return false;
+      }
+      for (int i = 0; i < argValues.length; i++) {
+        if (classOrNull(argValues[i]) != argClasses[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    Object invoke(Object target, Object[] argValues) {
+      try {
+        return (Object) handle.invokeExact(target, argValues);
+      } catch (Throwable t) {
+        throw node.evaluationException(t);
+      }
+    }
+  }
+
+  private static Class<?> classOrNull(Object value) {
+    return (value == null) ? null : value.getClass();
+  }
+
+  /**
+   * Makes a {@link ResolvedMethod} for the given method, which is to be invoked on targets of the
+   * given class with the given arguments. The method is expected to be public, but the class it
+   * is in might not be. In that case we will search up the hierarchy for an ancestor that is
+   * public and has the same method, and use that to invoke the method. Otherwise we would get an
+   * {@link IllegalAccessException}. More than one ancestor might define the method, but it doesn't
+   * matter which one we invoke since ultimately the code that will run will be the same.
+   */
+  ResolvedMethod resolveMethod(Method method, Class<?> targetClass, Object[] argValues) {
+    Method visible = method;
+    if (!classIsPublic(targetClass)) {
+      visible = visibleMethod(method, targetClass);
+      if (visible == null) {
         throw evaluationException(
-            "Method is not visible in class " + target.getClass().getName() + ": " + method);
+            "Method is not visible in class " + targetClass.getName() + ": " + method);
       }
     }
+    MethodHandle handle;
     try {
-      return method.invoke(target, argValues.toArray());
-    } catch (InvocationTargetException e) {
-      throw evaluationException(e.getCause());
-    } catch (Exception e) {
+      handle = LOOKUP.unreflect(visible);
+    } catch (IllegalAccessException e) {
       throw evaluationException(e);
     }
+    handle = handle
+        .asSpreader(Object[].class, visible.getParameterTypes().length)
+        .asType(INVOKER_TYPE);
+    Class<?>[] argClasses = new Class<?>[argValues.length];
+    for (int i = 0; i < argValues.length; i++) {
+      argClasses[i] = classOrNull(argValues[i]);
+    }
+    return new ResolvedMethod(targetClass, argClasses, handle, this);
   }
 
   private static String packageNameOf(Class<?> c) {
@@ -88,16 +88,23 @@ class Reparser {
    */
   private final Map<String, Macro> macros;
 
-  Reparser(ImmutableList<Node> nodes) {
+  /**
+   * The names of the variables referenced in the template, indexed by slot.
+   */
+  private final ImmutableList<String> variableNames;
+
+  Reparser(ImmutableList<Node> nodes, ImmutableList<String> variableNames) {
     this.nodes = removeSpaceBeforeSet(nodes);
     this.nodeIndex = 0;
     this.macros = Maps.newTreeMap();
+    this.variableNames = variableNames;
   }
 
   Template reparse() {
     Node root = parseTo(EOF_SET, new EofNode(1));
     linkMacroCalls();
-    return new Template(root);
+    root = new Optimizer(macros.values()).optimize(root);
+    return new Template(root, variableNames);
   }
 
   /**
@@ -210,7 +217,8 @@ class Reparser {
   private Node parseForEach(ForEachTokenNode forEach) {
     Node body = parseTo(END_SET, forEach);
     nextNode();  // Skip #end
-    return new ForEachNode(forEach.lineNumber, forEach.var, forEach.collection, body);
+    return new ForEachNode(
+        forEach.lineNumber, forEach.slot, forEach.forEachSlot, forEach.collection, body);
   }
 
   private Node parseIfOrElseIf(IfOrElseIfTokenNode ifOrElseIf) {
@@ -240,7 +248,11 @@ class Reparser {
     nextNode();  // Skip #end
     if (!macros.containsKey(macroDefinition.name)) {
       Macro macro = new Macro(
-          macroDefinition.lineNumber, macroDefinition.name, macroDefinition.parameterNames, body);
+          macroDefinition.lineNumber,
+          macroDefinition.name,
+          macroDefinition.parameterNames,
+          macroDefinition.parameterSlots,
+          body);
       macros.put(macroDefinition.name, macro);
     }
     return emptyNode(macroDefinition.lineNumber);
@@ -33,6 +33,7 @@
 package com.google.auto.value.processor.escapevelocity;
 
 import com.google.auto.value.processor.escapevelocity.EvaluationContext.PlainEvaluationContext;
+import com.google.common.collect.ImmutableList;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.Map;
@@ -49,6 +50,13 @@ import java.util.Map;
 public class Template {
   private final Node root;
 
+  /**
+   * The names of all the variables that are referenced in the template, indexed by slot. Each
+   * distinct variable name is assigned a slot when the template is parsed, so that evaluation can
+   * store variables in an array rather than looking them up by name.
+   */
+  private final ImmutableList<String> variableNames;
+
   /**
    * Parse a VTL template from the given {@code Reader}.
    */
@@ -56,8 +64,17 @@ public class Template {
     return new Parser(reader).parse();
   }
 
-  Template(Node root) {
+  Template(Node root, ImmutableList<String> variableNames) {
     this.root = root;
+    this.variableNames = variableNames;
+  }
+
+  Node root() {
+    return root;
+  }
+
+  ImmutableList<String> variableNames() {
+    return variableNames;
   }
 
   /**
@@ -70,7 +87,46 @@ public class Template {
    * @return the string result of evaluating the template.
    */
   public String evaluate(Map<String, ?> vars) {
-    EvaluationContext evaluationContext = new PlainEvaluationContext(vars);
-    return String.valueOf(root.evaluate(evaluationContext));
+    StringBuilder output = new StringBuilder();
+    render(vars, output);
+    return output.toString();
+  }
+
+  /**
+   * Evaluate the given template with the given initial set of variables, appending the result to
+   * the given {@code Appendable}. If {@code output} is a {@link StringBuilder} then the text of
+   * every part of the template is appended to it directly. Otherwise the text is collected in a
+   * single buffer and appended to {@code output} at the end, so that nothing is written if
+   * evaluation fails.
+   *
+   * @param vars a map where the keys are variable names and the values are the corresponding
+   *     variable values, as for {@link #evaluate(Map)}.
+   * @param output where the result of evaluating the template is appended.
+   *
+   * @throws IOException if {@code output} throws it.
+   */
+  public void evaluate(Map<String, ?> vars, Appendable output) throws IOException {
+    if (output instanceof StringBuilder) {
+      render(vars, (StringBuilder) output);
+    } else {
+      StringBuilder sb = new StringBuilder();
+      render(vars, sb);
+      output.append(sb);
+    }
+  }
+
+  /**
+   * Returns a template that produces the same output as this one, but that also records in
+   * {@code profile} how many times each of its nodes is evaluated and how long that takes. This
+   * template itself is unchanged.
+   */
+  public Template instrumented(TemplateProfile profile) {
+    Node instrumentedRoot = new ProfilingNode.Instrumenter(profile).instrument(root);
+    return new Template(instrumentedRoot, variableNames);
+  }
+
+  private void render(Map<String, ?> vars, StringBuilder output) {
+    EvaluationContext evaluationContext = new PlainEvaluationContext(variableNames, vars);
+    root.render(evaluationContext, output);
   }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.auto.value.processor.escapevelocity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many times each node of a template is evaluated, and how long those evaluations take.
+ * A profile is filled in by evaluating a template returned by {@link Template#instrumented}. Nodes
+ * are identified by the line number where they appear in the template and by what kind of node
+ * they are, for example {@code #foreach} or {@code $reference}. The times are inclusive, so the
+ * time for an {@code #if} includes the time for the nodes in whichever branch it took.
+ *
+ * <p>Instances of this class can safely be updated by several threads at once.
+ */
+public final class TemplateProfile {
+  private final ConcurrentMap<String, Stats> statsByKey = new ConcurrentHashMap<String, Stats>();
+
+  /**
+   * Returns the statistics for nodes of the given kind on the given line, creating them if this is
+   * the first such node.
+   */
+  Stats stats(int lineNumber, String kind) {
+    String key = lineNumber + " " + kind;
+    Stats stats = statsByKey.get(key);
+    if (stats == null) {
+      Stats newStats = new Stats(lineNumber, kind);
+      stats = statsByKey.putIfAbsent(key, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+
+  /** Returns true if no instrumented node has been evaluated yet. */
+  public boolean isEmpty() {
+    for (Stats stats : statsByKey.values()) {
+      if (stats.count.get() > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a report with one line for each node that has been evaluated at least once, sorted so
+   * that the nodes where the most time was spent come first.
+   */
+  public String report() {
+    List<Stats> sorted = new ArrayList<Stats>();
+    for (Stats stats : statsByKey.values()) {
+      if (stats.count.get() > 0) {
+        sorted.add(stats);
+      }
+    }
+    Collections.sort(sorted, BY_DESCENDING_TIME);
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("%12s %10s  %s%n", "time (ms)", "count", "node"));
+    for (Stats stats : sorted) {
+      report.append(
+          String.format(
+              "%12.3f %10d  line %d: %s%n",
+              stats.nanos.get() / 1e6, stats.count.get(), stats.lineNumber, stats.kind));
+    }
+    return report.toString();
+  }
+
+  private static final Comparator<Stats> BY_DESCENDING_TIME =
+      new Comparator<Stats>() {
+        @Override
+        public int compare(Stats a, Stats b) {
+          int c = Long.compare(b.nanos.get(), a.nanos.get());
+          return (c != 0) ? c : Integer.compare(a.lineNumber, b.lineNumber);
+        }
+      };
+
+  /** The accumulated evaluation count and time for the nodes of one kind on one line. */
+  static final class Stats {
+    private final int lineNumber;
+    private final String kind;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    private Stats(int lineNumber, String kind) {
+      this.lineNumber = lineNumber;
+      this.kind = kind;
+    }
+
+    void record(long elapsedNanos) {
+      count.incrementAndGet();
+      nanos.addAndGet(elapsedNanos);
+    }
+
+    long count() {
+      return count.get();
+    }
+  }
+}
@@ -141,12 +141,14 @@ abstract class TokenNode extends Node {
   }
 
   static final class ForEachTokenNode extends TokenNode {
-    final String var;
+    final int slot;
+    final int forEachSlot;
     final ExpressionNode collection;
 
-    ForEachTokenNode(String var, ExpressionNode collection) {
+    ForEachTokenNode(int slot, int forEachSlot, ExpressionNode collection) {
       super(collection.lineNumber);
-      this.var = var;
+      this.slot = slot;
+      this.forEachSlot = forEachSlot;
       this.collection = collection;
     }
 
@@ -158,11 +160,14 @@ abstract class TokenNode extends Node {
   static final class MacroDefinitionTokenNode extends TokenNode {
     final String name;
     final ImmutableList<String> parameterNames;
+    final ImmutableList<Integer> parameterSlots;
 
-    MacroDefinitionTokenNode(int lineNumber, String name, List<String> parameterNames) {
+    MacroDefinitionTokenNode(
+        int lineNumber, String name, List<String> parameterNames, List<Integer> parameterSlots) {
       super(lineNumber);
       this.name = name;
       this.parameterNames = ImmutableList.copyOf(parameterNames);
+      this.parameterSlots = ImmutableList.copyOf(parameterSlots);
     }
 
     @Override String name() {
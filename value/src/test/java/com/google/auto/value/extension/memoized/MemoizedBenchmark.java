@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.value.extension.memoized;
+
+import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized.Concurrency;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link Concurrency} strategies of {@link Memoized @Memoized} when several threads
+ * call a memoized method on the same instances. This is not a test, and it is not run as part of
+ * the build. Run it with {@link #main} once the test classes have been compiled.
+ *
+ * <p>{@link #firstCall} measures the case where the strategies differ most: the threads work
+ * through a shared array of new instances, about {@value #THREADS} calls to each, so most
+ * instances are first called by several threads at once. {@link #laterCall} measures calls on an
+ * instance whose value has already been memoized.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(MemoizedBenchmark.THREADS)
+public class MemoizedBenchmark {
+  static final int THREADS = 4;
+
+  private static final int INSTANCES = 1 << 20;
+
+  @Param({"SYNCHRONIZED", "RACY", "COMPARE_AND_SET"})
+  public Concurrency concurrency;
+
+  private final AtomicInteger next = new AtomicInteger();
+  private Derived[] fresh;
+  private Derived memoized;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    fresh = new Derived[INSTANCES];
+    for (int i = 0; i < INSTANCES; i++) {
+      fresh[i] = create(i);
+    }
+    next.set(0);
+    memoized = create(-1);
+    memoized.derived();
+  }
+
+  @Benchmark
+  public String firstCall() {
+    int i = next.getAndIncrement() / THREADS;
+    return fresh[i & (INSTANCES - 1)].derived();
+  }
+
+  @Benchmark
+  public String laterCall() {
+    return memoized.derived();
+  }
+
+  private Derived create(int i) {
+    switch (concurrency) {
+      case SYNCHRONIZED:
+        return new AutoValue_MemoizedBenchmark_SynchronizedValue("value", i);
+      case RACY:
+        return new AutoValue_MemoizedBenchmark_RacyValue("value", i);
+      case COMPARE_AND_SET:
+        return new AutoValue_MemoizedBenchmark_CompareAndSetValue("value", i);
+    }
+    throw new AssertionError(concurrency);
+  }
+
+  interface Derived {
+    String derived();
+  }
+
+  @AutoValue
+  abstract static class SynchronizedValue implements Derived {
+    abstract String string();
+    abstract int number();
+
+    @Memoized(concurrency = Concurrency.SYNCHRONIZED)
+    @Override
+    public String derived() {
+      return string() + "/" + number();
+    }
+  }
+
+  @AutoValue
+  abstract static class RacyValue implements Derived {
+    abstract String string();
+    abstract int number();
+
+    @Memoized(concurrency = Concurrency.RACY)
+    @Override
+    public String derived() {
+      return string() + "/" + number();
+    }
+  }
+
+  @AutoValue
+  abstract static class CompareAndSetValue implements Derived {
+    abstract String string();
+    abstract int number();
+
+    @Memoized(concurrency = Concurrency.COMPARE_AND_SET)
+    @Override
+    public String derived() {
+      return string() + "/" + number();
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(MemoizedBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -19,7 +19,18 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized.Concurrency;
 import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
 import org.junit.Before;
 import org.junit.Test;
@@ -113,6 +124,71 @@ public class MemoizedTest {
     }
   }
 
+  @AutoValue
+  abstract static class LockFreeValue<T> {
+    private int racyPrimitiveCount;
+    private int racyNotNullableCount;
+    private int racyNullableCount;
+    private int casPrimitiveCount;
+    private int casNotNullableCount;
+    private int casNullableCount;
+    private final AtomicInteger casNullOnlyTheFirstTimeCount = new AtomicInteger();
+
+    abstract T value();
+
+    @Memoized(concurrency = Concurrency.RACY)
+    long racyPrimitive() {
+      return ++racyPrimitiveCount;
+    }
+
+    @Memoized(concurrency = Concurrency.RACY)
+    ImmutableList<T> racyNotNullable() {
+      racyNotNullableCount++;
+      return ImmutableList.of(value());
+    }
+
+    @Memoized(concurrency = Concurrency.RACY)
+    @Nullable
+    String racyNullable() {
+      racyNullableCount++;
+      return null;
+    }
+
+    @Memoized(concurrency = Concurrency.COMPARE_AND_SET)
+    long casPrimitive() {
+      return ++casPrimitiveCount;
+    }
+
+    @Memoized(concurrency = Concurrency.COMPARE_AND_SET)
+    ImmutableList<T> casNotNullable() {
+      casNotNullableCount++;
+      return ImmutableList.of(value());
+    }
+
+    @Memoized(concurrency = Concurrency.COMPARE_AND_SET)
+    @Nullable
+    String casNullable() {
+      casNullableCount++;
+      return null;
+    }
+
+    @Memoized(concurrency = Concurrency.COMPARE_AND_SET)
+    @Nullable
+    String casNullOnlyTheFirstTime() {
+      return casNullOnlyTheFirstTimeCount.getAndIncrement() == 0 ? null : "not null";
+    }
+
+    @Memoized(concurrency = Concurrency.COMPARE_AND_SET)
+    T casTypeVariable() {
+      return value();
+    }
+
+    @Memoized(concurrency = Concurrency.COMPARE_AND_SET)
+    String casReturnsNull() {
+      return null;
+    }
+  }
+
   static class HashCodeAndToStringCounter {
     int hashCodeCount;
     int toStringCount;
@@ -195,6 +271,120 @@ public class MemoizedTest {
     assertThat(value.counter().toStringCount).isEqualTo(1);
   }
 
+  @Test
+  public void racy() {
+    LockFreeValue<String> value = new AutoValue_MemoizedTest_LockFreeValue<String>("foo");
+    assertThat(value.racyPrimitive()).isEqualTo(1);
+    assertThat(value.racyPrimitive()).isEqualTo(1);
+    assertThat(value.racyNotNullable()).containsExactly("foo");
+    assertThat(value.racyNotNullable()).isSameAs(value.racyNotNullable());
+    assertThat(value.racyNullable()).isNull();
+    assertThat(value.racyNullable()).isNull();
+    assertThat(value.racyPrimitiveCount).isEqualTo(1);
+    assertThat(value.racyNotNullableCount).isEqualTo(1);
+    assertThat(value.racyNullableCount).isEqualTo(1);
+  }
+
+  @Test
+  public void compareAndSet() {
+    LockFreeValue<String> value = new AutoValue_MemoizedTest_LockFreeValue<String>("foo");
+    assertThat(value.casPrimitive()).isEqualTo(1);
+    assertThat(value.casPrimitive()).isEqualTo(1);
+    assertThat(value.casNotNullable()).containsExactly("foo");
+    assertThat(value.casNotNullable()).isSameAs(value.casNotNullable());
+    assertThat(value.casNullable()).isNull();
+    assertThat(value.casNullable()).isNull();
+    assertThat(value.casTypeVariable()).isEqualTo("foo");
+    assertThat(value.casPrimitiveCount).isEqualTo(1);
+    assertThat(value.casNotNullableCount).isEqualTo(1);
+    assertThat(value.casNullableCount).isEqualTo(1);
+    try {
+      value.casReturnsNull();
+      fail();
+    } catch (NullPointerException expected) {
+      assertThat(expected).hasMessage("casReturnsNull() cannot return null");
+    }
+  }
+
+  @Test
+  public void compareAndSetReturnsSameInstanceToEveryThread() throws Exception {
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int i = 0; i < 100; i++) {
+        final LockFreeValue<Integer> value = new AutoValue_MemoizedTest_LockFreeValue<Integer>(i);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<ImmutableList<Integer>>> results =
+            new ArrayList<Future<ImmutableList<Integer>>>();
+        for (int t = 0; t < threads; t++) {
+          results.add(
+              executor.submit(
+                  new Callable<ImmutableList<Integer>>() {
+                    @Override
+                    public ImmutableList<Integer> call() throws InterruptedException {
+                      start.await();
+                      return value.casNotNullable();
+                    }
+                  }));
+        }
+        start.countDown();
+        for (Future<ImmutableList<Integer>> result : results) {
+          assertThat(result.get()).isSameAs(value.casNotNullable());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void compareAndSetNullableReturnsSameResultToEveryThread() throws Exception {
+    // A @Nullable method can't use a compare-and-set from null, so it is memoized with a lock and
+    // is called only once, even though it would return a different result the second time.
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int i = 0; i < 100; i++) {
+        final LockFreeValue<Integer> value = new AutoValue_MemoizedTest_LockFreeValue<Integer>(i);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int t = 0; t < threads; t++) {
+          results.add(
+              executor.submit(
+                  new Callable<String>() {
+                    @Override
+                    public String call() throws InterruptedException {
+                      start.await();
+                      return value.casNullOnlyTheFirstTime();
+                    }
+                  }));
+        }
+        start.countDown();
+        for (Future<String> result : results) {
+          assertThat(result.get()).isNull();
+        }
+        assertThat(value.casNullOnlyTheFirstTime()).isNull();
+        assertThat(value.casNullOnlyTheFirstTimeCount.get()).isEqualTo(1);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void memoizedBitsArePacked() {
+    // Value has four @Memoized methods whose cache fields can't use null to mean "not called".
+    // Whether they have been called is recorded in four bits of one int field.
+    List<String> flagFields = new ArrayList<String>();
+    for (Field field : AutoValue_MemoizedTest_Value.class.getDeclaredFields()) {
+      if (!Modifier.isStatic(field.getModifiers())
+          && (field.getType().equals(boolean.class) || field.getName().startsWith("memoized$"))) {
+        flagFields.add(field.getName());
+      }
+    }
+    assertThat(flagFields).containsExactly("memoized$0");
+  }
+
   @Test
   public void keywords() {
     ValueWithKeywordName value = new AutoValue_MemoizedTest_ValueWithKeywordName(true, false);
@@ -16,15 +16,20 @@
 package com.google.auto.value.processor;
 
 import static com.google.common.truth.Truth.assertAbout;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
 import static com.google.testing.compile.CompilationSubject.assertThat;
 import static com.google.testing.compile.CompilationSubject.compilations;
 import static com.google.testing.compile.Compiler.javac;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.truth.Expect;
 import com.google.testing.compile.Compilation;
 import com.google.testing.compile.JavaFileObjects;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
@@ -32,6 +37,9 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.Set;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
@@ -40,9 +48,15 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -52,6 +66,73 @@ import org.junit.runners.JUnit4;
 @RunWith(JUnit4.class)
 public class CompilationTest {
   @Rule public final Expect expect = Expect.create();
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  /**
+   * Minimal versions of the GWT classes that a generated {@code _CustomFieldSerializer} refers to,
+   * since GWT itself is not a dependency of these tests.
+   */
+  static final ImmutableList<JavaFileObject> GWT_SERIALIZATION_STUBS =
+      ImmutableList.of(
+          JavaFileObjects.forSourceLines(
+              "com.google.gwt.user.client.rpc.CustomFieldSerializer",
+              "package com.google.gwt.user.client.rpc;",
+              "",
+              "public abstract class CustomFieldSerializer<T> {",
+              "  public abstract void deserializeInstance(",
+              "      SerializationStreamReader streamReader, T instance)",
+              "      throws SerializationException;",
+              "",
+              "  public boolean hasCustomInstantiateInstance() {",
+              "    return false;",
+              "  }",
+              "",
+              "  public T instantiateInstance(SerializationStreamReader streamReader)",
+              "      throws SerializationException {",
+              "    throw new SerializationException();",
+              "  }",
+              "",
+              "  public abstract void serializeInstance(",
+              "      SerializationStreamWriter streamWriter, T instance)",
+              "      throws SerializationException;",
+              "}"),
+          JavaFileObjects.forSourceLines(
+              "com.google.gwt.user.client.rpc.SerializationException",
+              "package com.google.gwt.user.client.rpc;",
+              "",
+              "public class SerializationException extends Exception {}"),
+          JavaFileObjects.forSourceLines(
+              "com.google.gwt.user.client.rpc.SerializationStreamReader",
+              "package com.google.gwt.user.client.rpc;",
+              "",
+              "public interface SerializationStreamReader {",
+              "  boolean readBoolean() throws SerializationException;",
+              "  byte readByte() throws SerializationException;",
+              "  char readChar() throws SerializationException;",
+              "  double readDouble() throws SerializationException;",
+              "  float readFloat() throws SerializationException;",
+              "  int readInt() throws SerializationException;",
+              "  long readLong() throws SerializationException;",
+              "  Object readObject() throws SerializationException;",
+              "  short readShort() throws SerializationException;",
+              "  String readString() throws SerializationException;",
+              "}"),
+          JavaFileObjects.forSourceLines(
+              "com.google.gwt.user.client.rpc.SerializationStreamWriter",
+              "package com.google.gwt.user.client.rpc;",
+              "",
+              "public interface SerializationStreamWriter {",
+              "  void writeBoolean(boolean value) throws SerializationException;",
+              "  void writeByte(byte value) throws SerializationException;",
+              "  void writeChar(char value) throws SerializationException;",
+              "  void writeDouble(double value) throws SerializationException;",
+              "  void writeFloat(float value) throws SerializationException;",
+              "  void writeInt(int value) throws SerializationException;",
+              "  void writeLong(long value) throws SerializationException;",
+              "  void writeObject(Object value) throws SerializationException;",
+              "  void writeShort(short value) throws SerializationException;",
+              "  void writeString(String value) throws SerializationException;",
+              "}"));
 
   @Test
   public void simpleSuccess() {
@@ -354,6 +435,51 @@ public class CompilationTest {
     assertThat(compilation).succeededWithoutWarnings();
   }
 
+  @Test
+  public void cacheHashCodeWithExplicitHashCode() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "import com.google.auto.value.AutoValue;",
+        "@AutoValue",
+        "@AutoValue.CacheHashCode",
+        "public abstract class Baz {",
+        "  public abstract String string();",
+        "  @Override public int hashCode() {",
+        "    return 23;",
+        "  }",
+        "}");
+    Compilation compilation =
+        javac().withProcessors(new AutoValueProcessor()).compile(javaFileObject);
+    assertThat(compilation).succeeded();
+    assertThat(compilation)
+        .hadWarningContaining("@AutoValue.CacheHashCode has no effect")
+        .inFile(javaFileObject)
+        .onLine(5);
+  }
+
+  @Test
+  public void internWithArrayProperty() throws Exception {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "import com.google.auto.value.AutoValue;",
+        "@AutoValue",
+        "@AutoValue.Intern",
+        "public abstract class Baz {",
+        "  public abstract String string();",
+        "  @SuppressWarnings(\"mutable\")",
+        "  public abstract int[] ints();",
+        "}");
+    Compilation compilation =
+        javac().withProcessors(new AutoValueProcessor()).compile(javaFileObject);
+    assertThat(compilation).failed();
+    assertThat(compilation)
+        .hadErrorContaining("@AutoValue.Intern cannot be used with an array property")
+        .inFile(javaFileObject)
+        .onLine(8);
+  }
+
   @Test
   public void autoValueMustBeStatic() {
     JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
@@ -924,7 +1050,7 @@ public class CompilationTest {
         "  }",
         "",
         "  static final class Builder<T extends Number> extends Baz.Builder<T> {",
-        "    private Integer anInt;",
+        "    private int anInt;",
         "    private byte[] aByteArray;",
         "    private int[] aNullableIntArray;",
         "    private List<T> aList;",
@@ -933,6 +1059,7 @@ public class CompilationTest {
         "    private Optional<String> anOptionalString = Optional.absent();",
         "    private NestedAutoValue.Builder<T> aNestedAutoValueBuilder$;",
         "    private NestedAutoValue<T> aNestedAutoValue;",
+        "    private int set$0;",
         "",
         "    Builder() {",
         "    }",
@@ -945,17 +1072,19 @@ public class CompilationTest {
         "      this.anImmutableList = source.anImmutableList();",
         "      this.anOptionalString = source.anOptionalString();",
         "      this.aNestedAutoValue = source.aNestedAutoValue();",
+        "      this.set$0 = 0x1;",
         "    }",
         "",
         "    @Override",
         "    public Baz.Builder<T> anInt(int anInt) {",
         "      this.anInt = anInt;",
+        "      set$0 |= 0x1;",
         "      return this;",
         "    }",
         "",
         "    @Override",
         "    public Optional<Integer> anInt() {",
-        "      if (anInt == null) {",
+        "      if ((set$0 & 0x1) == 0) {",
         "        return Optional.absent();",
         "      } else {",
         "        return Optional.of(anInt);",
@@ -1076,17 +1205,17 @@ public class CompilationTest {
         "        NestedAutoValue.Builder<T> aNestedAutoValue$builder = NestedAutoValue.builder();",
         "        this.aNestedAutoValue = aNestedAutoValue$builder.build();",
         "      }",
-        "      String missing = \"\";",
-        "      if (this.anInt == null) {",
-        "        missing += \" anInt\";",
-        "      }",
-        "      if (this.aByteArray == null) {",
-        "        missing += \" aByteArray\";",
-        "      }",
-        "      if (this.aList == null) {",
-        "        missing += \" aList\";",
-        "      }",
-        "      if (!missing.isEmpty()) {",
+        "      if (this.set$0 != 0x1 || this.aByteArray == null || this.aList == null) {",
+        "        String missing = \"\";",
+        "        if ((this.set$0 & 0x1) == 0) {",
+        "          missing += \" anInt\";",
+        "        }",
+        "        if (this.aByteArray == null) {",
+        "          missing += \" aByteArray\";",
+        "        }",
+        "        if (this.aList == null) {",
+        "          missing += \" aList\";",
+        "        }",
         "        throw new IllegalStateException(\"Missing required properties:\" + missing);",
         "      }",
         "      return new AutoValue_Baz<T>(",
@@ -2616,4 +2745,166 @@ public class CompilationTest {
         .onLine(7);
     assertThat(compilation2).hadWarningCount(0);
   }
+
+  @Test
+  public void renderThreadsProduceSameOutput() throws IOException {
+    ImmutableList.Builder<JavaFileObject> sources = ImmutableList.builder();
+    sources.addAll(GWT_SERIALIZATION_STUBS);
+    for (int i = 0; i < 20; i++) {
+      sources.add(
+          JavaFileObjects.forSourceLines(
+              "foo.bar.Baz" + i,
+              "package foo.bar;",
+              "",
+              "import com.google.auto.value.AutoValue;",
+              "import com.google.common.annotations.GwtCompatible;",
+              "import java.util.List;",
+              "",
+              "@AutoValue",
+              "@GwtCompatible(serializable = " + (i % 2 == 0) + ")",
+              "public abstract class Baz" + i + " {",
+              "  public abstract int anInt" + i + "();",
+              "  public abstract List<String> aList();",
+              "",
+              "  @AutoValue.Builder",
+              "  public abstract static class Builder {",
+              "    public abstract Builder anInt" + i + "(int x);",
+              "    public abstract Builder aList(List<String> x);",
+              "    public abstract Baz" + i + " build();",
+              "  }",
+              "}"));
+    }
+    Compilation serial =
+        javac().withProcessors(new AutoValueProcessor()).compile(sources.build());
+    Compilation parallel =
+        javac()
+            .withOptions("-A" + RenderQueue.RENDER_THREADS_OPTION + "=4")
+            .withProcessors(new AutoValueProcessor())
+            .compile(sources.build());
+    assertThat(serial).succeededWithoutWarnings();
+    assertThat(parallel).succeededWithoutWarnings();
+    ImmutableList<JavaFileObject> serialFiles = serial.generatedSourceFiles();
+    ImmutableList<JavaFileObject> parallelFiles = parallel.generatedSourceFiles();
+    assertThat(parallelFiles).hasSize(serialFiles.size());
+    for (int i = 0; i < serialFiles.size(); i++) {
+      expect
+          .that(parallelFiles.get(i).getCharContent(false).toString())
+          .isEqualTo(serialFiles.get(i).getCharContent(false).toString());
+    }
+  }
+
+  @Test
+  public void renderCacheReusesText() throws IOException {
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "foo.bar.Baz",
+            "package foo.bar;",
+            "",
+            "import com.google.auto.value.AutoValue;",
+            "",
+            "@AutoValue",
+            "public abstract class Baz {",
+            "  public abstract int anInt();",
+            "}");
+    String cacheOption =
+        "-A" + RenderCache.RENDER_CACHE_OPTION + "=" + temporaryFolder.getRoot().getPath();
+    Compilation uncached = javac().withProcessors(new AutoValueProcessor()).compile(javaFileObject);
+    Compilation first =
+        javac()
+            .withOptions(cacheOption)
+            .withProcessors(new AutoValueProcessor())
+            .compile(javaFileObject);
+    Compilation second =
+        javac()
+            .withOptions(cacheOption)
+            .withProcessors(new AutoValueProcessor())
+            .compile(javaFileObject);
+    assertThat(uncached).succeededWithoutWarnings();
+    assertThat(first).succeeded();
+    assertThat(first).hadNoteContaining("0 hits, 1 misses");
+    assertThat(second).succeeded();
+    assertThat(second).hadNoteContaining("1 hits, 0 misses");
+    JavaFileObject expected = Iterables.getOnlyElement(uncached.generatedSourceFiles());
+    for (Compilation compilation : ImmutableList.of(first, second)) {
+      JavaFileObject generated = Iterables.getOnlyElement(compilation.generatedSourceFiles());
+      expect
+          .that(generated.getCharContent(false).toString())
+          .isEqualTo(expected.getCharContent(false).toString());
+    }
+  }
+
+  @Test
+  public void renderCacheLeavesUnchangedFileAlone() throws IOException {
+    // The second compilation is given the source file that the first one generated, as a build
+    // that compiles the whole module again without cleaning it would do. Since the cached text is
+    // the same as the text of that file, the file is not written again.
+    JavaFileObject javaFileObject =
+        JavaFileObjects.forSourceLines(
+            "foo.bar.Baz",
+            "package foo.bar;",
+            "",
+            "import com.google.auto.value.AutoValue;",
+            "",
+            "@AutoValue",
+            "public abstract class Baz {",
+            "  public abstract int anInt();",
+            "",
+            "  public static Baz create(int anInt) {",
+            "    return new AutoValue_Baz(anInt);",
+            "  }",
+            "}");
+    File sourceOutput = temporaryFolder.newFolder("generated");
+    ImmutableList<String> options =
+        ImmutableList.of(
+            "-A" + RenderCache.RENDER_CACHE_OPTION + "=" + temporaryFolder.newFolder("cache"),
+            "-s",
+            sourceOutput.getPath(),
+            "-d",
+            temporaryFolder.newFolder("classes").getPath());
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    StandardJavaFileManager fileManager =
+        compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+
+    assertThat(compileWithRenderCache(compiler, fileManager, options, javaFileObject))
+        .contains("0 hits, 1 misses, 0 unchanged files");
+    File generated = new File(sourceOutput, "foo/bar/AutoValue_Baz.java");
+    String text = new String(Files.readAllBytes(generated.toPath()), StandardCharsets.UTF_8);
+    long lastModified = 1_000_000_000_000L;
+    assertThat(generated.setLastModified(lastModified)).isTrue();
+
+    JavaFileObject generatedFileObject =
+        Iterables.getOnlyElement(fileManager.getJavaFileObjects(generated));
+    assertThat(
+            compileWithRenderCache(
+                compiler, fileManager, options, javaFileObject, generatedFileObject))
+        .contains("1 hits, 0 misses, 1 unchanged files");
+    assertThat(generated.lastModified()).isEqualTo(lastModified);
+    assertThat(new String(Files.readAllBytes(generated.toPath()), StandardCharsets.UTF_8))
+        .isEqualTo(text);
+    fileManager.close();
+  }
+
+  /**
+   * Compiles {@code sources} with an {@link AutoValueProcessor}, checks that the compilation
+   * succeeded, and returns the text of its render cache note.
+   */
+  private static String compileWithRenderCache(
+      JavaCompiler compiler,
+      StandardJavaFileManager fileManager,
+      List<String> options,
+      JavaFileObject... sources) {
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    JavaCompiler.CompilationTask task =
+        compiler.getTask(
+            null, fileManager, diagnostics, options, null, ImmutableList.copyOf(sources));
+    task.setProcessors(ImmutableList.of(new AutoValueProcessor()));
+    assertWithMessage(diagnostics.getDiagnostics().toString()).that(task.call()).isTrue();
+    for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+      String message = diagnostic.getMessage(null);
+      if (message.startsWith("AutoValue render cache")) {
+        return message;
+      }
+    }
+    throw new AssertionError("No render cache note in " + diagnostics.getDiagnostics());
+  }
 }
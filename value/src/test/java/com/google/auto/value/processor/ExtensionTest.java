@@ -15,6 +15,8 @@
  */
 package com.google.auto.value.processor;
 
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
 import static com.google.testing.compile.JavaSourcesSubject.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -25,6 +27,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.truth.Truth;
+import com.google.testing.compile.Compilation;
 import com.google.testing.compile.CompileTester.SuccessfulCompilationClause;
 import com.google.testing.compile.JavaFileObjects;
 import java.io.File;
@@ -90,6 +93,57 @@ public class ExtensionTest {
         .and().generatesSources(expectedExtensionOutput);
   }
 
+  @Test
+  public void testExtensionOutputIsReformatted() throws Exception {
+    // generatesSources only compares syntax trees, so check the exact text here.
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import com.google.auto.value.AutoValue;",
+        "",
+        "@AutoValue",
+        "public abstract class Baz {",
+        "  abstract String foo();",
+        "}");
+    AutoValueExtension untidyExtension = new FinalExtension() {
+      @Override
+      public String generateClass(
+          Context context, String className, String classToExtend, boolean isFinal) {
+        return "package foo.bar;\n"
+            + "\n"
+            + "\n"
+            + "final  class  " + className + "  extends  " + classToExtend + "  {  \n"
+            + "\n"
+            + "  " + className + " ( String  foo )  {\n"
+            + "\n"
+            + "    super ( foo ) ;  \n"
+            + "\n"
+            + "  }\n"
+            + "}\n";
+      }
+    };
+    String expectedExtensionOutput =
+        "package foo.bar;\n"
+        + "\n"
+        + "final class AutoValue_Baz extends $AutoValue_Baz {\n"
+        + "\n"
+        + "  AutoValue_Baz (String foo) {\n"
+        + "    super (foo);\n"
+        + "  }\n"
+        + "}\n";
+    Compilation compilation =
+        javac()
+            .withProcessors(new AutoValueProcessor(ImmutableList.of(untidyExtension)))
+            .compile(javaFileObject);
+    assertThat(compilation).succeeded();
+    JavaFileObject extensionOutput =
+        compilation
+            .generatedFile(StandardLocation.SOURCE_OUTPUT, "foo/bar/AutoValue_Baz.java")
+            .get();
+    assertEquals(expectedExtensionOutput, extensionOutput.getCharContent(false).toString());
+  }
+
   @Test
   public void testExtensionConsumesProperties() throws Exception {
     JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2018 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.value.processor;
+
+import static com.google.common.truth.Truth.assertAbout;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
+
+import com.google.auto.value.extension.AutoValueExtension;
+import com.google.auto.value.extension.memoized.MemoizeExtension;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import com.google.testing.compile.JavaFileObjects;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that the processors in this package follow the rules for Gradle's isolating annotation
+ * processors. Gradle recompiles the outputs of an isolating processor only when the one
+ * originating element of each output changes, so every generated file must name exactly the
+ * source class that it was generated from, and no other. AutoValueProcessor only claims to be
+ * isolating when its extensions are all ones that are known to follow these rules.
+ */
+@RunWith(JUnit4.class)
+public class IncrementalProcessingTest {
+  @Test
+  public void gradleDescriptor() throws IOException {
+    String descriptor =
+        Resources.toString(
+            Resources.getResource("META-INF/gradle/incremental.annotation.processors"),
+            StandardCharsets.UTF_8);
+    assertThat(descriptor.split("\n"))
+        .asList()
+        .containsExactly(
+            AutoAnnotationProcessor.class.getName() + ",isolating",
+            AutoValueBuilderProcessor.class.getName() + ",isolating",
+            AutoValueProcessor.class.getName() + ",dynamic");
+  }
+
+  @Test
+  public void isolatingOnlyWithKnownExtensions() {
+    String isolating = "org.gradle.annotation.processing.isolating";
+    String aggregating = "org.gradle.annotation.processing.aggregating";
+
+    Set<String> withoutExtensions =
+        new AutoValueProcessor(ImmutableList.<AutoValueExtension>of()).getSupportedOptions();
+    assertThat(withoutExtensions).contains(isolating);
+    assertThat(withoutExtensions).doesNotContain(aggregating);
+
+    Set<String> withMemoize =
+        new AutoValueProcessor(ImmutableList.of(new MemoizeExtension())).getSupportedOptions();
+    assertThat(withMemoize).contains(isolating);
+    assertThat(withMemoize).doesNotContain(aggregating);
+
+    Set<String> withUnknownExtension =
+        new AutoValueProcessor(ImmutableList.of(new MemoizeExtension(), new FinalClassExtension()))
+            .getSupportedOptions();
+    assertThat(withUnknownExtension).contains(aggregating);
+    assertThat(withUnknownExtension).doesNotContain(isolating);
+  }
+
+  @Test
+  public void eachOutputHasItsOwnClassAsOnlyOriginatingElement() {
+    JavaFileObject baz =
+        JavaFileObjects.forSourceLines(
+            "foo.bar.Baz",
+            "package foo.bar;",
+            "",
+            "import com.google.auto.value.AutoValue;",
+            "",
+            "@AutoValue",
+            "public abstract class Baz {",
+            "  public abstract String string();",
+            "}");
+    JavaFileObject qux =
+        JavaFileObjects.forSourceLines(
+            "foo.bar.Qux",
+            "package foo.bar;",
+            "",
+            "import com.google.auto.value.AutoValue;",
+            "import com.google.common.annotations.GwtCompatible;",
+            "",
+            "@AutoValue",
+            "@GwtCompatible(serializable = true)",
+            "public abstract class Qux {",
+            "  public abstract Baz baz();",
+            "",
+            "  @AutoValue.Builder",
+            "  public abstract static class Builder {",
+            "    public abstract Builder baz(Baz baz);",
+            "    public abstract Qux build();",
+            "  }",
+            "}");
+    JavaFileObject annotations =
+        JavaFileObjects.forSourceLines(
+            "foo.bar.Annotations",
+            "package foo.bar;",
+            "",
+            "import com.google.auto.value.AutoAnnotation;",
+            "",
+            "public class Annotations {",
+            "  @AutoAnnotation",
+            "  static Deprecated deprecated() {",
+            "    return new AutoAnnotation_Annotations_deprecated();",
+            "  }",
+            "}");
+    Map<String, List<String>> originatingElements = new LinkedHashMap<>();
+    assertAbout(javaSources())
+        .that(
+            ImmutableList.<JavaFileObject>builder()
+                .add(baz, qux, annotations)
+                .addAll(CompilationTest.GWT_SERIALIZATION_STUBS)
+                .build())
+        .processedWith(
+            new RecordingProcessor(
+                new AutoValueProcessor(ImmutableList.of(new FinalClassExtension())),
+                originatingElements),
+            new RecordingProcessor(new AutoValueBuilderProcessor(), originatingElements),
+            new RecordingProcessor(new AutoAnnotationProcessor(), originatingElements))
+        .compilesWithoutError();
+    assertThat(originatingElements)
+        .containsExactly(
+            "foo.bar.$AutoValue_Baz", ImmutableList.of("foo.bar.Baz"),
+            "foo.bar.AutoValue_Baz", ImmutableList.of("foo.bar.Baz"),
+            "foo.bar.AutoValue_Qux", ImmutableList.of("foo.bar.Qux"),
+            "foo.bar.AutoValue_Qux_CustomFieldSerializer", ImmutableList.of("foo.bar.Qux"),
+            "foo.bar.AutoAnnotation_Annotations_deprecated",
+            ImmutableList.of("foo.bar.Annotations"));
+  }
+
+  /**
+   * An extension that generates the final subclass of {@code Baz}, so that there is one more file
+   * whose originating element must be {@code Baz}.
+   */
+  private static class FinalClassExtension extends AutoValueExtension {
+    @Override
+    public boolean applicable(Context context) {
+      return context.autoValueClass().getSimpleName().contentEquals("Baz");
+    }
+
+    @Override
+    public boolean mustBeFinal(Context context) {
+      return true;
+    }
+
+    @Override
+    public String generateClass(
+        Context context, String className, String classToExtend, boolean isFinal) {
+      StringBuilder constructorParams = new StringBuilder();
+      StringBuilder superArgs = new StringBuilder();
+      for (Map.Entry<String, ExecutableElement> property : context.properties().entrySet()) {
+        String sep = (constructorParams.length() == 0) ? "" : ", ";
+        constructorParams
+            .append(sep)
+            .append(property.getValue().getReturnType())
+            .append(' ')
+            .append(property.getKey());
+        superArgs.append(sep).append(property.getKey());
+      }
+      return String.format(
+          Locale.ROOT,
+          "package %s;\n"
+              + "final class %s extends %s {\n"
+              + "  %s(%s) {\n"
+              + "    super(%s);\n"
+              + "  }\n"
+              + "}\n",
+          context.packageName(),
+          className,
+          classToExtend,
+          className,
+          constructorParams,
+          superArgs);
+    }
+  }
+
+  /**
+   * A processor that runs another processor, recording the originating elements of each source
+   * file that the other processor creates.
+   */
+  private static class RecordingProcessor implements Processor {
+    private final Processor processor;
+    private final Map<String, List<String>> originatingElements;
+
+    RecordingProcessor(Processor processor, Map<String, List<String>> originatingElements) {
+      this.processor = processor;
+      this.originatingElements = originatingElements;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+      return processor.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+      return processor.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+      return processor.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+      processor.init(new RecordingProcessingEnvironment(processingEnv, originatingElements));
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+      return processor.process(annotations, roundEnv);
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(
+        Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+      return processor.getCompletions(element, annotation, member, userText);
+    }
+  }
+
+  private static class RecordingProcessingEnvironment implements ProcessingEnvironment {
+    private final ProcessingEnvironment processingEnv;
+    private final Filer filer;
+
+    RecordingProcessingEnvironment(
+        ProcessingEnvironment processingEnv, Map<String, List<String>> originatingElements) {
+      this.processingEnv = processingEnv;
+      this.filer = new RecordingFiler(processingEnv.getFiler(), originatingElements);
+    }
+
+    @Override
+    public Map<String, String> getOptions() {
+      return processingEnv.getOptions();
+    }
+
+    @Override
+    public Messager getMessager() {
+      return processingEnv.getMessager();
+    }
+
+    @Override
+    public Filer getFiler() {
+      return filer;
+    }
+
+    @Override
+    public Elements getElementUtils() {
+      return processingEnv.getElementUtils();
+    }
+
+    @Override
+    public Types getTypeUtils() {
+      return processingEnv.getTypeUtils();
+    }
+
+    @Override
+    public SourceVersion getSourceVersion() {
+      return processingEnv.getSourceVersion();
+    }
+
+    @Override
+    public Locale getLocale() {
+      return processingEnv.getLocale();
+    }
+  }
+
+  private static class RecordingFiler implements Filer {
+    private final Filer filer;
+    private final Map<String, List<String>> originatingElements;
+
+    RecordingFiler(Filer filer, Map<String, List<String>> originatingElements) {
+      this.filer = filer;
+      this.originatingElements = originatingElements;
+    }
+
+    @Override
+    public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements)
+        throws IOException {
+      record(name, originatingElements);
+      return filer.createSourceFile(name, originatingElements);
+    }
+
+    @Override
+    public JavaFileObject createClassFile(CharSequence name, Element... originatingElements)
+        throws IOException {
+      record(name, originatingElements);
+      return filer.createClassFile(name, originatingElements);
+    }
+
+    @Override
+    public FileObject createResource(
+        JavaFileManager.Location location,
+        CharSequence pkg,
+        CharSequence relativeName,
+        Element... originatingElements)
+        throws IOException {
+      record(pkg + "/" + relativeName, originatingElements);
+      return filer.createResource(location, pkg, relativeName, originatingElements);
+    }
+
+    @Override
+    public FileObject getResource(
+        JavaFileManager.Location location, CharSequence pkg, CharSequence relativeName)
+        throws IOException {
+      return filer.getResource(location, pkg, relativeName);
+    }
+
+    private void record(CharSequence name, Element... elements) {
+      ImmutableList.Builder<String> names = ImmutableList.builder();
+      for (Element element : elements) {
+        names.add(element.toString());
+      }
+      originatingElements.put(name.toString(), names.build());
+    }
+  }
+}
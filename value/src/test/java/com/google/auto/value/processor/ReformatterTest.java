@@ -17,6 +17,8 @@ package com.google.auto.value.processor;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -92,4 +94,32 @@ public class ReformatterTest {
         + "}\n";
     assertEquals(output, Reformatter.fixup(input));
   }
+
+  @Test
+  public void testComments() throws IOException {
+    String input =
+        "/**  \n"
+        + " * Javadoc  (with  a paren  \n"
+        + "   \n"
+        + "\n"
+        + " */  \n"
+        + "class Comments {  // comment  \n"
+        + "  /* one\n"
+        + "\n"
+        + "\n"
+        + "     two */  int  x  ;\n"
+        + "}";
+    String output =
+        "/**\n"
+        + " * Javadoc  (with  a paren\n"
+        + " */\n"
+        + "class Comments { // comment\n"
+        + "  /* one\n"
+        + "     two */ int x;\n"
+        + "}\n";
+    assertEquals(output, Reformatter.fixup(input));
+    StringWriter writer = new StringWriter();
+    Reformatter.fixup(input, writer);
+    assertEquals(output, writer.toString());
+  }
 }
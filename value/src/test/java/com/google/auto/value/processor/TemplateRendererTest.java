@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.auto.value.processor;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+import com.google.common.collect.ImmutableList;
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+import javax.tools.JavaFileObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that the renderers generated by {@link TemplateRendererGenerator} produce exactly the same
+ * text as the interpreted templates. With {@link TemplateVars#verifyRenderers} set, every template
+ * is rendered both ways and any difference causes an exception.
+ */
+@RunWith(JUnit4.class)
+public class TemplateRendererTest {
+  @Before
+  public void setUp() {
+    TemplateVars.verifyRenderers = true;
+  }
+
+  @After
+  public void tearDown() {
+    TemplateVars.verifyRenderers = false;
+  }
+
+  @Test
+  public void renderersWereGenerated() {
+    // The renderers are generated by the Maven build, which fails if a template can't be compiled.
+    assertThat(TemplateVars.renderer(AutoValueTemplateVars.class).isPresent()).isTrue();
+    assertThat(TemplateVars.renderer(AutoAnnotationTemplateVars.class).isPresent()).isTrue();
+    assertThat(TemplateVars.renderer(GwtSerialization.GwtTemplateVars.class).isPresent()).isTrue();
+  }
+
+  @Test
+  public void autoValue() {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import com.google.auto.value.AutoValue;",
+        "import com.google.common.base.Optional;",
+        "import java.util.List;",
+        "import java.util.Map;",
+        "import javax.annotation.Nullable;",
+        "",
+        "@AutoValue",
+        "public abstract class Baz<T extends Comparable<T>> {",
+        "  public abstract int anInt();",
+        "  public abstract byte[] aByteArray();",
+        "  @Nullable public abstract int[] aNullableIntArray();",
+        "  public abstract List<T> aList();",
+        "  public abstract Map<String, T> aMap();",
+        "  public abstract Optional<String> anOptional();",
+        "  @Nullable public abstract String aNullableString();",
+        "",
+        "  public abstract Builder<T> toBuilder();",
+        "",
+        "  public static <T extends Comparable<T>> Builder<T> builder() {",
+        "    return new AutoValue_Baz.Builder<T>();",
+        "  }",
+        "",
+        "  @AutoValue.Builder",
+        "  public abstract static class Builder<T extends Comparable<T>> {",
+        "    public abstract Builder<T> anInt(int x);",
+        "    public abstract Builder<T> aByteArray(byte[] x);",
+        "    public abstract Builder<T> aNullableIntArray(@Nullable int[] x);",
+        "    public abstract Builder<T> aList(List<T> x);",
+        "    public abstract Builder<T> aMap(Map<String, T> x);",
+        "    public abstract Builder<T> anOptional(String x);",
+        "    public abstract Builder<T> aNullableString(@Nullable String x);",
+        "    public abstract Baz<T> build();",
+        "  }",
+        "}");
+    Compilation compilation =
+        javac().withProcessors(new AutoValueProcessor()).compile(javaFileObject);
+    assertThat(compilation).succeeded();
+  }
+
+  @Test
+  public void gwtSerializable() {
+    JavaFileObject javaFileObject = JavaFileObjects.forSourceLines(
+        "foo.bar.Baz",
+        "package foo.bar;",
+        "",
+        "import com.google.auto.value.AutoValue;",
+        "import com.google.common.annotations.GwtCompatible;",
+        "import java.util.List;",
+        "",
+        "@AutoValue",
+        "@GwtCompatible(serializable = true)",
+        "public abstract class Baz<T> {",
+        "  public abstract int anInt();",
+        "  public abstract List<T> aList();",
+        "",
+        "  public static <T> Baz<T> create(int anInt, List<T> aList) {",
+        "    return new AutoValue_Baz<T>(anInt, aList);",
+        "  }",
+        "}");
+    Compilation compilation =
+        javac()
+            .withProcessors(new AutoValueProcessor())
+            .compile(
+                ImmutableList.<JavaFileObject>builder()
+                    .add(javaFileObject)
+                    .addAll(CompilationTest.GWT_SERIALIZATION_STUBS)
+                    .build());
+    assertThat(compilation).succeeded();
+  }
+
+  @Test
+  public void autoAnnotation() {
+    JavaFileObject myAnnotation = JavaFileObjects.forSourceLines(
+        "com.example.annotations.MyAnnotation",
+        "package com.example.annotations;",
+        "",
+        "public @interface MyAnnotation {",
+        "  String value();",
+        "  int[] ints() default {};",
+        "}");
+    JavaFileObject annotationFactory = JavaFileObjects.forSourceLines(
+        "com.example.factories.AnnotationFactory",
+        "package com.example.factories;",
+        "",
+        "import com.google.auto.value.AutoAnnotation;",
+        "import com.example.annotations.MyAnnotation;",
+        "",
+        "public class AnnotationFactory {",
+        "  @AutoAnnotation",
+        "  public static MyAnnotation newMyAnnotation(String value, int[] ints) {",
+        "    return new AutoAnnotation_AnnotationFactory_newMyAnnotation(value, ints);",
+        "  }",
+        "}");
+    Compilation compilation =
+        javac()
+            .withProcessors(new AutoAnnotationProcessor())
+            .compile(myAnnotation, annotationFactory);
+    assertThat(compilation).succeeded();
+  }
+}
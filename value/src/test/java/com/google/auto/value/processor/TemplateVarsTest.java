@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.lang.reflect.Field;
 import java.net.URLClassLoader;
 import java.util.List;
 import java.util.Set;
@@ -85,6 +86,13 @@ public class TemplateVarsTest {
     }
   }
 
+  @Test
+  public void testFieldsComputedOnce() {
+    ImmutableList<Field> fields = new HappyVars().fields();
+    assertThat(fields).hasSize(3);
+    assertThat(new HappyVars().fields()).isSameAs(fields);
+  }
+
   static class SubSub extends HappyVars {}
 
   @Test
@@ -150,6 +158,13 @@ public class TemplateVarsTest {
     }
   }
 
+  @Test
+  public void testParsedTemplateIsShared() {
+    Template template = TemplateVars.parsedTemplateForResource("autovalue.vm");
+    assertThat(TemplateVars.parsedTemplateForResource("autovalue.vm")).isSameAs(template);
+    assertThat(TemplateVars.parsedTemplateForResource("autoannotation.vm")).isNotSameAs(template);
+  }
+
   @Test
   public void testBrokenInputStream_IOException() throws Exception {
     doTestBrokenInputStream(new IOException("BrokenInputStream"));
@@ -338,6 +338,26 @@ public class TypeSimplifierTest {
         .containsExactly("java.util.Map");
   }
 
+  @Test
+  public void testImportsWithSharedCache() {
+    TypeSimplifier.Cache cache = new TypeSimplifier.Cache(typeUtils);
+    TypeMirror base = baseWithoutContainedTypes();
+    Set<TypeMirror> types1 = typeMirrorSet(
+        typeMirrorOf(java.awt.List.class),
+        typeMirrorOf(java.lang.String.class));
+    Set<TypeMirror> types2 = typeMirrorSet(
+        typeMirrorOf(java.util.List.class),
+        typeMirrorOf(java.util.Map.class));
+    TypeSimplifier typeSimplifier1 = new TypeSimplifier(cache, "foo.bar", types1, base);
+    TypeSimplifier typeSimplifier2 = new TypeSimplifier(cache, "foo.bar", types2, base);
+    // The java.awt.List from the first set must not make java.util.List ambiguous in the second.
+    assertThat(typeSimplifier1.typesToImport()).containsExactly("java.awt.List");
+    assertThat(typeSimplifier2.typesToImport())
+        .containsExactly("java.util.List", "java.util.Map")
+        .inOrder();
+    assertThat(cache.nonPrivateDeclaredTypes(base)).isSameAs(cache.nonPrivateDeclaredTypes(base));
+  }
+
   @Test
   public void testSimplifyJavaLangString() {
     TypeMirror string = typeMirrorOf(java.lang.String.class);
@@ -17,9 +17,11 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.google.auto.value.processor.escapevelocity.ReferenceNode.MethodReferenceNode;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.primitives.Primitives;
 import com.google.common.truth.Expect;
+import java.io.StringReader;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Collections;
@@ -98,6 +100,17 @@ public class ReferenceNodeTest {
     assertThat(visibleSize.invoke(map)).isEqualTo(1);
   }
 
+  @Test
+  public void testResolvedMethodDependsOnTargetAndArgumentClasses() throws Exception {
+    Template template = Template.parseFrom(new StringReader("$x.size() $x.get($i) $x.empty"));
+    expect.that(template.evaluate(ImmutableMap.of("x", ImmutableList.of("a", "b"), "i", 1)))
+        .isEqualTo("2 b false");
+    expect.that(template.evaluate(ImmutableMap.of("x", Collections.singletonList("c"), "i", 0)))
+        .isEqualTo("1 c false");
+    expect.that(template.evaluate(ImmutableMap.of("x", ImmutableMap.of("k", "v"), "i", "k")))
+        .isEqualTo("1 v false");
+  }
+
   @Test
   public void testCompatibleArgs() {
     assertThat(MethodReferenceNode.compatibleArgs(
@@ -632,6 +632,53 @@ public class TemplateTest {
     compare(template);
   }
 
+  // The next tests check that variables are put back as they were after a macro parameter is
+  // shadowed. They check the results directly rather than comparing with Velocity, because they are
+  // about how EvaluationContext and MacroEvaluationContext save and restore variables.
+
+  @Test
+  public void foreachShadowingMacroParameter() throws IOException {
+    // The #foreach variable $x hides the parameter $x only during the loop. After the macro, $x is
+    // what it was before, including undefined.
+    Map<String, ?> vars = ImmutableMap.of("list", ImmutableList.of("a", "b"), "y", "arg");
+    String template =
+        "#macro (m $x)[$x]#foreach ($x in $list)<$x>#end[$x]#end\n"
+        + "#set ($x = \"outer\")\n"
+        + "#m($y) $x";
+    assertThat(Template.parseFrom(new StringReader(template)).evaluate(vars))
+        .isEqualTo("[arg]<a><b>[arg] outer");
+    template =
+        "#macro (m $x)#foreach ($x in $list)<$x>#end[$x]#end\n"
+        + "#m($y) #if ($x)defined#{else}undefined#end";
+    assertThat(Template.parseFrom(new StringReader(template)).evaluate(vars))
+        .isEqualTo("<a><b>[arg] undefined");
+  }
+
+  @Test
+  public void setShadowingMacroParameter() throws IOException {
+    // #set of the parameter $x sets the variable $x outside the macro, as in Velocity, but it does
+    // not change the argument $y, and the next call of the macro sees its own argument again.
+    Map<String, ?> vars = ImmutableMap.of("y", "arg");
+    String template =
+        "#macro (m $x)[$x]#set ($x = \"set\")[$x]#end\n"
+        + "#m($y) $x $y #m(\"second\") $x";
+    assertThat(Template.parseFrom(new StringReader(template)).evaluate(vars))
+        .isEqualTo("[arg][set] set arg [second][set] set");
+  }
+
+  @Test
+  public void setInForeachShadowingMacroParameter() throws IOException {
+    // A #set of the #foreach variable inside the loop is undone with the rest of the loop, so
+    // afterwards $x is the parameter again, and after the macro it is the outer $x.
+    Map<String, ?> vars = ImmutableMap.of("list", ImmutableList.of("a", "b"), "y", "arg");
+    String template =
+        "#macro (m $x)[$x]#foreach ($x in $list)#set ($x = \"set\")<$x>#end[$x]#end\n"
+        + "#set ($x = \"outer\")\n"
+        + "#m($y) $x";
+    assertThat(Template.parseFrom(new StringReader(template)).evaluate(vars))
+        .isEqualTo("[arg]<set><set>[arg] outer");
+  }
+
   @Test
   public void undefinedMacro() throws IOException {
     String template = "#oops()";
@@ -650,4 +697,67 @@ public class TemplateTest {
     Template.parseFrom(new StringReader(template));
   }
 
+  @Test
+  public void inlinedMacros() {
+    // These calls can all be replaced by the macro body with the argument substituted for $p.
+    String template =
+        "#macro (describe $p)[$p.length()#if ($p.empty) empty#elseif ($p == \"bc\") bc#end]#end\n"
+        + "#macro (twice $p)#describe($p)#describe($p)#end\n"
+        + "#describe($s) #describe($list[0]) #twice($s.substring(1))\n"
+        + "#foreach ($x in $list)#describe($x)#end\n";
+    Map<String, ?> vars = ImmutableMap.of("s", "hello", "list", ImmutableList.of("a", "", "bc"));
+    compare(template, vars);
+  }
+
+  @Test
+  public void constantFolding() {
+    String template =
+        "#if (1 + 1 == 2)two#end"
+        + "#if (false && $undefined)never#else always#end"
+        + "#if (!true)never#elseif (3 > 2) three#end"
+        + "#if (false)#set ($x = 1 / 0)#end"
+        + "#set ($y = 22 / 7)$y";
+    compare(template);
+  }
+
+  @Test
+  public void evaluateToAppendable() throws IOException {
+    String template =
+        "#macro (m $x)<$x>#end\n"
+        + "#foreach ($i in $list)#if ($i > 1)#m($i)#else$i#end#end";
+    Map<String, ?> vars = ImmutableMap.of("list", ImmutableList.of(1, 2, 3));
+    Template parsedTemplate = Template.parseFrom(new StringReader(template));
+    String expected = parsedTemplate.evaluate(vars);
+    assertThat(expected).isEqualTo("1<2><3>");
+
+    StringBuilder sb = new StringBuilder("prefix:");
+    parsedTemplate.evaluate(vars, sb);
+    assertThat(sb.toString()).isEqualTo("prefix:" + expected);
+
+    StringWriter writer = new StringWriter();
+    parsedTemplate.evaluate(vars, writer);
+    assertThat(writer.toString()).isEqualTo(expected);
+  }
+
+  @Test
+  public void instrumented() throws IOException {
+    String template =
+        "#macro (m $x)<$x>#end\n"
+        + "#foreach ($i in $list)\n"
+        + "#if ($i > 1)#m($i)#else$i#end\n"
+        + "#end";
+    Map<String, ?> vars = ImmutableMap.of("list", ImmutableList.of(1, 2, 3));
+    Template parsedTemplate = Template.parseFrom(new StringReader(template));
+    TemplateProfile profile = new TemplateProfile();
+    Template instrumentedTemplate = parsedTemplate.instrumented(profile);
+    assertThat(profile.isEmpty()).isTrue();
+    assertThat(instrumentedTemplate.evaluate(vars)).isEqualTo(parsedTemplate.evaluate(vars));
+    String report = profile.report();
+    assertThat(report).containsMatch("(?m)\\s1  line 2: #foreach$");
+    assertThat(report).containsMatch("(?m)\\s3  line 3: #if$");
+
+    // Evaluating the original template does not change the profile.
+    parsedTemplate.evaluate(vars);
+    assertThat(profile.report()).isEqualTo(report);
+  }
 }